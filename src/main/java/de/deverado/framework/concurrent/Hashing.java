@@ -35,6 +35,8 @@ public class Hashing {
 
     private static final HashFunction MURMUR3_32 = com.google.common.hash.Hashing.murmur3_32(5381);
 
+    private static final HashFunction MURMUR3_128 = com.google.common.hash.Hashing.murmur3_128(5381);
+
     /**
      * Fast and very good distribution. Seed 5381 - constant. Hashes chars as
      * wide chars (two bytes hashed per char).
@@ -52,6 +54,47 @@ public class Hashing {
         return MURMUR3_32.hashBytes(s, start, len).asInt();
     }
 
+    /**
+     * 64 bit version of {@link #hash_murmur3(CharSequence)}, for {@link #jumpConsistentHash(long, int)}. Seed 5381
+     * - constant. Hashes chars as wide chars (two bytes hashed per char).
+     */
+    public static long hash64_murmur3(CharSequence s) {
+        return MURMUR3_128.hashUnencodedChars(s).asLong();
+    }
+
+    /**
+     * 64 bit version of {@link #hash_murmur3(byte[], int, int)}. Seed 5381 - constant.
+     */
+    public static long hash64_murmur3(byte[] s, int start, int len) {
+        return MURMUR3_128.hashBytes(s, start, len).asLong();
+    }
+
+    /**
+     * The murmur3 64 bit finalizer: Spreads all input bits over the result, for example to make a key for
+     * {@link #jumpConsistentHash(long, int)} from an int hash code.
+     */
+    public static long mix64(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+
+    /**
+     * Jump consistent hash (Lamping, Veach: A Fast, Minimal Memory, Consistent Hash Algorithm): Maps the key to one of
+     * the buckets in O(log buckets) without any memory. Growing from n to n+1 buckets moves only about 1/(n+1) of the
+     * keys, all to the new bucket. The key should be well distributed, like a 64 bit hash. Guava's
+     * {@link com.google.common.hash.Hashing#consistentHash(long, int)} implements it.
+     *
+     * @return a bucket in <code>[0, buckets)</code>
+     * @throws IllegalArgumentException if buckets is less than 1
+     */
+    public static int jumpConsistentHash(long key, int buckets) {
+        return com.google.common.hash.Hashing.consistentHash(key, buckets);
+    }
+
     /**
      * XORs the two 32 bit halfs of an or to make an int.
      *
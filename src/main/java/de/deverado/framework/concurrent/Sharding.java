@@ -26,7 +26,15 @@ public class Sharding {
 
     public static ShardingStrategyGeneric<Object> createHashCodeShardingStrategyGeneric(
             int shards) {
-        final ShardingStrategy s = new ShardByArbitraryStrategy(shards);
+        return createHashCodeShardingStrategyGeneric(new ShardByArbitraryStrategy(shards));
+    }
+
+    /**
+     * Like {@link #createHashCodeShardingStrategyGeneric(int)}, but with the given strategy, for example a
+     * {@link ShardByJumpConsistentHashStrategy}.
+     */
+    public static ShardingStrategyGeneric<Object> createHashCodeShardingStrategyGeneric(
+            final ShardingStrategy s) {
         return new ShardingStrategyGeneric<Object>() {
 
             @Override
@@ -195,6 +203,45 @@ public class Sharding {
 
     }
 
+    /**
+     * Jump consistent hash over 64 bit murmur3 hashes, see {@link Hashing#jumpConsistentHash(long, int)}: Any shard
+     * count up to {@link Integer#MAX_VALUE}, no bias for counts that aren't powers of 2, no memory. When the shard
+     * count grows from n to n+1 only about 1/(n+1) of the values change their shard - unlike the modulo in
+     * {@link ShardByArbitraryStrategy}, which moves almost all.
+     */
+    public static class ShardByJumpConsistentHashStrategy implements ShardingStrategy {
+
+        private final int shards;
+
+        public ShardByJumpConsistentHashStrategy(int shards) {
+            if (shards < 1) {
+                throw new IllegalArgumentException("Shard number < 1");
+            }
+            this.shards = shards;
+        }
+
+        @Override
+        public int shard(CharSequence val) {
+            return Hashing.jumpConsistentHash(Hashing.hash64_murmur3(val), shards);
+        }
+
+        @Override
+        public int shard(int val) {
+            return Hashing.jumpConsistentHash(Hashing.mix64(val), shards);
+        }
+
+        @Override
+        public int shard(byte[] val) {
+            return Hashing.jumpConsistentHash(Hashing.hash64_murmur3(val, 0, val.length), shards);
+        }
+
+        @Override
+        public int getShardCount() {
+            return shards;
+        }
+
+    }
+
     public static abstract class ShardingStrategyMurmur3Adapter implements
             ShardingStrategy {
 
@@ -0,0 +1,142 @@
+package de.deverado.framework.concurrent.consistenthashing;/*
+ * Copyright Georg Koester 2012-15. All rights reserved.
+ */
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Consistent hashing with bounded loads (Mirrokni, Thorup, Zadimoghaddam) on top of a {@link VNodeConsistentHashRing}:
+ * Every machine leading vnodes may hold at most <code>ceil(capacityFactor * (totalLoad + 1) / leadingMachines)</code>
+ * of the currently acquired load. {@link #acquire(long)} starts at the vnode owning the hash and moves on in ring order
+ * while the vnode's leader is at that cap, so hot keys spill over to the following machines instead of overloading
+ * one.
+ * <p>
+ * Loads are counted per machine in an {@link AtomicLongArray} and claimed with compare-and-set, so routing doesn't
+ * lock. Every acquire must be matched by a {@link #release(VNodeImpl)} of the returned vnode. Create a new router
+ * for a new ring - loads of the old router don't carry over.
+ * </p>
+ */
+@ParametersAreNonnullByDefault
+public class BoundedLoadVNodeRouter {
+
+    private final VNodeConsistentHashRing ring;
+    private final double capacityFactor;
+    private final int leadingMachineCount;
+    private final AtomicLongArray machineLoads;
+    private final AtomicLong totalLoad = new AtomicLong();
+
+    private BoundedLoadVNodeRouter(VNodeConsistentHashRing ring, double capacityFactor) {
+        this.ring = ring;
+        this.capacityFactor = capacityFactor;
+        List<Machine> machines = ring.getMachines();
+        // Machine.getVNodes() also holds vnodes the machine only replicates, so count the leaders of the nodes:
+        boolean[] leads = new boolean[machines.size()];
+        int leading = 0;
+        for (VNodeImpl n : ring.getNodeRing().getNodes()) {
+            int idx = n.getLeader().getIdxInAllMachineList();
+            if (!leads[idx]) {
+                leads[idx] = true;
+                leading++;
+            }
+        }
+        this.leadingMachineCount = leading;
+        this.machineLoads = new AtomicLongArray(machines.size());
+    }
+
+    /**
+     * @param capacityFactor bigger than 1, for example 1.25: a machine may get 25% more than the average load.
+     */
+    public static BoundedLoadVNodeRouter create(VNodeConsistentHashRing ring, double capacityFactor) {
+        if (!(capacityFactor > 1.0)) {
+            throw new IllegalArgumentException("capacityFactor must be bigger than 1, got: " + capacityFactor);
+        }
+        return new BoundedLoadVNodeRouter(ring, capacityFactor);
+    }
+
+    public VNodeConsistentHashRing getRing() {
+        return ring;
+    }
+
+    public double getCapacityFactor() {
+        return capacityFactor;
+    }
+
+    /**
+     * @return the vnode to use for the hash, with the load of its leader incremented. <code>null</code> if the ring
+     * has no nodes.
+     */
+    @Nullable
+    public VNodeImpl acquire(long hash) {
+        VNodeImpl owner = ring.getNodeForHash(hash);
+        if (owner == null) {
+            return null;
+        }
+        long capacity = getCapacity(totalLoad.get() + 1);
+        VNodeImpl candidate = owner;
+        do {
+            if (tryIncrement(candidate.getLeader().getIdxInAllMachineList(), capacity)) {
+                totalLoad.incrementAndGet();
+                return candidate;
+            }
+            candidate = ring.getNodeAfterNode(candidate);
+        } while (candidate != null && candidate != owner);
+
+        // all full because of concurrent acquires: overload the owner rather than failing
+        machineLoads.incrementAndGet(owner.getLeader().getIdxInAllMachineList());
+        totalLoad.incrementAndGet();
+        return owner;
+    }
+
+    private boolean tryIncrement(int machineIdx, long capacity) {
+        while (true) {
+            long load = machineLoads.get(machineIdx);
+            if (load >= capacity) {
+                return false;
+            }
+            if (machineLoads.compareAndSet(machineIdx, load, load + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @param node as returned by {@link #acquire(long)}
+     */
+    public void release(VNodeImpl node) {
+        machineLoads.decrementAndGet(node.getLeader().getIdxInAllMachineList());
+        totalLoad.decrementAndGet();
+    }
+
+    /**
+     * @return the currently acquired load of the given machine of the ring.
+     */
+    public long getLoad(Machine machine) {
+        return machineLoads.get(machine.getIdxInAllMachineList());
+    }
+
+    public long getTotalLoad() {
+        return totalLoad.get();
+    }
+
+    /**
+     * @return the maximum load per machine for the given total load.
+     */
+    public long getCapacity(long totalLoad) {
+        if (leadingMachineCount == 0) {
+            return 0;
+        }
+        return (long) Math.ceil(capacityFactor * totalLoad / leadingMachineCount);
+    }
+
+    @Override
+    public String toString() {
+        return "BoundedLoadVNodeRouter{" +
+                "capacityFactor=" + capacityFactor +
+                ", totalLoad=" + totalLoad +
+                '}';
+    }
+}
@@ -50,14 +50,55 @@ public interface ConsistentHashRingHoldingResourceEntries<NodeKeyT, NodeT, Entry
 
     public NodeT getNodeBeforeNode(Long nodeKeyHash);
 
+    /**
+     * Like {@link #getNodeBeforeNode(Long)}, but without boxing.
+     */
+    public NodeT getNodeBeforeNode(long nodeKeyHash);
+
     public NodeT getNodeAfterNode(NodeKeyT key);
 
     public NodeT getNodeAfterNode(Long nodeKeyHash);
 
+    /**
+     * Like {@link #getNodeAfterNode(Long)}, but without boxing.
+     */
+    public NodeT getNodeAfterNode(long nodeKeyHash);
+
     public NodeT getNodeForEntry(EntryKeyT key);
 
     public NodeT getNodeForEntry(Long entryKeyHash);
 
+    /**
+     * Like {@link #getNodeForEntry(Long)}, but without boxing. Implementations on the routing path (like
+     * {@link FrozenConsistentHashRing}) don't allocate here.
+     */
+    public NodeT getNodeForEntry(long entryKeyHash);
+
+    /**
+     * Batch version of {@link #getNodeForEntry(long)}: <code>out[i]</code> is set to the node for
+     * <code>entryKeyHashes[i]</code>.
+     *
+     * @param out must be at least as long as entryKeyHashes
+     */
+    public void getNodesForEntries(long[] entryKeyHashes, NodeT[] out);
+
+    /**
+     * For rebalancing in proportion to what moves: Doesn't change the ring.
+     *
+     * @return the range the given node would take over from its successor when added.
+     * @throws IllegalArgumentException if the ring already has a node with that hash
+     */
+    public RingOwnershipChange<NodeT, EntryT> getOwnershipChangeForAdd(long nodeKeyHash, NodeT node);
+
+    /**
+     * For rebalancing in proportion to what moves: Doesn't change the ring.
+     *
+     * @return the range the given node would hand over to its successor when removed, <code>null</code> if the node
+     * is not in the ring.
+     */
+    @Nullable
+    public RingOwnershipChange<NodeT, EntryT> getOwnershipChangeForRemove(long nodeKeyHash);
+
     public boolean isNodeForEntry(@Nullable NodeKeyT nodeKey, @Nullable EntryKeyT entryKey,
             boolean ensureNodeIsInRing);
 
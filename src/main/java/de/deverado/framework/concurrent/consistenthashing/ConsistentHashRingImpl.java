@@ -1,6 +1,6 @@
 package de.deverado.framework.concurrent.consistenthashing;
 
-import com.google.common.collect.Iterables;
+import com.google.common.base.Preconditions;
 import com.google.common.collect.Maps;
 import com.google.common.hash.HashFunction;
 
@@ -51,20 +51,35 @@ public class ConsistentHashRingImpl<NodeKeyT, NodeT, EntryKeyT, EntryT>
         return ConsistentHashRings.hashKey(hashFunction, nodeHasher, key);
     }
 
+    /**
+     * Batches up to this size are looked up hash by hash in {@link #getNodesForEntries(long[], Object[])}.
+     */
+    private static final int SMALL_BATCH_SIZE = 8;
+
     private final HashFunction hashFunction;
     private final ConsistentHashRings.RingHasher<Object> nodeHasher;
     private final ConsistentHashRings.RingHasher<Object> entryHasher;
     private final TreeMap<Long, NodeT> nodeRing = Maps.newTreeMap();
-    private final TreeMap<Long, Map<EntryKeyT, EntryT>> entryRing = Maps
-            .newTreeMap();
+    private final RingEntryStore<EntryKeyT, EntryT> entryStore;
 
-    @SuppressWarnings({ "unchecked", "rawtypes" })
     public ConsistentHashRingImpl(HashFunction hashFunction,
             ConsistentHashRings.RingHasher<? super NodeKeyT> nodeHasher,
             ConsistentHashRings.RingHasher<? super EntryKeyT> entryHasher) {
+        this(hashFunction, nodeHasher, entryHasher, new TreeMapRingEntryStore<EntryKeyT, EntryT>());
+    }
+
+    /**
+     * @param entryStore use a {@link SortedArrayRingEntryStore} for big entry counts.
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    public ConsistentHashRingImpl(HashFunction hashFunction,
+            ConsistentHashRings.RingHasher<? super NodeKeyT> nodeHasher,
+            ConsistentHashRings.RingHasher<? super EntryKeyT> entryHasher,
+            RingEntryStore<EntryKeyT, EntryT> entryStore) {
         this.hashFunction = hashFunction;
         this.nodeHasher = (ConsistentHashRings.RingHasher<Object>) nodeHasher;
         this.entryHasher = (ConsistentHashRings.RingHasher<Object>) entryHasher;
+        this.entryStore = entryStore;
     }
 
     // public void addNodes(Collection<NodeT> nodes) {
@@ -140,20 +155,10 @@ public class ConsistentHashRingImpl<NodeKeyT, NodeT, EntryKeyT, EntryT>
         if (null == previousNodeInRing) {
             // either no other nodes in ring or only current node in ring,
             // return all
-            return iterateEntries(entryRing.values());
+            return entryStore.getEntries();
         } else {
-            if (previousNodeInRing > nodeHash) {
-                // need to loop
-                return Iterables.concat(
-                        iterateEntries(entryRing.tailMap(previousNodeInRing,
-                                false).values()), //
-                        iterateEntries(entryRing.headMap(nodeHash, true)
-                                .values()));
-            } else {
-                // from previous
-                return iterateEntries(entryRing.subMap(previousNodeInRing,
-                        false, nodeHash, true).values());
-            }
+            // loops if previous is bigger
+            return entryStore.getEntriesInRange(previousNodeInRing, nodeHash);
         }
     }
 
@@ -188,60 +193,7 @@ public class ConsistentHashRingImpl<NodeKeyT, NodeT, EntryKeyT, EntryT>
      */
     @Override
     public Iterable<EntryT> getEntries() {
-        return iterateEntries(entryRing.values());
-    }
-
-    private Iterable<EntryT> iterateEntries(
-            final Collection<Map<EntryKeyT, EntryT>> collection) {
-
-        return new Iterable<EntryT>() {
-            @Override
-            public Iterator<EntryT> iterator() {
-                return new Iterator<EntryT>() {
-
-                    private Iterator<Map<EntryKeyT, EntryT>> outer = collection
-                            .iterator();
-                    private Iterator<EntryT> inner;
-
-                    @Override
-                    public boolean hasNext() {
-                        boolean innerHasNext = false;
-                        while (!innerHasNext) {
-                            if (inner == null) {
-                                if (outer.hasNext()) {
-                                    inner = outer.next().values().iterator();
-                                } else {
-                                    break;
-                                }
-                            }
-
-                            innerHasNext = inner.hasNext();
-                            if (!innerHasNext) {
-                                inner = null;
-                            }
-                        }
-                        return innerHasNext;
-                    }
-
-                    @Override
-                    public EntryT next() {
-                        if (inner == null) {
-                            if (!hasNext()) {
-                                throw new IllegalStateException();
-                            }
-                        }
-                        EntryT next = inner.next();
-                        return next;
-                    }
-
-                    @Override
-                    public void remove() {
-                        throw new UnsupportedOperationException();
-                    }
-
-                };
-            }
-        };
+        return entryStore.getEntries();
     }
 
     /**
@@ -253,13 +205,7 @@ public class ConsistentHashRingImpl<NodeKeyT, NodeT, EntryKeyT, EntryT>
             return null;
         }
 
-        Long hash = hashEntryKey(key);
-        Map<EntryKeyT, EntryT> inner = entryRing.get(hash);
-        if (inner != null) {
-            return inner.get(key);
-        }
-
-        return null;
+        return entryStore.get(hashEntryKey(key), key);
     }
 
     /**
@@ -268,26 +214,7 @@ public class ConsistentHashRingImpl<NodeKeyT, NodeT, EntryKeyT, EntryT>
      */
     @Override
     public EntryT putEntry(EntryKeyT key, EntryT entry) {
-        Long hash = hashEntryKey(key);
-        Map<EntryKeyT, EntryT> inner = entryRing.get(hash);
-        EntryT retval = null;
-        if (inner != null) {
-            if (inner instanceof TreeMap) {
-                retval = inner.put(key, entry);
-            } else {
-                inner = new TreeMap<EntryKeyT, EntryT>(inner);
-                retval = inner.put(key, entry);
-                if (inner.size() == 1) {
-                    entryRing.put(hash, Collections.singletonMap(key, entry));
-                } else {
-                    entryRing.put(hash, inner);
-                }
-            }
-        } else {
-            inner = Collections.singletonMap(key, entry);
-            entryRing.put(hash, inner);
-        }
-        return retval;
+        return entryStore.put(hashEntryKey(key), key, entry);
     }
 
     /**
@@ -299,20 +226,7 @@ public class ConsistentHashRingImpl<NodeKeyT, NodeT, EntryKeyT, EntryT>
             return null;
         }
 
-        Long hash = hashEntryKey(key);
-        Map<EntryKeyT, EntryT> inner = entryRing.get(hash);
-        EntryT retval = null;
-        if (inner != null) {
-            if (inner.size() == 1) {
-                retval = inner.get(key);
-                if (retval != null) {
-                    entryRing.remove(hash);
-                }
-            } else {
-                retval = inner.remove(key);
-            }
-        }
-        return retval;
+        return entryStore.remove(hashEntryKey(key), key);
     }
 
     /**
@@ -365,19 +279,65 @@ public class ConsistentHashRingImpl<NodeKeyT, NodeT, EntryKeyT, EntryT>
      */
     @Override
     public NodeT getNodeForEntry(Long entryKeyHash) {
+        return getNodeForEntry(entryKeyHash.longValue());
+    }
+
+    /**
+     * The TreeMap lookup still boxes internally, see {@link FrozenConsistentHashRing} for allocation-free lookups.
+     */
+    @Override
+    public NodeT getNodeForEntry(long entryKeyHash) {
 
         NodeT retval = nextEntryInRing(nodeRing, entryKeyHash);
         return retval;
     }
 
+    /**
+     * Small batches are looked up one by one. Bigger batches are sorted, so hashes falling to the same node reuse its
+     * entry and only hashes past it descend the tree again.
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public void getNodesForEntries(long[] entryKeyHashes, NodeT[] out) {
+        Preconditions.checkArgument(out.length >= entryKeyHashes.length, "out array too short");
+        if (entryKeyHashes.length <= SMALL_BATCH_SIZE || nodeRing.isEmpty()) {
+            for (int i = 0; i < entryKeyHashes.length; i++) {
+                out[i] = getNodeForEntry(entryKeyHashes[i]);
+            }
+            return;
+        }
+
+        long[] sorted = entryKeyHashes.clone();
+        Arrays.sort(sorted);
+        Object[] sortedNodes = new Object[sorted.length];
+        NodeT first = nodeRing.firstEntry().getValue();
+        Entry<Long, NodeT> current = null;
+        for (int i = 0; i < sorted.length; i++) {
+            if (i == 0 || current != null && current.getKey() < sorted[i]) {
+                current = nodeRing.ceilingEntry(sorted[i]);
+            }
+            // past the last node: loop to beginning
+            sortedNodes[i] = current == null ? first : current.getValue();
+        }
+        for (int i = 0; i < entryKeyHashes.length; i++) {
+            // duplicate hashes map to the same node, so any match will do
+            out[i] = (NodeT) sortedNodes[Arrays.binarySearch(sorted, entryKeyHashes[i])];
+        }
+    }
+
     @Override
     public NodeT getNodeAfterNode(Long nodeKeyHash) {
+        return getNodeAfterNode(nodeKeyHash.longValue());
+    }
+
+    @Override
+    public NodeT getNodeAfterNode(long nodeKeyHash) {
         // +1 because nextInner.. is inclusive and long arith loops MIN_VAL at
         // end
         Entry<Long, NodeT> nextEntryInRing = nextInnerEntryInRing(nodeRing,
                 nodeKeyHash + 1);
         if (nextEntryInRing == null
-                || nextEntryInRing.getKey().equals(nodeKeyHash)) {
+                || nextEntryInRing.getKey() == nodeKeyHash) {
             return null;
         }
         return nextEntryInRing.getValue();
@@ -385,6 +345,11 @@ public class ConsistentHashRingImpl<NodeKeyT, NodeT, EntryKeyT, EntryT>
 
     @Override
     public NodeT getNodeBeforeNode(Long nodeKeyHash) {
+        return getNodeBeforeNode(nodeKeyHash.longValue());
+    }
+
+    @Override
+    public NodeT getNodeBeforeNode(long nodeKeyHash) {
         Entry<Long, NodeT> previousEntryInRing = previousInnerEntryInRingNonInclusive(nodeRing,
                 nodeKeyHash);
         // non-inclusive, so don't need to check key
@@ -398,6 +363,39 @@ public class ConsistentHashRingImpl<NodeKeyT, NodeT, EntryKeyT, EntryT>
         return getNodeAfterNode(hashNodeKey(key));
     }
 
+    @Override
+    public RingOwnershipChange<NodeT, EntryT> getOwnershipChangeForAdd(long nodeKeyHash, NodeT node) {
+        NodeT previous = nodeRing.get(nodeKeyHash);
+        if (previous != null) {
+            throw new IllegalArgumentException("Collision of node key hashes: "
+                    + previous + ".hashEquals(" + node + ")");
+        }
+        Long previousNodeInRing = previousKeyInRingNonInclusive(nodeRing, nodeKeyHash);
+        return createOwnershipChange(previousNodeInRing, nodeKeyHash, getNodeForEntry(nodeKeyHash), node);
+    }
+
+    @Override
+    public RingOwnershipChange<NodeT, EntryT> getOwnershipChangeForRemove(long nodeKeyHash) {
+        NodeT node = nodeRing.get(nodeKeyHash);
+        if (node == null) {
+            return null;
+        }
+        Long previousNodeInRing = previousKeyInRingNonInclusive(nodeRing, nodeKeyHash);
+        return createOwnershipChange(previousNodeInRing, nodeKeyHash, node, getNodeAfterNode(nodeKeyHash));
+    }
+
+    private RingOwnershipChange<NodeT, EntryT> createOwnershipChange(@Nullable Long previousNodeInRing,
+                                                                    long nodeKeyHash, @Nullable NodeT oldOwner,
+                                                                    @Nullable NodeT newOwner) {
+        if (previousNodeInRing == null) {
+            // no other node: the whole ring changes owner
+            return RingOwnershipChange.create(HashRange.create(nodeKeyHash, nodeKeyHash), oldOwner, newOwner,
+                    entryStore.getEntries());
+        }
+        return RingOwnershipChange.create(HashRange.create(previousNodeInRing, nodeKeyHash), oldOwner, newOwner,
+                entryStore.getEntriesInRange(previousNodeInRing, nodeKeyHash));
+    }
+
     public boolean isNodeForEntry(@Nullable NodeKeyT nodeKey, @Nullable EntryKeyT entryKey,
             boolean ensureNodeIsInRing) {
         if (nodeKey == null || entryKey == null) {
@@ -494,6 +492,23 @@ public class ConsistentHashRingImpl<NodeKeyT, NodeT, EntryKeyT, EntryT>
         return retval;
     }
 
+    /**
+     * @return a read-only copy of the current nodes, optimized for lookups. Entries are not copied.
+     */
+    public FrozenConsistentHashRing<NodeKeyT, NodeT, EntryKeyT, EntryT> freeze() {
+        return freeze(0);
+    }
+
+    /**
+     * @param lookupIndexBits see {@link FrozenConsistentHashRing#create(HashFunction, ConsistentHashRings.RingHasher,
+     *                        ConsistentHashRings.RingHasher, Iterable, int)}
+     * @return a read-only copy of the current nodes, optimized for lookups. Entries are not copied.
+     */
+    public FrozenConsistentHashRing<NodeKeyT, NodeT, EntryKeyT, EntryT> freeze(int lookupIndexBits) {
+        return FrozenConsistentHashRing.<NodeKeyT, NodeT, EntryKeyT, EntryT>create(hashFunction, nodeHasher,
+                entryHasher, nodeRing.entrySet(), lookupIndexBits);
+    }
+
     // public interface Node<NodeKeyT2> {
     // NodeKeyT2 getKey();
     // }
@@ -3,6 +3,7 @@ package de.deverado.framework.concurrent.consistenthashing;
 import com.google.common.base.Charsets;
 import com.google.common.base.Function;
 import com.google.common.base.Objects;
+import com.google.common.base.Preconditions;
 import com.google.common.collect.Multimap;
 import com.google.common.hash.HashCode;
 import com.google.common.hash.HashFunction;
@@ -118,6 +119,32 @@ public class ConsistentHashRings {
                 SHA1_HASH_FUNC, DEFAULT_32_BIT_HASHER, DEFAULT_32_BIT_HASHER);
     }
 
+    /**
+     * @return a read-only lookup-optimized copy of the given ring's nodes, or the ring itself if it is already frozen.
+     * @throws IllegalArgumentException if the ring's type is not known to be freezable
+     */
+    public static <NodeKeyT, NodeT, EntryKeyT, EntryT> FrozenConsistentHashRing<NodeKeyT, NodeT, EntryKeyT, EntryT> freeze(
+            ConsistentHashRingHoldingResourceEntries<NodeKeyT, NodeT, EntryKeyT, EntryT> ring) {
+        return freeze(ring, 0);
+    }
+
+    /**
+     * @param lookupIndexBits 0 for none, see {@link FrozenConsistentHashRing#suggestLookupIndexBits(int)}. If the
+     *                        ring is already frozen it is returned as is - no matter its index.
+     * @return a read-only lookup-optimized copy of the given ring's nodes, or the ring itself if it is already frozen.
+     * @throws IllegalArgumentException if the ring's type is not known to be freezable
+     */
+    public static <NodeKeyT, NodeT, EntryKeyT, EntryT> FrozenConsistentHashRing<NodeKeyT, NodeT, EntryKeyT, EntryT> freeze(
+            ConsistentHashRingHoldingResourceEntries<NodeKeyT, NodeT, EntryKeyT, EntryT> ring, int lookupIndexBits) {
+        if (ring instanceof FrozenConsistentHashRing) {
+            return (FrozenConsistentHashRing<NodeKeyT, NodeT, EntryKeyT, EntryT>) ring;
+        }
+        if (ring instanceof ConsistentHashRingImpl) {
+            return ((ConsistentHashRingImpl<NodeKeyT, NodeT, EntryKeyT, EntryT>) ring).freeze(lookupIndexBits);
+        }
+        throw new IllegalArgumentException("Don't know how to freeze ring of type " + ring.getClass());
+    }
+
     public static <NodeKeyT, NodeT, EntryKeyT, EntryT> ConsistentHashRingHoldingResourceEntries<NodeKeyT, NodeT, EntryKeyT, EntryT> singletonNodeRing(
             final @Nullable HashFunction func, final RingHasher<NodeKeyT> nodeHasher,
             final RingHasher<EntryKeyT> entryHasher, @Nullable final NodeKeyT key,
@@ -246,7 +273,12 @@ public class ConsistentHashRings {
 
             @Override
             public NodeT getNodeBeforeNode(Long nodeKeyHash) {
-                if (hash.longValue() != nodeKeyHash.longValue()) {
+                return getNodeBeforeNode(nodeKeyHash.longValue());
+            }
+
+            @Override
+            public NodeT getNodeBeforeNode(long nodeKeyHash) {
+                if (hash.longValue() != nodeKeyHash) {
                     return node;
                 }
                 return null;
@@ -254,7 +286,12 @@ public class ConsistentHashRings {
 
             @Override
             public NodeT getNodeAfterNode(Long nodeKeyHash) {
-                if (hash.longValue() != nodeKeyHash.longValue()) {
+                return getNodeAfterNode(nodeKeyHash.longValue());
+            }
+
+            @Override
+            public NodeT getNodeAfterNode(long nodeKeyHash) {
+                if (hash.longValue() != nodeKeyHash) {
                     return node;
                 }
                 return null;
@@ -273,12 +310,48 @@ public class ConsistentHashRings {
                 return node;
             }
 
+            @Override
+            public RingOwnershipChange<NodeT, EntryT> getOwnershipChangeForAdd(long nodeKeyHash, NodeT nodeParam) {
+                if (node == null) {
+                    return RingOwnershipChange.create(HashRange.create(nodeKeyHash, nodeKeyHash), null, nodeParam,
+                            Collections.<EntryT>emptyList());
+                }
+                if (hash.longValue() == nodeKeyHash) {
+                    throw new IllegalArgumentException("Collision of node key hashes: "
+                            + node + ".hashEquals(" + nodeParam + ")");
+                }
+                return RingOwnershipChange.create(HashRange.create(hash, nodeKeyHash), node, nodeParam,
+                        Collections.<EntryT>emptyList());
+            }
+
+            @Override
+            public RingOwnershipChange<NodeT, EntryT> getOwnershipChangeForRemove(long nodeKeyHash) {
+                if (node == null || hash.longValue() != nodeKeyHash) {
+                    return null;
+                }
+                return RingOwnershipChange.create(HashRange.create(nodeKeyHash, nodeKeyHash), node, null,
+                        Collections.<EntryT>emptyList());
+            }
+
+            @Override
+            public void getNodesForEntries(long[] entryKeyHashes, NodeT[] out) {
+                Preconditions.checkArgument(out.length >= entryKeyHashes.length, "out array too short");
+                // all entries go to one node, null is also possible
+                Arrays.fill(out, 0, entryKeyHashes.length, node);
+            }
+
             @Override
             public NodeT getNodeForEntry(Long entryKeyHash) {
                 // all entries go to one node, null is also possible
                 return node;
             }
 
+            @Override
+            public NodeT getNodeForEntry(long entryKeyHash) {
+                // all entries go to one node, null is also possible
+                return node;
+            }
+
             public boolean isNodeForEntry(@Nullable NodeKeyT nodeKey, @Nullable EntryKeyT entryKey,
                     boolean ensureNodeIsInRing) {
                 if (nodeKey == null || entryKey == null) {
@@ -370,6 +443,10 @@ public class ConsistentHashRings {
         return result;
     }
 
+    /**
+     * Ownership of random vnodes varies by 10% and more even with hundreds of vnodes per machine, see
+     * {@link TokenAllocator} for tokens with even ownership.
+     */
     public static long[] createRandomVnodes(Random random, String additionalRandData, int vnodeCount) {
         long[] result = new long[vnodeCount];
         for (int i = 0; i < vnodeCount; i++) {
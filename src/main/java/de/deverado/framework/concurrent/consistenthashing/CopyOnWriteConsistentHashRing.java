@@ -0,0 +1,439 @@
+package de.deverado.framework.concurrent.consistenthashing;/*
+ * Copyright Georg Koester 2012-15. All rights reserved.
+ */
+
+import com.google.common.base.Function;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Maps;
+import com.google.common.hash.HashFunction;
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Thread-safe ring: The nodes are published as an immutable {@link FrozenConsistentHashRing} snapshot through a
+ * single volatile field. Readers never lock - every lookup works on the snapshot that was current when it started.
+ * Writers serialize, copy the current nodes, apply their changes and swap in the new snapshot. Use {@link #edit()} to
+ * publish several node changes at once, the single node methods publish one snapshot each.
+ * <p>
+ * Entries are held in a {@link ConcurrentSkipListMap} with immutable per-hash maps that are replaced on change, so
+ * entry reads don't lock either.
+ * </p>
+ * <p>
+ * Node changes cost a copy of the node list, so this ring suits read-mostly use, like routing.
+ * </p>
+ */
+@ParametersAreNonnullByDefault
+public class CopyOnWriteConsistentHashRing<NodeKeyT, NodeT, EntryKeyT, EntryT>
+        implements
+        ConsistentHashRingHoldingResourceEntries<NodeKeyT, NodeT, EntryKeyT, EntryT> {
+
+    private final HashFunction hashFunction;
+    private final ConsistentHashRings.RingHasher<? super NodeKeyT> nodeHasher;
+    private final ConsistentHashRings.RingHasher<? super EntryKeyT> entryHasher;
+    private final int lookupIndexBits;
+
+    private final Object writeLock = new Object();
+
+    private volatile FrozenConsistentHashRing<NodeKeyT, NodeT, EntryKeyT, EntryT> snapshot;
+
+    private final ConcurrentSkipListMap<Long, Map<EntryKeyT, EntryT>> entryRing = new ConcurrentSkipListMap<>();
+
+    public CopyOnWriteConsistentHashRing(@Nullable HashFunction hashFunction,
+                                         ConsistentHashRings.RingHasher<? super NodeKeyT> nodeHasher,
+                                         ConsistentHashRings.RingHasher<? super EntryKeyT> entryHasher) {
+        this(hashFunction, nodeHasher, entryHasher, 0);
+    }
+
+    /**
+     * @param lookupIndexBits for every published snapshot, see
+     *                        {@link FrozenConsistentHashRing#suggestLookupIndexBits(int)}.
+     */
+    public CopyOnWriteConsistentHashRing(@Nullable HashFunction hashFunction,
+                                         ConsistentHashRings.RingHasher<? super NodeKeyT> nodeHasher,
+                                         ConsistentHashRings.RingHasher<? super EntryKeyT> entryHasher,
+                                         int lookupIndexBits) {
+        this.hashFunction = hashFunction;
+        this.nodeHasher = nodeHasher;
+        this.entryHasher = entryHasher;
+        this.lookupIndexBits = lookupIndexBits;
+        this.snapshot = createSnapshot(new TreeMap<Long, NodeT>());
+    }
+
+    private FrozenConsistentHashRing<NodeKeyT, NodeT, EntryKeyT, EntryT> createSnapshot(TreeMap<Long, NodeT> nodes) {
+        return FrozenConsistentHashRing.<NodeKeyT, NodeT, EntryKeyT, EntryT>create(hashFunction, nodeHasher,
+                entryHasher, nodes.entrySet(), lookupIndexBits);
+    }
+
+    /**
+     * @return the current nodes. Use it for several lookups that must see the same ring.
+     */
+    public FrozenConsistentHashRing<NodeKeyT, NodeT, EntryKeyT, EntryT> getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * @return a batch of node changes that is published as one new snapshot on {@link Batch#commit()}.
+     */
+    public Batch edit() {
+        return new Batch();
+    }
+
+    /**
+     * Node changes, applied in the order they were given. Not thread-safe itself.
+     */
+    public class Batch {
+
+        private final List<Map.Entry<Long, NodeT>> changes = new ArrayList<>();
+
+        private Batch() {
+        }
+
+        public Batch addNode(NodeKeyT key, NodeT node) {
+            return addNodeByHash(hashNodeKey(key), node);
+        }
+
+        public Batch addNodeByHash(long hashNodeKey, NodeT node) {
+            if (node == null) {
+                throw new IllegalArgumentException("node must not be null");
+            }
+            changes.add(Maps.immutableEntry(hashNodeKey, node));
+            return this;
+        }
+
+        public Batch removeNode(NodeKeyT key) {
+            return removeNodeByHash(hashNodeKey(key));
+        }
+
+        public Batch removeNodeByHash(long hashNodeKey) {
+            changes.add(Maps.<Long, NodeT>immutableEntry(hashNodeKey, null));
+            return this;
+        }
+
+        /**
+         * Publishes all changes at once, or none of them.
+         *
+         * @return the nodes removed by this batch, in order.
+         * @throws IllegalArgumentException on a collision of node key hashes, like
+         *                                  {@link ConsistentHashRingImpl#addNodeByHash(Long, Object)}.
+         */
+        public List<NodeT> commit() {
+            List<NodeT> removed = new ArrayList<>();
+            synchronized (writeLock) {
+                TreeMap<Long, NodeT> nodes = new TreeMap<>();
+                for (Map.Entry<Long, NodeT> e : snapshot.getNodeEntries()) {
+                    nodes.put(e.getKey(), e.getValue());
+                }
+                for (Map.Entry<Long, NodeT> change : changes) {
+                    if (change.getValue() == null) {
+                        NodeT previous = nodes.remove(change.getKey());
+                        if (previous != null) {
+                            removed.add(previous);
+                        }
+                    } else {
+                        NodeT previous = nodes.put(change.getKey(), change.getValue());
+                        if (previous != null) {
+                            throw new IllegalArgumentException("Collision of node key hashes: "
+                                    + previous + ".hashEquals(" + change.getValue() + ")");
+                        }
+                    }
+                }
+                snapshot = createSnapshot(nodes);
+            }
+            changes.clear();
+            return removed;
+        }
+    }
+
+    @Override
+    public long hashEntryKey(@Nullable EntryKeyT key) {
+        return ConsistentHashRings.hashKey(hashFunction, entryHasher, key);
+    }
+
+    @Override
+    public long hashNodeKey(@Nullable NodeKeyT key) {
+        return ConsistentHashRings.hashKey(hashFunction, nodeHasher, key);
+    }
+
+    /**
+     * Publishes a new snapshot.
+     */
+    @Override
+    public NodeT addNode(NodeKeyT key, NodeT node) {
+        return addNodeByHash(hashNodeKey(key), node);
+    }
+
+    /**
+     * Publishes a new snapshot.
+     *
+     * @return always <code>null</code>, collisions throw an {@link IllegalArgumentException}
+     */
+    @Override
+    public NodeT addNodeByHash(Long hashNodeKey, NodeT node) {
+        edit().addNodeByHash(hashNodeKey, node).commit();
+        return null;
+    }
+
+    /**
+     * Publishes a new snapshot.
+     */
+    @Override
+    public NodeT removeNode(NodeKeyT key) {
+        return removeNodeByHash(hashNodeKey(key));
+    }
+
+    /**
+     * Publishes a new snapshot if the node was in the ring.
+     */
+    @Override
+    public NodeT removeNodeByHash(Long hashNodeKey) {
+        if (!snapshot.isHavingNode(hashNodeKey)) {
+            return null;
+        }
+        List<NodeT> removed = edit().removeNodeByHash(hashNodeKey).commit();
+        return removed.isEmpty() ? null : removed.get(0);
+    }
+
+    @Override
+    public boolean isHavingNode(@Nullable NodeKeyT key) {
+        return snapshot.isHavingNode(key);
+    }
+
+    @Override
+    public boolean isHavingNode(@Nullable Long nodeKeyHash) {
+        return snapshot.isHavingNode(nodeKeyHash);
+    }
+
+    @Override
+    public Iterable<EntryT> getEntriesForNode(NodeKeyT nodeKey, boolean checkNodeInRing) {
+        long nodeHash = hashNodeKey(nodeKey);
+        FrozenConsistentHashRing<NodeKeyT, NodeT, EntryKeyT, EntryT> nodes = snapshot;
+        if (checkNodeInRing && nodes.indexOfToken(nodeHash) < 0) {
+            throw new IllegalArgumentException("Given node key is not used in ring: " + nodeKey);
+        }
+
+        int previousIdx = nodes.indexOfNodeBeforeNode(nodeHash);
+        return getEntriesInRange(previousIdx < 0 ? nodeHash : nodes.getToken(previousIdx), nodeHash);
+    }
+
+    /**
+     * @see HashRange
+     */
+    private Iterable<EntryT> getEntriesInRange(long fromExclusive, long toInclusive) {
+        if (fromExclusive == toInclusive) {
+            // only one node in ring, return all
+            return iterateEntries(entryRing.values());
+        } else if (fromExclusive > toInclusive) {
+            // need to loop
+            return Iterables.concat(
+                    iterateEntries(entryRing.tailMap(fromExclusive, false).values()),
+                    iterateEntries(entryRing.headMap(toInclusive, true).values()));
+        } else {
+            return iterateEntries(entryRing.subMap(fromExclusive, false, toInclusive, true).values());
+        }
+    }
+
+    /**
+     * Computed on the current snapshot, the entries are those of this ring.
+     */
+    @Override
+    public RingOwnershipChange<NodeT, EntryT> getOwnershipChangeForAdd(long nodeKeyHash, NodeT node) {
+        RingOwnershipChange<NodeT, EntryT> change = snapshot.getOwnershipChangeForAdd(nodeKeyHash, node);
+        return withEntries(change);
+    }
+
+    /**
+     * Computed on the current snapshot, the entries are those of this ring.
+     */
+    @Override
+    public RingOwnershipChange<NodeT, EntryT> getOwnershipChangeForRemove(long nodeKeyHash) {
+        RingOwnershipChange<NodeT, EntryT> change = snapshot.getOwnershipChangeForRemove(nodeKeyHash);
+        return change == null ? null : withEntries(change);
+    }
+
+    private RingOwnershipChange<NodeT, EntryT> withEntries(RingOwnershipChange<NodeT, EntryT> change) {
+        HashRange range = change.getRange();
+        return RingOwnershipChange.create(range, change.getOldOwner(), change.getNewOwner(),
+                getEntriesInRange(range.getFromExclusive(), range.getToInclusive()));
+    }
+
+    private Iterable<EntryT> iterateEntries(Collection<Map<EntryKeyT, EntryT>> collection) {
+        return Iterables.concat(Iterables.transform(collection,
+                new Function<Map<EntryKeyT, EntryT>, Iterable<EntryT>>() {
+                    @Override
+                    public Iterable<EntryT> apply(Map<EntryKeyT, EntryT> input) {
+                        return input.values();
+                    }
+                }));
+    }
+
+    @Override
+    public Iterable<NodeT> getNodes() {
+        return snapshot.getNodes();
+    }
+
+    @Override
+    public Iterable<Map.Entry<Long, NodeT>> getNodeEntries() {
+        return snapshot.getNodeEntries();
+    }
+
+    @Override
+    public NodeT getNode(@Nullable NodeKeyT nodeKey) {
+        return snapshot.getNode(nodeKey);
+    }
+
+    @Override
+    public NodeT getNodeByHash(@Nullable Long nodeKey) {
+        return snapshot.getNodeByHash(nodeKey);
+    }
+
+    @Override
+    public Iterable<EntryT> getEntries() {
+        return iterateEntries(entryRing.values());
+    }
+
+    @Override
+    public EntryT getEntry(@Nullable EntryKeyT key) {
+        if (key == null) {
+            return null;
+        }
+        Map<EntryKeyT, EntryT> inner = entryRing.get(hashEntryKey(key));
+        return inner != null ? inner.get(key) : null;
+    }
+
+    /**
+     * Lock-free: retries if another thread changed entries with the same hash concurrently.
+     */
+    @Override
+    public EntryT putEntry(EntryKeyT key, EntryT entry) {
+        Long hash = hashEntryKey(key);
+        while (true) {
+            Map<EntryKeyT, EntryT> inner = entryRing.get(hash);
+            if (inner == null) {
+                if (entryRing.putIfAbsent(hash, Collections.singletonMap(key, entry)) == null) {
+                    return null;
+                }
+            } else {
+                TreeMap<EntryKeyT, EntryT> changed = new TreeMap<>(inner);
+                EntryT retval = changed.put(key, entry);
+                Map<EntryKeyT, EntryT> replacement = changed.size() == 1 ? Collections.singletonMap(key, entry)
+                        : Collections.unmodifiableMap(changed);
+                if (entryRing.replace(hash, inner, replacement)) {
+                    return retval;
+                }
+            }
+        }
+    }
+
+    /**
+     * Lock-free: retries if another thread changed entries with the same hash concurrently.
+     */
+    @Override
+    public EntryT removeEntry(@Nullable EntryKeyT key) {
+        if (key == null) {
+            return null;
+        }
+        Long hash = hashEntryKey(key);
+        while (true) {
+            Map<EntryKeyT, EntryT> inner = entryRing.get(hash);
+            if (inner == null || !inner.containsKey(key)) {
+                return null;
+            }
+            EntryT retval = inner.get(key);
+            boolean done;
+            if (inner.size() == 1) {
+                done = entryRing.remove(hash, inner);
+            } else {
+                TreeMap<EntryKeyT, EntryT> changed = new TreeMap<>(inner);
+                changed.remove(key);
+                done = entryRing.replace(hash, inner, Collections.unmodifiableMap(changed));
+            }
+            if (done) {
+                return retval;
+            }
+        }
+    }
+
+    @Override
+    public int getNodeCount() {
+        return snapshot.getNodeCount();
+    }
+
+    @Override
+    public boolean isHavingNodes() {
+        return snapshot.isHavingNodes();
+    }
+
+    @Override
+    public boolean isWithoutNodes() {
+        return snapshot.isWithoutNodes();
+    }
+
+    @Override
+    public NodeT getNodeBeforeNode(Long nodeKeyHash) {
+        return snapshot.getNodeBeforeNode(nodeKeyHash);
+    }
+
+    @Override
+    public NodeT getNodeBeforeNode(long nodeKeyHash) {
+        return snapshot.getNodeBeforeNode(nodeKeyHash);
+    }
+
+    @Override
+    public NodeT getNodeAfterNode(NodeKeyT key) {
+        return snapshot.getNodeAfterNode(key);
+    }
+
+    @Override
+    public NodeT getNodeAfterNode(Long nodeKeyHash) {
+        return snapshot.getNodeAfterNode(nodeKeyHash);
+    }
+
+    @Override
+    public NodeT getNodeAfterNode(long nodeKeyHash) {
+        return snapshot.getNodeAfterNode(nodeKeyHash);
+    }
+
+    @Override
+    public NodeT getNodeForEntry(EntryKeyT key) {
+        return snapshot.getNodeForEntry(key);
+    }
+
+    @Override
+    public NodeT getNodeForEntry(Long entryKeyHash) {
+        return snapshot.getNodeForEntry(entryKeyHash);
+    }
+
+    @Override
+    public NodeT getNodeForEntry(long entryKeyHash) {
+        return snapshot.getNodeForEntry(entryKeyHash);
+    }
+
+    /**
+     * All hashes are resolved on the same snapshot.
+     */
+    @Override
+    public void getNodesForEntries(long[] entryKeyHashes, NodeT[] out) {
+        snapshot.getNodesForEntries(entryKeyHashes, out);
+    }
+
+    @Override
+    public boolean isNodeForEntry(@Nullable NodeKeyT nodeKey, @Nullable EntryKeyT entryKey,
+                                  boolean ensureNodeIsInRing) {
+        return snapshot.isNodeForEntry(nodeKey, entryKey, ensureNodeIsInRing);
+    }
+
+    @Override
+    public String toString() {
+        return "CopyOnWriteConsistentHashRing{" +
+                "nodeCount=" + snapshot.getNodeCount() +
+                '}';
+    }
+}
@@ -3,6 +3,7 @@ package de.deverado.framework.concurrent.consistenthashing;/*
  */
 
 import com.google.common.collect.Iterables;
+import de.deverado.framework.concurrent.Sharding;
 
 import java.util.ArrayList;
 import java.util.Iterator;
@@ -12,14 +13,54 @@ public class FixedShardCountPrefixShardIdGenerator implements Iterable<String> {
 
     private String prefix;
     private int shardCount;
+    private Sharding.ShardingStrategy shardingStrategy;
 
+    /**
+     * Keys are mapped to shard ids with a {@link Sharding.ShardByJumpConsistentHashStrategy}.
+     */
     public static FixedShardCountPrefixShardIdGenerator create(String prefix, int shardCount) {
+        return create(prefix, new Sharding.ShardByJumpConsistentHashStrategy(shardCount));
+    }
+
+    /**
+     * @param shardingStrategy maps keys to shards in {@link #getShardIdForKey(CharSequence)}, its shard count is
+     *                         used.
+     */
+    public static FixedShardCountPrefixShardIdGenerator create(String prefix,
+                                                               Sharding.ShardingStrategy shardingStrategy) {
         FixedShardCountPrefixShardIdGenerator result = new FixedShardCountPrefixShardIdGenerator();
         result.prefix = prefix;
-        result.shardCount = shardCount;
+        result.shardCount = shardingStrategy.getShardCount();
+        result.shardingStrategy = shardingStrategy;
         return result;
     }
 
+    public int getShardCount() {
+        return shardCount;
+    }
+
+    /**
+     * @return the shard for the key, as returned by the sharding strategy.
+     */
+    public int getShardForKey(CharSequence key) {
+        return shardingStrategy.shard(key);
+    }
+
+    /**
+     * @return the id of the shard for the key, one of the ids this generator iterates.
+     */
+    public String getShardIdForKey(CharSequence key) {
+        return getShardId(getShardForKey(key));
+    }
+
+    public String getShardId(int shard) {
+        return getRealPrefix() + shard;
+    }
+
+    private String getRealPrefix() {
+        return prefix + (prefix.endsWith("-") ? "" : "-");
+    }
+
     public List<String> asList() {
         List<String> result = new ArrayList<>(shardCount);
         Iterables.addAll(result, this);
@@ -28,7 +69,7 @@ public class FixedShardCountPrefixShardIdGenerator implements Iterable<String> {
 
     @Override
     public Iterator<String> iterator() {
-        final String realPrefix = prefix + (prefix.endsWith("-") ? "" : "-");
+        final String realPrefix = getRealPrefix();
         final StringBuilder builder = new StringBuilder(realPrefix.length() + 6);
         builder.append(realPrefix);
 
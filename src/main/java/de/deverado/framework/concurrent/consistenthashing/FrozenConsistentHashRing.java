@@ -0,0 +1,551 @@
+package de.deverado.framework.concurrent.consistenthashing;/*
+ * Copyright Georg Koester 2012-15. All rights reserved.
+ */
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+import com.google.common.hash.HashFunction;
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Read-only ring for routing: The node tokens are kept in a sorted <code>long[]</code> with a parallel node array, so
+ * looking up a node is a primitive binary search - no boxing, no tree walking. Ordering and ownership semantics are
+ * the same as in {@link ConsistentHashRingImpl}: A node owns the hashes that are equal to its token or smaller than
+ * its token and bigger than the token of the node before it, looping around at the end of the ring.
+ * <p>
+ * Optionally a lookup index can be built when freezing: A table indexed by the top bits of the hash that points at the
+ * first token in that hash range bucket. A lookup then is one table read and a short local scan instead of ~log2(n)
+ * dependent, mostly cache-missing binary search probes. With about one token per bucket
+ * ({@link #suggestLookupIndexBits(int)}) the table costs 4 bytes per token.
+ * </p>
+ * <p>
+ * The frozen ring doesn't hold resource entries - it is meant for rings that only map hashes to nodes, like the one in
+ * {@link VNodeConsistentHashRing}. All modifying methods throw {@link UnsupportedOperationException}. Create it
+ * with {@link ConsistentHashRingImpl#freeze()} or
+ * {@link ConsistentHashRings#freeze(ConsistentHashRingHoldingResourceEntries)}.
+ * </p>
+ */
+@ParametersAreNonnullByDefault
+public class FrozenConsistentHashRing<NodeKeyT, NodeT, EntryKeyT, EntryT>
+        implements
+        ConsistentHashRingHoldingResourceEntries<NodeKeyT, NodeT, EntryKeyT, EntryT> {
+
+    private final HashFunction hashFunction;
+    private final ConsistentHashRings.RingHasher<Object> nodeHasher;
+    private final ConsistentHashRings.RingHasher<Object> entryHasher;
+
+    private final long[] tokens;
+    private final Object[] nodes;
+
+    private final List<NodeT> nodeList;
+
+    public static final int MAX_LOOKUP_INDEX_BITS = 24;
+
+    /**
+     * Buckets with more tokens than this are binary searched instead of scanned.
+     */
+    static final int LINEAR_SCAN_LIMIT = 8;
+
+    /**
+     * 0 if there is no lookup index.
+     */
+    private final int lookupIndexBits;
+
+    /**
+     * Index of the first token per bucket, one additional entry at the end containing the token count. Null if there
+     * is no lookup index.
+     */
+    private final int[] bucketStarts;
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private FrozenConsistentHashRing(@Nullable HashFunction hashFunction,
+                                     ConsistentHashRings.RingHasher<?> nodeHasher,
+                                     ConsistentHashRings.RingHasher<?> entryHasher,
+                                     long[] tokens, Object[] nodes, int lookupIndexBits) {
+        if (lookupIndexBits < 0 || lookupIndexBits > MAX_LOOKUP_INDEX_BITS) {
+            throw new IllegalArgumentException("lookupIndexBits must be between 0 and " + MAX_LOOKUP_INDEX_BITS
+                    + ", got: " + lookupIndexBits);
+        }
+        this.hashFunction = hashFunction;
+        this.nodeHasher = (ConsistentHashRings.RingHasher<Object>) nodeHasher;
+        this.entryHasher = (ConsistentHashRings.RingHasher<Object>) entryHasher;
+        this.tokens = tokens;
+        this.nodes = nodes;
+        this.nodeList = Collections.unmodifiableList((List<NodeT>) Arrays.asList(nodes));
+        this.lookupIndexBits = lookupIndexBits;
+        this.bucketStarts = lookupIndexBits > 0 ? buildLookupIndex(tokens, lookupIndexBits) : null;
+    }
+
+    /**
+     * @param nodeEntries token to node mapping, doesn't have to be sorted.
+     * @throws IllegalArgumentException on duplicate tokens
+     */
+    public static <NodeKeyT, NodeT, EntryKeyT, EntryT> FrozenConsistentHashRing<NodeKeyT, NodeT, EntryKeyT, EntryT> create(
+            @Nullable HashFunction hashFunction,
+            ConsistentHashRings.RingHasher<? super NodeKeyT> nodeHasher,
+            ConsistentHashRings.RingHasher<? super EntryKeyT> entryHasher,
+            Iterable<? extends Map.Entry<Long, ? extends NodeT>> nodeEntries) {
+        return create(hashFunction, nodeHasher, entryHasher, nodeEntries, 0);
+    }
+
+    /**
+     * @param nodeEntries token to node mapping, doesn't have to be sorted.
+     * @param lookupIndexBits 0 for no lookup index, else the number of hash bits to build the lookup index for, max
+     *                        {@link #MAX_LOOKUP_INDEX_BITS}. See {@link #suggestLookupIndexBits(int)}.
+     * @throws IllegalArgumentException on duplicate tokens
+     */
+    public static <NodeKeyT, NodeT, EntryKeyT, EntryT> FrozenConsistentHashRing<NodeKeyT, NodeT, EntryKeyT, EntryT> create(
+            @Nullable HashFunction hashFunction,
+            ConsistentHashRings.RingHasher<? super NodeKeyT> nodeHasher,
+            ConsistentHashRings.RingHasher<? super EntryKeyT> entryHasher,
+            Iterable<? extends Map.Entry<Long, ? extends NodeT>> nodeEntries, int lookupIndexBits) {
+
+        List<Map.Entry<Long, ? extends NodeT>> entries = new ArrayList<>();
+        boolean sorted = true;
+        Long last = null;
+        for (Map.Entry<Long, ? extends NodeT> e : nodeEntries) {
+            if (last != null && last >= e.getKey()) {
+                sorted = false;
+            }
+            last = e.getKey();
+            entries.add(e);
+        }
+
+        long[] tokens = new long[entries.size()];
+        Object[] nodes = new Object[entries.size()];
+        if (!sorted) {
+            Collections.sort(entries, new java.util.Comparator<Map.Entry<Long, ? extends NodeT>>() {
+                @Override
+                public int compare(Map.Entry<Long, ? extends NodeT> o1, Map.Entry<Long, ? extends NodeT> o2) {
+                    return o1.getKey().compareTo(o2.getKey());
+                }
+            });
+        }
+        int i = 0;
+        for (Map.Entry<Long, ? extends NodeT> e : entries) {
+            if (i > 0 && tokens[i - 1] == e.getKey()) {
+                throw new IllegalArgumentException("Collision of node key hashes: "
+                        + nodes[i - 1] + ".hashEquals(" + e.getValue() + ")");
+            }
+            tokens[i] = e.getKey();
+            nodes[i] = e.getValue();
+            i++;
+        }
+        return new FrozenConsistentHashRing<>(hashFunction, nodeHasher, entryHasher, tokens, nodes,
+                lookupIndexBits);
+    }
+
+    /**
+     * For building rings from already sorted nodes without going through a {@link ConsistentHashRingImpl}.
+     *
+     * @param tokens sorted without duplicates, not copied.
+     * @param nodes  parallel to tokens, not copied.
+     * @return a ring with the hashing of this ring and the given nodes.
+     */
+    FrozenConsistentHashRing<NodeKeyT, NodeT, EntryKeyT, EntryT> withNodes(long[] tokens, Object[] nodes,
+                                                                          int lookupIndexBits) {
+        Preconditions.checkArgument(tokens.length == nodes.length, "tokens and nodes differ in length");
+        return new FrozenConsistentHashRing<>(hashFunction, nodeHasher, entryHasher, tokens, nodes, lookupIndexBits);
+    }
+
+    /**
+     * @return index bits so that there is about one token per bucket.
+     */
+    public static int suggestLookupIndexBits(int tokenCount) {
+        int bits = 32 - Integer.numberOfLeadingZeros(Math.max(1, tokenCount - 1)); // ceil(log2)
+        return Math.max(1, Math.min(MAX_LOOKUP_INDEX_BITS, bits));
+    }
+
+    static int[] buildLookupIndex(long[] tokens, int bits) {
+        int bucketCount = 1 << bits;
+        int[] result = new int[bucketCount + 1];
+        int t = 0;
+        for (int b = 0; b < bucketCount; b++) {
+            result[b] = t;
+            while (t < tokens.length && bucketOf(tokens[t], bits) <= b) {
+                t++;
+            }
+        }
+        result[bucketCount] = tokens.length;
+        return result;
+    }
+
+    /**
+     * Flipping the sign bit makes the bucket numbers follow the signed token order.
+     */
+    static int bucketOf(long hash, int bits) {
+        return (int) ((hash ^ Long.MIN_VALUE) >>> (64 - bits));
+    }
+
+    public int getLookupIndexBits() {
+        return lookupIndexBits;
+    }
+
+    @Override
+    public long hashEntryKey(@Nullable EntryKeyT key) {
+        return ConsistentHashRings.hashKey(hashFunction, entryHasher, key);
+    }
+
+    @Override
+    public long hashNodeKey(@Nullable NodeKeyT key) {
+        return ConsistentHashRings.hashKey(hashFunction, nodeHasher, key);
+    }
+
+    /**
+     * @return number of tokens/nodes in the ring, same as {@link #getNodeCount()}.
+     */
+    public int getTokenCount() {
+        return tokens.length;
+    }
+
+    public long getToken(int index) {
+        return tokens[index];
+    }
+
+    @SuppressWarnings("unchecked")
+    public NodeT getNodeAt(int index) {
+        return (NodeT) nodes[index];
+    }
+
+    /**
+     * @return the index of the given token or a negative value if it is not in the ring.
+     */
+    public int indexOfToken(long token) {
+        int idx = ceilingIndex(token);
+        return idx < tokens.length && tokens[idx] == token ? idx : -1;
+    }
+
+    /**
+     * @return <code>-1</code> for an empty ring. The index of the node owning the hash: the one with the given hash
+     * as token or the next bigger token (or after a loop the smallest token).
+     */
+    public int indexOfNodeForEntry(long entryKeyHash) {
+        if (tokens.length == 0) {
+            return -1;
+        }
+        int idx = ceilingIndex(entryKeyHash);
+        if (idx == tokens.length) {
+            idx = 0; // loop to beginning
+        }
+        return idx;
+    }
+
+    /**
+     * @return index of the first token bigger or equal than the given hash, the token count if there is none.
+     */
+    private int ceilingIndex(long hash) {
+        int from = 0;
+        int to = tokens.length;
+        if (bucketStarts != null) {
+            int bucket = bucketOf(hash, lookupIndexBits);
+            from = bucketStarts[bucket];
+            to = bucketStarts[bucket + 1];
+            // tokens before the bucket are smaller, after it are bigger, so the result is in [from, to]
+            if (to - from <= LINEAR_SCAN_LIMIT) {
+                while (from < to && tokens[from] < hash) {
+                    from++;
+                }
+                return from;
+            }
+        }
+        int idx = Arrays.binarySearch(tokens, from, to, hash);
+        return idx >= 0 ? idx : -idx - 1; // insertion point: first bigger token
+    }
+
+    /**
+     * @return index of the biggest token less or equal than the given hash, <code>-1</code> if there is none.
+     */
+    private int floorIndex(long hash) {
+        int idx = ceilingIndex(hash);
+        if (idx < tokens.length && tokens[idx] == hash) {
+            return idx;
+        }
+        return idx - 1;
+    }
+
+    @Override
+    public NodeT addNode(NodeKeyT key, NodeT node) {
+        throw new UnsupportedOperationException("frozen ring is read-only");
+    }
+
+    @Override
+    public NodeT addNodeByHash(Long hashNodeKey, NodeT node) {
+        throw new UnsupportedOperationException("frozen ring is read-only");
+    }
+
+    @Override
+    public NodeT removeNode(NodeKeyT key) {
+        throw new UnsupportedOperationException("frozen ring is read-only");
+    }
+
+    @Override
+    public NodeT removeNodeByHash(Long hashNodeKey) {
+        throw new UnsupportedOperationException("frozen ring is read-only");
+    }
+
+    @Override
+    public boolean isHavingNode(@Nullable NodeKeyT key) {
+        if (key == null) {
+            return false;
+        }
+        return indexOfToken(hashNodeKey(key)) >= 0;
+    }
+
+    @Override
+    public boolean isHavingNode(@Nullable Long nodeKeyHash) {
+        if (nodeKeyHash == null) {
+            return false;
+        }
+        return indexOfToken(nodeKeyHash) >= 0;
+    }
+
+    /**
+     * The frozen ring doesn't hold entries, so this is always empty.
+     */
+    @Override
+    public Iterable<EntryT> getEntriesForNode(NodeKeyT nodeKey, boolean checkNodeInRing) {
+        if (checkNodeInRing && !isHavingNode(nodeKey)) {
+            throw new IllegalArgumentException(
+                    "Given node key is not used in ring: " + nodeKey);
+        }
+        return Collections.emptyList();
+    }
+
+    /**
+     * @return nodes in token order
+     */
+    @Override
+    public Iterable<NodeT> getNodes() {
+        return nodeList;
+    }
+
+    /**
+     * @return token to node mappings in token order
+     */
+    @Override
+    public Iterable<Map.Entry<Long, NodeT>> getNodeEntries() {
+        return new AbstractList<Map.Entry<Long, NodeT>>() {
+            @Override
+            public Map.Entry<Long, NodeT> get(int index) {
+                return Maps.immutableEntry(tokens[index], getNodeAt(index));
+            }
+
+            @Override
+            public int size() {
+                return tokens.length;
+            }
+        };
+    }
+
+    @Override
+    public NodeT getNode(@Nullable NodeKeyT nodeKey) {
+        return getNodeByHash(hashNodeKey(nodeKey));
+    }
+
+    @Override
+    public NodeT getNodeByHash(@Nullable Long nodeKey) {
+        if (nodeKey == null) {
+            return null;
+        }
+        int idx = indexOfToken(nodeKey);
+        return idx >= 0 ? getNodeAt(idx) : null;
+    }
+
+    @Override
+    public Iterable<EntryT> getEntries() {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public EntryT getEntry(@Nullable EntryKeyT key) {
+        return null;
+    }
+
+    @Override
+    public EntryT putEntry(EntryKeyT key, EntryT entry) {
+        throw new UnsupportedOperationException("frozen ring is read-only");
+    }
+
+    @Override
+    public EntryT removeEntry(@Nullable EntryKeyT key) {
+        return null;
+    }
+
+    @Override
+    public int getNodeCount() {
+        return tokens.length;
+    }
+
+    @Override
+    public boolean isHavingNodes() {
+        return tokens.length > 0;
+    }
+
+    @Override
+    public boolean isWithoutNodes() {
+        return tokens.length == 0;
+    }
+
+    /**
+     * Same semantics as {@link ConsistentHashRingImpl#getNodeBeforeNode(long)}.
+     */
+    @Override
+    public NodeT getNodeBeforeNode(Long nodeKeyHash) {
+        return getNodeBeforeNode(nodeKeyHash.longValue());
+    }
+
+    @Override
+    public NodeT getNodeBeforeNode(long hash) {
+        int idx = indexOfNodeBeforeNode(hash);
+        return idx < 0 ? null : getNodeAt(idx);
+    }
+
+    /**
+     * @return <code>-1</code> if there is no other node. The index of the node with the next smaller token than the
+     * given hash (or after a loop the biggest token).
+     */
+    public int indexOfNodeBeforeNode(long hash) {
+        if (tokens.length == 0) {
+            return -1;
+        }
+        int idx = floorIndex(hash - 1);
+        if (idx < 0) {
+            // loop to end
+            idx = tokens.length - 1;
+            if (tokens[idx] == hash) {
+                return -1; // non-incl
+            }
+        }
+        return idx;
+    }
+
+    /**
+     * The frozen ring has no entries, so the change's entries are always empty.
+     */
+    @Override
+    public RingOwnershipChange<NodeT, EntryT> getOwnershipChangeForAdd(long nodeKeyHash, NodeT node) {
+        if (indexOfToken(nodeKeyHash) >= 0) {
+            throw new IllegalArgumentException("Collision of node key hashes: "
+                    + getNodeByHash(nodeKeyHash) + ".hashEquals(" + node + ")");
+        }
+        int previousIdx = indexOfNodeBeforeNode(nodeKeyHash);
+        long from = previousIdx < 0 ? nodeKeyHash : tokens[previousIdx];
+        return RingOwnershipChange.create(HashRange.create(from, nodeKeyHash), getNodeForEntry(nodeKeyHash), node,
+                Collections.<EntryT>emptyList());
+    }
+
+    /**
+     * The frozen ring has no entries, so the change's entries are always empty.
+     */
+    @Override
+    public RingOwnershipChange<NodeT, EntryT> getOwnershipChangeForRemove(long nodeKeyHash) {
+        int idx = indexOfToken(nodeKeyHash);
+        if (idx < 0) {
+            return null;
+        }
+        int previousIdx = indexOfNodeBeforeNode(nodeKeyHash);
+        long from = previousIdx < 0 ? nodeKeyHash : tokens[previousIdx];
+        return RingOwnershipChange.create(HashRange.create(from, nodeKeyHash), getNodeAt(idx),
+                getNodeAfterNode(nodeKeyHash), Collections.<EntryT>emptyList());
+    }
+
+    @Override
+    public NodeT getNodeAfterNode(NodeKeyT key) {
+        return getNodeAfterNode(hashNodeKey(key));
+    }
+
+    /**
+     * Looks up every hash in the token array directly: A lookup is already a primitive search (or an index read, see
+     * {@link #getLookupIndexBits()}), so sorting the batch first wouldn't pay off. Doesn't allocate.
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public void getNodesForEntries(long[] entryKeyHashes, NodeT[] out) {
+        Preconditions.checkArgument(out.length >= entryKeyHashes.length, "out array too short");
+        for (int i = 0; i < entryKeyHashes.length; i++) {
+            int idx = indexOfNodeForEntry(entryKeyHashes[i]);
+            out[i] = idx < 0 ? null : (NodeT) nodes[idx];
+        }
+    }
+
+    /**
+     * Same semantics as {@link ConsistentHashRingImpl#getNodeAfterNode(long)}.
+     */
+    @Override
+    public NodeT getNodeAfterNode(Long nodeKeyHash) {
+        return getNodeAfterNode(nodeKeyHash.longValue());
+    }
+
+    @Override
+    public NodeT getNodeAfterNode(long hash) {
+        // +1 because the lookup is inclusive and long arith loops MIN_VAL at end
+        int idx = indexOfNodeForEntry(hash + 1);
+        if (idx < 0 || tokens[idx] == hash) {
+            return null;
+        }
+        return getNodeAt(idx);
+    }
+
+    @Override
+    public NodeT getNodeForEntry(EntryKeyT key) {
+        return getNodeForEntry(hashEntryKey(key));
+    }
+
+    @Override
+    public NodeT getNodeForEntry(Long entryKeyHash) {
+        return getNodeForEntry(entryKeyHash.longValue());
+    }
+
+    /**
+     * Allocation-free.
+     */
+    @Override
+    public NodeT getNodeForEntry(long entryKeyHash) {
+        int idx = indexOfNodeForEntry(entryKeyHash);
+        return idx >= 0 ? getNodeAt(idx) : null;
+    }
+
+    @Override
+    public boolean isNodeForEntry(@Nullable NodeKeyT nodeKey, @Nullable EntryKeyT entryKey,
+                                  boolean ensureNodeIsInRing) {
+        if (nodeKey == null || entryKey == null) {
+            return false;
+        }
+        long nodeKeyHash = hashNodeKey(nodeKey);
+        if (ensureNodeIsInRing && indexOfToken(nodeKeyHash) < 0) {
+            return false;
+        }
+
+        long entryHash = hashEntryKey(entryKey);
+        if (tokens.length == 0) {
+            return true;
+        }
+        int previousIdx = floorIndex(nodeKeyHash - 1);
+        if (previousIdx < 0) {
+            previousIdx = tokens.length - 1;
+            if (tokens[previousIdx] == nodeKeyHash) {
+                // given node is same as only node in ring:
+                return true;
+            }
+        }
+
+        return ConsistentHashRings.testBelongsToNode(entryHash, nodeKeyHash,
+                tokens[previousIdx]);
+    }
+
+    @Override
+    public String toString() {
+        return "FrozenConsistentHashRing{" +
+                "nodeCount=" + tokens.length +
+                ", lookupIndexBits=" + lookupIndexBits +
+                '}';
+    }
+}
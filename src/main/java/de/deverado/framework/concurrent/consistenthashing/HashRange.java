@@ -0,0 +1,72 @@
+package de.deverado.framework.concurrent.consistenthashing;/*
+ * Copyright Georg Koester 2012-15. All rights reserved.
+ */
+
+import javax.annotation.ParametersAreNonnullByDefault;
+
+/**
+ * A range of the ring: the hashes <code>(fromExclusive, toInclusive]</code>, looping around the end of the ring if
+ * fromExclusive is not smaller than toInclusive. Equal bounds stand for the whole ring - the range owned by the only
+ * node of a ring.
+ */
+@ParametersAreNonnullByDefault
+public final class HashRange {
+
+    private final long fromExclusive;
+    private final long toInclusive;
+
+    private HashRange(long fromExclusive, long toInclusive) {
+        this.fromExclusive = fromExclusive;
+        this.toInclusive = toInclusive;
+    }
+
+    public static HashRange create(long fromExclusive, long toInclusive) {
+        return new HashRange(fromExclusive, toInclusive);
+    }
+
+    public long getFromExclusive() {
+        return fromExclusive;
+    }
+
+    public long getToInclusive() {
+        return toInclusive;
+    }
+
+    public boolean isLooping() {
+        return fromExclusive >= toInclusive;
+    }
+
+    public boolean isFullRing() {
+        return fromExclusive == toInclusive;
+    }
+
+    public boolean contains(long hash) {
+        if (isLooping()) {
+            return hash > fromExclusive || hash <= toInclusive;
+        }
+        return hash > fromExclusive && hash <= toInclusive;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof HashRange)) return false;
+
+        HashRange hashRange = (HashRange) o;
+
+        if (fromExclusive != hashRange.fromExclusive) return false;
+        return toInclusive == hashRange.toInclusive;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = (int) (fromExclusive ^ (fromExclusive >>> 32));
+        result = 31 * result + (int) (toInclusive ^ (toInclusive >>> 32));
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "(" + fromExclusive + ", " + toInclusive + "]";
+    }
+}
@@ -45,6 +45,14 @@ public class Machine {
         return machineId;
     }
 
+    /**
+     * @return this machine's position in {@link VNodeConsistentHashRing#getMachines()}, usable as a dense id for
+     * per-machine arrays.
+     */
+    public int getIdxInAllMachineList() {
+        return idxInAllMachineList;
+    }
+
     public static List<MachineInfo> asMachineInfo(@Nullable Collection<Machine> input) {
         List<MachineInfo> result = new ArrayList<>();
         if (input != null) {
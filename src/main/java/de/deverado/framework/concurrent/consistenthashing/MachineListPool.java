@@ -0,0 +1,44 @@
+package de.deverado.framework.concurrent.consistenthashing;/*
+ * Copyright Georg Koester 2012-15. All rights reserved.
+ */
+
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Interns replica lists during ring building: Equal lists are stored once as {@link MachineOrdinalList}, so ring memory
+ * grows with the number of distinct replica lists instead of vnodes times replica count.
+ */
+@ParametersAreNonnullByDefault
+class MachineListPool {
+
+    private final List<Machine> allMachines;
+
+    private final Map<List<Machine>, MachineOrdinalList> pool = new HashMap<>();
+
+    /**
+     * @param allMachines the machines of the ring being built, with initialized
+     *                    {@link Machine#getIdxInAllMachineList()}.
+     */
+    MachineListPool(List<Machine> allMachines) {
+        this.allMachines = allMachines;
+    }
+
+    MachineOrdinalList intern(List<Machine> machines) {
+        MachineOrdinalList result = pool.get(machines);
+        if (result == null) {
+            result = MachineOrdinalList.create(allMachines, machines);
+            pool.put(result, result);
+        }
+        return result;
+    }
+
+    /**
+     * @return count of distinct lists.
+     */
+    int size() {
+        return pool.size();
+    }
+}
@@ -0,0 +1,174 @@
+package de.deverado.framework.concurrent.consistenthashing;/*
+ * Copyright Georg Koester 2012-15. All rights reserved.
+ */
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.RandomAccess;
+
+/**
+ * Read-only replica list stored as machine ordinals - positions in {@link VNodeConsistentHashRing#getMachines()},
+ * see {@link Machine#getIdxInAllMachineList()}. Instances are interned by the builders, so vnodes with the same
+ * replicas share one list.
+ * <p>
+ * For the replica checks of {@link VNodeImpl} the positions of the machines and the replica counts before every
+ * position are precomputed, so checking a machine's assignment for any replica count doesn't need to walk the list.
+ * </p>
+ */
+@ParametersAreNonnullByDefault
+public final class MachineOrdinalList extends AbstractList<Machine> implements RandomAccess {
+
+    private final List<Machine> allMachines;
+
+    private final int[] ordinals;
+
+    private final int[] sortedOrdinals;
+
+    private final int[] positionsOfSortedOrdinals;
+
+    /**
+     * INTEGRATED or LEAVING machines before a position, see {@link VNodeImpl#isReadReplica(String, int)}.
+     */
+    private final int[] readCountedBefore;
+
+    /**
+     * INTEGRATED machines before a position, one more entry than the list has.
+     */
+    private final int[] integratedBefore;
+
+    private MachineOrdinalList(List<Machine> allMachines, int[] ordinals) {
+        this.allMachines = allMachines;
+        this.ordinals = ordinals;
+
+        long[] ordinalsWithPositions = new long[ordinals.length];
+        for (int i = 0; i < ordinals.length; i++) {
+            ordinalsWithPositions[i] = ((long) ordinals[i] << 32) | i;
+        }
+        Arrays.sort(ordinalsWithPositions);
+        sortedOrdinals = new int[ordinals.length];
+        positionsOfSortedOrdinals = new int[ordinals.length];
+        for (int i = 0; i < ordinals.length; i++) {
+            sortedOrdinals[i] = (int) (ordinalsWithPositions[i] >>> 32);
+            positionsOfSortedOrdinals[i] = (int) ordinalsWithPositions[i];
+        }
+
+        readCountedBefore = new int[ordinals.length];
+        integratedBefore = new int[ordinals.length + 1];
+        for (int i = 0; i < ordinals.length; i++) {
+            MachineInRingState state = allMachines.get(ordinals[i]).getState();
+            boolean integrated = MachineInRingState.INTEGRATED.equals(state);
+            boolean readCounted = integrated || MachineInRingState.LEAVING.equals(state);
+            if (i + 1 < ordinals.length) {
+                readCountedBefore[i + 1] = readCountedBefore[i] + (readCounted ? 1 : 0);
+            }
+            integratedBefore[i + 1] = integratedBefore[i] + (integrated ? 1 : 0);
+        }
+    }
+
+    private MachineOrdinalList(List<Machine> allMachines, int[] ordinals, int[] sortedOrdinals,
+                               int[] positionsOfSortedOrdinals, int[] readCountedBefore, int[] integratedBefore) {
+        this.allMachines = allMachines;
+        this.ordinals = ordinals;
+        this.sortedOrdinals = sortedOrdinals;
+        this.positionsOfSortedOrdinals = positionsOfSortedOrdinals;
+        this.readCountedBefore = readCountedBefore;
+        this.integratedBefore = integratedBefore;
+    }
+
+    /**
+     * @param allMachines the machines of the ring, with initialized {@link Machine#getIdxInAllMachineList()}.
+     * @throws IllegalArgumentException if a machine isn't part of allMachines.
+     */
+    static MachineOrdinalList create(List<Machine> allMachines, List<Machine> machines) {
+        int[] ordinals = new int[machines.size()];
+        for (int i = 0; i < ordinals.length; i++) {
+            Machine m = machines.get(i);
+            int ordinal = m.getIdxInAllMachineList();
+            if (ordinal >= allMachines.size() || allMachines.get(ordinal) != m) {
+                throw new IllegalArgumentException("Machine is not part of the ring: " + m);
+            }
+            ordinals[i] = ordinal;
+        }
+        return new MachineOrdinalList(allMachines, ordinals);
+    }
+
+    /**
+     * The same list for the machines of another ring, sharing the precomputed data. The contained machines must have
+     * the same states in the other ring.
+     *
+     * @param ordinalRemap old to new ordinals, must keep the order of the contained machines. Null if the ordinals stay
+     *                     the same.
+     */
+    MachineOrdinalList rebind(List<Machine> otherAllMachines, @Nullable int[] ordinalRemap) {
+        if (ordinalRemap == null) {
+            return new MachineOrdinalList(otherAllMachines, ordinals, sortedOrdinals, positionsOfSortedOrdinals,
+                    readCountedBefore, integratedBefore);
+        }
+        int[] otherOrdinals = new int[ordinals.length];
+        int[] otherSortedOrdinals = new int[ordinals.length];
+        for (int i = 0; i < ordinals.length; i++) {
+            otherOrdinals[i] = ordinalRemap[ordinals[i]];
+            otherSortedOrdinals[i] = ordinalRemap[sortedOrdinals[i]];
+        }
+        return new MachineOrdinalList(otherAllMachines, otherOrdinals, otherSortedOrdinals, positionsOfSortedOrdinals,
+                readCountedBefore, integratedBefore);
+    }
+
+    @Override
+    public Machine get(int index) {
+        return allMachines.get(ordinals[index]);
+    }
+
+    /**
+     * @return the ordinal of the machine at the index, its position in {@link VNodeConsistentHashRing#getMachines()}.
+     */
+    public int getOrdinal(int index) {
+        return ordinals[index];
+    }
+
+    /**
+     * @return the index of the machine with the given ordinal, -1 if not contained.
+     */
+    public int indexOfOrdinal(int ordinal) {
+        int found = Arrays.binarySearch(sortedOrdinals, ordinal);
+        return found < 0 ? -1 : positionsOfSortedOrdinals[found];
+    }
+
+    int indexOfMachineId(String machineId) {
+        for (int i = 0; i < ordinals.length; i++) {
+            if (Objects.equals(allMachines.get(ordinals[i]).getMachineId(), machineId)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return if the machine at the index is within the first replicaCount INTEGRATED or LEAVING machines, for
+     * replicaCount &lt;= 0 always true.
+     */
+    boolean isWithinReadReplicaCount(int index, int replicaCount) {
+        return replicaCount <= 0 || readCountedBefore[index] < replicaCount;
+    }
+
+    /**
+     * @param leaderIndex -1 if the leader isn't contained.
+     * @return if the machine at the index is within the first replicaCount INTEGRATED machines starting at the leader,
+     * for replicaCount &lt;= 0 always true.
+     */
+    boolean isWithinWriteReplicaCount(int index, int leaderIndex, int replicaCount) {
+        if (replicaCount <= 0 || leaderIndex < 0 || leaderIndex >= index) {
+            return true;
+        }
+        return integratedBefore[index] - integratedBefore[leaderIndex] < replicaCount;
+    }
+
+    @Override
+    public int size() {
+        return ordinals.length;
+    }
+}
@@ -0,0 +1,116 @@
+package de.deverado.framework.concurrent.consistenthashing;/*
+ * Copyright Georg Koester 2012-15. All rights reserved.
+ */
+
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The hash ranges one machine gained and lost as read and write replica between two rings, see
+ * {@link RingDifferenceImpl#getRangeChanges()}. Ranges of a list are in ring order, don't overlap and are maximal -
+ * adjacent ranges are merged.
+ */
+@ParametersAreNonnullByDefault
+public final class MachineRangeChange {
+
+    private final String machineId;
+    private final List<HashRange> gainedReadRanges = new ArrayList<>();
+    private final List<HashRange> lostReadRanges = new ArrayList<>();
+    private final List<HashRange> gainedWriteRanges = new ArrayList<>();
+    private final List<HashRange> lostWriteRanges = new ArrayList<>();
+
+    MachineRangeChange(String machineId) {
+        this.machineId = machineId;
+    }
+
+    public String getMachineId() {
+        return machineId;
+    }
+
+    /**
+     * @return ranges the machine is read replica for in the new ring, but not in the old.
+     */
+    public List<HashRange> getGainedReadRanges() {
+        return Collections.unmodifiableList(gainedReadRanges);
+    }
+
+    /**
+     * @return ranges the machine was read replica for in the old ring, but isn't in the new.
+     */
+    public List<HashRange> getLostReadRanges() {
+        return Collections.unmodifiableList(lostReadRanges);
+    }
+
+    /**
+     * @return ranges the machine is write replica for in the new ring, but not in the old - the data to move to it.
+     */
+    public List<HashRange> getGainedWriteRanges() {
+        return Collections.unmodifiableList(gainedWriteRanges);
+    }
+
+    /**
+     * @return ranges the machine was write replica for in the old ring, but isn't in the new.
+     */
+    public List<HashRange> getLostWriteRanges() {
+        return Collections.unmodifiableList(lostWriteRanges);
+    }
+
+    void addGainedRead(long fromExclusive, long toInclusive) {
+        add(gainedReadRanges, fromExclusive, toInclusive);
+    }
+
+    void addLostRead(long fromExclusive, long toInclusive) {
+        add(lostReadRanges, fromExclusive, toInclusive);
+    }
+
+    void addGainedWrite(long fromExclusive, long toInclusive) {
+        add(gainedWriteRanges, fromExclusive, toInclusive);
+    }
+
+    void addLostWrite(long fromExclusive, long toInclusive) {
+        add(lostWriteRanges, fromExclusive, toInclusive);
+    }
+
+    /**
+     * Ranges must be added in ring order, call {@link #finish()} after the last.
+     */
+    private static void add(List<HashRange> ranges, long fromExclusive, long toInclusive) {
+        int last = ranges.size() - 1;
+        if (last >= 0 && ranges.get(last).getToInclusive() == fromExclusive) {
+            ranges.set(last, HashRange.create(ranges.get(last).getFromExclusive(), toInclusive));
+        } else {
+            ranges.add(HashRange.create(fromExclusive, toInclusive));
+        }
+    }
+
+    /**
+     * Merges the ranges meeting at the end of the ring.
+     */
+    void finish() {
+        mergeLooping(gainedReadRanges);
+        mergeLooping(lostReadRanges);
+        mergeLooping(gainedWriteRanges);
+        mergeLooping(lostWriteRanges);
+    }
+
+    private static void mergeLooping(List<HashRange> ranges) {
+        int last = ranges.size() - 1;
+        if (last > 0 && ranges.get(last).getToInclusive() == ranges.get(0).getFromExclusive()) {
+            ranges.set(0, HashRange.create(ranges.get(last).getFromExclusive(), ranges.get(0).getToInclusive()));
+            ranges.remove(last);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "MachineRangeChange{" +
+                "machineId='" + machineId + '\'' +
+                ", gainedRead=" + gainedReadRanges +
+                ", lostRead=" + lostReadRanges +
+                ", gainedWrite=" + gainedWriteRanges +
+                ", lostWrite=" + lostWriteRanges +
+                '}';
+    }
+}
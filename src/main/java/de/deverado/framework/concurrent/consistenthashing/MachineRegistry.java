@@ -0,0 +1,75 @@
+package de.deverado.framework.concurrent.consistenthashing;/*
+ * Copyright Georg Koester 2012-15. All rights reserved.
+ */
+
+import com.google.common.collect.ImmutableList;
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The machines of one ring with their dense ordinals - the position in {@link #getMachines()}, which is also
+ * {@link Machine#getIdxInAllMachineList()}. Use ordinals for per-machine arrays and the ordinal-keyed methods like
+ * {@link VNodeImpl#getAssignmentStateForMachine(int, int)} instead of hashing machine ids. Ordinals are only valid
+ * within one ring, compare machines of different rings by id.
+ */
+@ParametersAreNonnullByDefault
+public final class MachineRegistry {
+
+    private final List<Machine> machines;
+
+    private final Map<String, Integer> ordinalsById;
+
+    private MachineRegistry(List<Machine> machines, Map<String, Integer> ordinalsById) {
+        this.machines = machines;
+        this.ordinalsById = ordinalsById;
+    }
+
+    public static MachineRegistry create(List<Machine> machines) {
+        List<Machine> copy = ImmutableList.copyOf(machines);
+        Map<String, Integer> ordinalsById = new HashMap<>(copy.size() * 2);
+        for (int i = 0; i < copy.size(); i++) {
+            Integer collision = ordinalsById.put(copy.get(i).getMachineId(), i);
+            if (collision != null) {
+                throw new IllegalArgumentException("Duplicate machine id: " + copy.get(i).getMachineId());
+            }
+        }
+        return new MachineRegistry(copy, ordinalsById);
+    }
+
+    public List<Machine> getMachines() {
+        return machines;
+    }
+
+    public int size() {
+        return machines.size();
+    }
+
+    public Machine getMachine(int ordinal) {
+        return machines.get(ordinal);
+    }
+
+    @Nullable
+    public Machine getMachine(String machineId) {
+        int ordinal = getOrdinal(machineId);
+        return ordinal < 0 ? null : machines.get(ordinal);
+    }
+
+    /**
+     * @return -1 if the machine isn't registered.
+     */
+    public int getOrdinal(String machineId) {
+        Integer ordinal = ordinalsById.get(machineId);
+        return ordinal == null ? -1 : ordinal;
+    }
+
+    @Override
+    public String toString() {
+        return "MachineRegistry{" +
+                "machines=" + machines.size() +
+                '}';
+    }
+}
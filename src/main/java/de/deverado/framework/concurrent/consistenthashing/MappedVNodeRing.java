@@ -0,0 +1,342 @@
+package de.deverado.framework.concurrent.consistenthashing;/*
+ * Copyright Georg Koester 2012-15. All rights reserved.
+ */
+
+import com.google.common.collect.ImmutableList;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Serves ring lookups from a memory-mapped snapshot written by {@link VNodeRingSnapshot}: Tokens, leaders and replica
+ * lists are read from the mapped file on access, only machine ids and states are decoded when opening. Opening is
+ * cheap even for big rings and processes mapping the same file share its pages.
+ * <p>
+ * Nodes and machines are addressed by index and ordinal as in {@link FrozenConsistentHashRing} and
+ * {@link VNodeConsistentHashRing#getMachine(int)}. Use {@link #toRing()} if a full {@link VNodeConsistentHashRing} is
+ * needed. Instances are immutable and thread-safe. Snapshots are limited to 2GB.
+ * </p>
+ */
+@ParametersAreNonnullByDefault
+public final class MappedVNodeRing {
+
+    private final int nodeCount;
+
+    private final LongBuffer tokens;
+    private final IntBuffer leaderOrdinals;
+    private final IntBuffer readListIndexes;
+    private final IntBuffer writeListIndexes;
+    private final IntBuffer listStarts;
+    private final IntBuffer listData;
+
+    /**
+     * 0 if there is no lookup index.
+     */
+    private final int lookupIndexBits;
+
+    /**
+     * Null if there is no lookup index.
+     */
+    private final IntBuffer bucketStarts;
+
+    private final String[] machineIds;
+    private final MachineInRingState[] machineStates;
+    private final Map<String, Integer> machineOrdinals;
+
+    private MappedVNodeRing(ByteBuffer buffer) throws IOException {
+        if (buffer.capacity() < VNodeRingSnapshot.HEADER_LENGTH) {
+            throw new IOException("Not a ring snapshot, too short: " + buffer.capacity() + " bytes");
+        }
+        int magic = buffer.getInt(0);
+        if (magic != VNodeRingSnapshot.MAGIC) {
+            throw new IOException("Not a ring snapshot, bad magic: " + Integer.toHexString(magic));
+        }
+        int version = buffer.getInt(4);
+        if (version != VNodeRingSnapshot.VERSION) {
+            throw new IOException("Unsupported ring snapshot version " + version + ", supported: "
+                    + VNodeRingSnapshot.VERSION);
+        }
+        int machineCount = buffer.getInt(8);
+        nodeCount = buffer.getInt(12);
+        int listCount = buffer.getInt(16);
+        int listDataLength = buffer.getInt(20);
+        lookupIndexBits = buffer.getInt(24);
+        int machineSectionLength = buffer.getInt(28);
+        if (machineCount < 0 || nodeCount < 0 || listCount < 0 || listDataLength < 0 || machineSectionLength < 0
+                || lookupIndexBits < 0 || lookupIndexBits > FrozenConsistentHashRing.MAX_LOOKUP_INDEX_BITS) {
+            throw new IOException("Corrupt ring snapshot header");
+        }
+
+        long expectedLength = VNodeRingSnapshot.HEADER_LENGTH + 8L * nodeCount + 4L * (3L * nodeCount + listCount + 1
+                + listDataLength + (lookupIndexBits > 0 ? (1 << lookupIndexBits) + 1 : 0)) + machineSectionLength;
+        if (expectedLength != buffer.capacity()) {
+            throw new IOException("Corrupt ring snapshot: length " + buffer.capacity() + " but header implies "
+                    + expectedLength);
+        }
+
+        int offset = VNodeRingSnapshot.HEADER_LENGTH;
+        tokens = slice(buffer, offset, 8 * nodeCount).asLongBuffer();
+        offset += 8 * nodeCount;
+        leaderOrdinals = slice(buffer, offset, 4 * nodeCount).asIntBuffer();
+        offset += 4 * nodeCount;
+        readListIndexes = slice(buffer, offset, 4 * nodeCount).asIntBuffer();
+        offset += 4 * nodeCount;
+        writeListIndexes = slice(buffer, offset, 4 * nodeCount).asIntBuffer();
+        offset += 4 * nodeCount;
+        listStarts = slice(buffer, offset, 4 * (listCount + 1)).asIntBuffer();
+        offset += 4 * (listCount + 1);
+        listData = slice(buffer, offset, 4 * listDataLength).asIntBuffer();
+        offset += 4 * listDataLength;
+        if (lookupIndexBits > 0) {
+            int bucketStartsLength = (1 << lookupIndexBits) + 1;
+            bucketStarts = slice(buffer, offset, 4 * bucketStartsLength).asIntBuffer();
+            offset += 4 * bucketStartsLength;
+        } else {
+            bucketStarts = null;
+        }
+
+        byte[] machineSection = new byte[machineSectionLength];
+        ByteBuffer machineSectionBuffer = slice(buffer, offset, machineSectionLength);
+        machineSectionBuffer.get(machineSection);
+        machineIds = new String[machineCount];
+        machineStates = new MachineInRingState[machineCount];
+        machineOrdinals = new HashMap<>(machineCount * 2);
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(machineSection))) {
+            for (int i = 0; i < machineCount; i++) {
+                machineIds[i] = in.readUTF();
+                machineStates[i] = MachineInRingState.valueOf(in.readUTF());
+                machineOrdinals.put(machineIds[i], i);
+            }
+        } catch (EOFException | IllegalArgumentException e) {
+            throw new IOException("Corrupt ring snapshot machine section", e);
+        }
+    }
+
+    /**
+     * Maps the snapshot file read-only. The file can be replaced by a newer snapshot while mapped - the mapping keeps
+     * the old content.
+     *
+     * @throws IOException if the file can't be read or is no valid snapshot of a supported version.
+     */
+    public static MappedVNodeRing open(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Ring snapshot too big to map: " + channel.size() + " bytes");
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new MappedVNodeRing(buffer);
+        }
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int offset, int length) {
+        ByteBuffer result = buffer.duplicate();
+        result.position(offset);
+        result.limit(offset + length);
+        return result.slice();
+    }
+
+    public int getNodeCount() {
+        return nodeCount;
+    }
+
+    public int getMachineCount() {
+        return machineIds.length;
+    }
+
+    public String getMachineId(int ordinal) {
+        return machineIds[ordinal];
+    }
+
+    public MachineInRingState getMachineState(int ordinal) {
+        return machineStates[ordinal];
+    }
+
+    /**
+     * @return -1 if the machine isn't in the ring.
+     */
+    public int getMachineOrdinal(String machineId) {
+        Integer result = machineOrdinals.get(machineId);
+        return result != null ? result : -1;
+    }
+
+    public long getToken(int nodeIndex) {
+        return tokens.get(nodeIndex);
+    }
+
+    public int getLeaderOrdinal(int nodeIndex) {
+        return leaderOrdinals.get(nodeIndex);
+    }
+
+    public int getReadReplicaCount(int nodeIndex) {
+        return getListLength(readListIndexes.get(nodeIndex));
+    }
+
+    /**
+     * @param i position in the read replica list, in ring order.
+     */
+    public int getReadReplicaOrdinal(int nodeIndex, int i) {
+        return getListEntry(readListIndexes.get(nodeIndex), i);
+    }
+
+    public int getWriteReplicaCount(int nodeIndex) {
+        return getListLength(writeListIndexes.get(nodeIndex));
+    }
+
+    /**
+     * @param i position in the write replica list.
+     */
+    public int getWriteReplicaOrdinal(int nodeIndex, int i) {
+        return getListEntry(writeListIndexes.get(nodeIndex), i);
+    }
+
+    private int getListLength(int list) {
+        return listStarts.get(list + 1) - listStarts.get(list);
+    }
+
+    private int getListEntry(int list, int i) {
+        int start = listStarts.get(list);
+        if (i < 0 || i >= listStarts.get(list + 1) - start) {
+            throw new IndexOutOfBoundsException("replica " + i + " of " + (listStarts.get(list + 1) - start));
+        }
+        return listData.get(start + i);
+    }
+
+    /**
+     * @return <code>-1</code> for an empty ring. The index of the node owning the hash: the one with the given hash
+     * as token or the next bigger token (or after a loop the smallest token).
+     */
+    public int indexOfNodeForHash(long hash) {
+        if (nodeCount == 0) {
+            return -1;
+        }
+        int idx = ceilingIndex(hash);
+        return idx == nodeCount ? 0 : idx; // loop to beginning
+    }
+
+    /**
+     * @return index of the first token bigger or equal than the given hash, the token count if there is none.
+     */
+    private int ceilingIndex(long hash) {
+        int from = 0;
+        int to = nodeCount;
+        if (bucketStarts != null) {
+            int bucket = FrozenConsistentHashRing.bucketOf(hash, lookupIndexBits);
+            from = bucketStarts.get(bucket);
+            to = bucketStarts.get(bucket + 1);
+            if (to - from <= FrozenConsistentHashRing.LINEAR_SCAN_LIMIT) {
+                while (from < to && tokens.get(from) < hash) {
+                    from++;
+                }
+                return from;
+            }
+        }
+        int low = from;
+        int high = to - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long token = tokens.get(mid);
+            if (token < hash) {
+                low = mid + 1;
+            } else if (token > hash) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * @return empty for an empty ring.
+     */
+    public List<String> getReadReplicaIdsForHash(long hash) {
+        int idx = indexOfNodeForHash(hash);
+        if (idx < 0) {
+            return ImmutableList.of();
+        }
+        return getIds(readListIndexes.get(idx));
+    }
+
+    /**
+     * @return empty for an empty ring.
+     */
+    public List<String> getWriteReplicaIdsForHash(long hash) {
+        int idx = indexOfNodeForHash(hash);
+        if (idx < 0) {
+            return ImmutableList.of();
+        }
+        return getIds(writeListIndexes.get(idx));
+    }
+
+    private List<String> getIds(int list) {
+        int start = listStarts.get(list);
+        int end = listStarts.get(list + 1);
+        ImmutableList.Builder<String> result = ImmutableList.builder();
+        for (int i = start; i < end; i++) {
+            result.add(machineIds[listData.get(i)]);
+        }
+        return result.build();
+    }
+
+    /**
+     * Deserializes the snapshot into a frozen ring with the same nodes, replicas and lookup index as the snapshot.
+     * Entry and node keys are hashed with the default hashing of {@link VNodeConsistentHashRingBuilder}. The result
+     * can't be the base of {@link VNodeConsistentHashRingBuilder#createIncremental(VNodeConsistentHashRing)}.
+     */
+    public VNodeConsistentHashRing toRing() {
+        List<Machine> allMachines = new ArrayList<>(machineIds.length);
+        for (int i = 0; i < machineIds.length; i++) {
+            Machine m = new Machine();
+            m.setMachineId(machineIds[i]);
+            m.setState(machineStates[i]);
+            allMachines.add(m);
+        }
+        allMachines = ImmutableList.copyOf(allMachines);
+        for (int i = 0; i < allMachines.size(); i++) {
+            allMachines.get(i).init(allMachines, i);
+        }
+
+        MachineOrdinalList[] lists = new MachineOrdinalList[listStarts.capacity() - 1];
+        for (int l = 0; l < lists.length; l++) {
+            List<Machine> machines = new ArrayList<>(getListLength(l));
+            for (int i = listStarts.get(l); i < listStarts.get(l + 1); i++) {
+                machines.add(allMachines.get(listData.get(i)));
+            }
+            lists[l] = MachineOrdinalList.create(allMachines, machines);
+        }
+
+        long[] ringTokens = new long[nodeCount];
+        VNodeImpl[] nodes = new VNodeImpl[nodeCount];
+        for (int i = 0; i < nodeCount; i++) {
+            ringTokens[i] = tokens.get(i);
+            VNodeImpl n = new VNodeImpl();
+            n.init(ringTokens[i]);
+            n.setLeader(allMachines.get(leaderOrdinals.get(i)));
+            n.setReadReplicas(lists[readListIndexes.get(i)]);
+            n.setWriteReplicas(lists[writeListIndexes.get(i)]);
+            nodes[i] = n;
+        }
+        VNodeConsistentHashRingBuilder.addNodesToMachines(allMachines, ImmutableList.copyOf(nodes));
+        for (Machine m : allMachines) {
+            m.finishSetup();
+        }
+
+        FrozenConsistentHashRing<Object, VNodeImpl, String, String> ring = ConsistentHashRings.freeze(
+                ConsistentHashRings.<Object, VNodeImpl, String, String>newMurmur3Ring64Bit());
+        return VNodeConsistentHashRing.create(allMachines, ring.withNodes(ringTokens, nodes, lookupIndexBits));
+    }
+}
@@ -0,0 +1,49 @@
+package de.deverado.framework.concurrent.consistenthashing;/*
+ * Copyright Georg Koester 2012-15. All rights reserved.
+ */
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import org.apache.commons.lang3.tuple.Pair;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.util.List;
+
+/**
+ * Determines the replica lists of vnodes on access by the rules of {@link VNodeConsistentHashRingBuilder}, see
+ * {@link VNodeConsistentHashRingBuilder#setOnDemandReplicaCacheSize(int)}. Thread-safe.
+ */
+@ParametersAreNonnullByDefault
+class OnDemandReplicas {
+
+    private final LoadingCache<VNodeImpl, Pair<List<Machine>, List<Machine>>> replicaCache;
+
+    /**
+     * @param allMachines the machines of the ring.
+     * @param allNodesRing containing the nodes of all machines, not only of the owning ones.
+     */
+    OnDemandReplicas(final List<Machine> allMachines,
+                     final FrozenConsistentHashRing<?, VNodeImpl, String, String> allNodesRing,
+                     final int replicaCount, int cacheSize) {
+        replicaCache = CacheBuilder.newBuilder().maximumSize(cacheSize)
+                .build(new CacheLoader<VNodeImpl, Pair<List<Machine>, List<Machine>>>() {
+                    @Override
+                    public Pair<List<Machine>, List<Machine>> load(VNodeImpl node) throws Exception {
+                        List<Machine> readReplicas = MachineOrdinalList.create(allMachines,
+                                VNodeConsistentHashRingBuilder.findReadReplicas(allNodesRing, node, replicaCount));
+                        List<Machine> writeReplicas = MachineOrdinalList.create(allMachines,
+                                VNodeConsistentHashRingBuilder.findWriteReplicas(allNodesRing, node, replicaCount));
+                        return Pair.of(readReplicas, writeReplicas);
+                    }
+                });
+    }
+
+    List<Machine> getReadReplicas(VNodeImpl node) {
+        return replicaCache.getUnchecked(node).getLeft();
+    }
+
+    List<Machine> getWriteReplicas(VNodeImpl node) {
+        return replicaCache.getUnchecked(node).getRight();
+    }
+}
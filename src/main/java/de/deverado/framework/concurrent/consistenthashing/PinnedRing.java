@@ -0,0 +1,54 @@
+package de.deverado.framework.concurrent.consistenthashing;/*
+ * Copyright Georg Koester 2012-15. All rights reserved.
+ */
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.util.List;
+
+/**
+ * A ring published by {@link VNodeConsistentHashRingMgr} together with its epoch, see
+ * {@link VNodeConsistentHashRingMgr#pin()}. Immutable: All lookups of a multi-key operation done through one pinned
+ * ring see the same ring. Epochs increase with every published ring, so comparing them tells which ring is newer.
+ */
+@ParametersAreNonnullByDefault
+public final class PinnedRing {
+
+    private final long epoch;
+
+    private final VNodeConsistentHashRing ring;
+
+    PinnedRing(long epoch, VNodeConsistentHashRing ring) {
+        this.epoch = epoch;
+        this.ring = ring;
+    }
+
+    public long getEpoch() {
+        return epoch;
+    }
+
+    public VNodeConsistentHashRing getRing() {
+        return ring;
+    }
+
+    @Nullable
+    public VNodeImpl getNodeForHash(long hash) {
+        return ring.getNodeForHash(hash);
+    }
+
+    public List<Machine> getReadReplicasForHash(long hash) {
+        return ring.getReadReplicasForHash(hash);
+    }
+
+    public List<Machine> getWriteReplicasForHash(long hash) {
+        return ring.getWriteReplicasForHash(hash);
+    }
+
+    @Override
+    public String toString() {
+        return "PinnedRing{" +
+                "epoch=" + epoch +
+                ", machines=" + ring.getMachines().size() +
+                '}';
+    }
+}
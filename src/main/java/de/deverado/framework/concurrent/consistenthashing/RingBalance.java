@@ -0,0 +1,187 @@
+package de.deverado.framework.concurrent.consistenthashing;/*
+ * Copyright Georg Koester 2012-15. All rights reserved.
+ */
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.util.List;
+
+/**
+ * How the hash space of a {@link VNodeConsistentHashRing} is distributed over its machines, created by
+ * {@link RingBalanceAnalyzer}. Fractions are of the whole 2^64 hash space, machines are addressed by their ordinal in
+ * {@link #getMachines()}.
+ */
+@ParametersAreNonnullByDefault
+public final class RingBalance {
+
+    private final List<Machine> machines;
+
+    private final double[] ownedFractions;
+
+    /**
+     * [machine ordinal][replica position]
+     */
+    private final double[][] replicaFractions;
+
+    private final double[] replicatedFractions;
+
+    private final Statistics ownedStatistics;
+
+    private final Statistics replicatedStatistics;
+
+    RingBalance(List<Machine> machines, double[] ownedFractions, double[][] replicaFractions,
+                double[] replicatedFractions) {
+        this.machines = machines;
+        this.ownedFractions = ownedFractions;
+        this.replicaFractions = replicaFractions;
+        this.replicatedFractions = replicatedFractions;
+        this.ownedStatistics = Statistics.create(machines, ownedFractions);
+        this.replicatedStatistics = Statistics.create(machines, replicatedFractions);
+    }
+
+    public List<Machine> getMachines() {
+        return machines;
+    }
+
+    /**
+     * @return the fraction of the hash space owned by vnodes the machine leads.
+     */
+    public double getOwnedFraction(int machineOrdinal) {
+        return ownedFractions[machineOrdinal];
+    }
+
+    /**
+     * @return the fraction of the hash space for which the machine is at the given position of the read replicas.
+     * Position 0 is the leader of the vnode.
+     */
+    public double getReplicaFraction(int machineOrdinal, int replicaPosition) {
+        double[] fractions = replicaFractions[machineOrdinal];
+        return replicaPosition < fractions.length ? fractions[replicaPosition] : 0;
+    }
+
+    /**
+     * @return the fraction of the hash space for which the machine is a read replica at any position, the storage
+     * load of the machine.
+     */
+    public double getReplicatedFraction(int machineOrdinal) {
+        return replicatedFractions[machineOrdinal];
+    }
+
+    /**
+     * @return statistics of {@link #getOwnedFraction(int)} over the INTEGRATED machines.
+     */
+    public Statistics getOwnedStatistics() {
+        return ownedStatistics;
+    }
+
+    /**
+     * @return statistics of {@link #getReplicatedFraction(int)} over the INTEGRATED machines.
+     */
+    public Statistics getReplicatedStatistics() {
+        return replicatedStatistics;
+    }
+
+    @Override
+    public String toString() {
+        return "RingBalance{" +
+                "machines=" + machines.size() +
+                ", owned=" + ownedStatistics +
+                ", replicated=" + replicatedStatistics +
+                '}';
+    }
+
+    /**
+     * Distribution of a per machine fraction over the INTEGRATED machines, the ones meant to carry the load.
+     */
+    public static final class Statistics {
+
+        private final int machineCount;
+        private final double mean;
+        private final double standardDeviation;
+        private final double max;
+        private final Machine maxMachine;
+
+        private Statistics(int machineCount, double mean, double standardDeviation, double max,
+                           @Nullable Machine maxMachine) {
+            this.machineCount = machineCount;
+            this.mean = mean;
+            this.standardDeviation = standardDeviation;
+            this.max = max;
+            this.maxMachine = maxMachine;
+        }
+
+        static Statistics create(List<Machine> machines, double[] fractions) {
+            int count = 0;
+            double sum = 0;
+            double max = 0;
+            Machine maxMachine = null;
+            for (Machine m : machines) {
+                if (!MachineInRingState.INTEGRATED.equals(m.getState())) {
+                    continue;
+                }
+                double f = fractions[m.getIdxInAllMachineList()];
+                count++;
+                sum += f;
+                if (maxMachine == null || f > max) {
+                    max = f;
+                    maxMachine = m;
+                }
+            }
+            double mean = count > 0 ? sum / count : 0;
+            double squares = 0;
+            for (Machine m : machines) {
+                if (MachineInRingState.INTEGRATED.equals(m.getState())) {
+                    double d = fractions[m.getIdxInAllMachineList()] - mean;
+                    squares += d * d;
+                }
+            }
+            return new Statistics(count, mean, count > 0 ? Math.sqrt(squares / count) : 0, max, maxMachine);
+        }
+
+        public int getMachineCount() {
+            return machineCount;
+        }
+
+        public double getMean() {
+            return mean;
+        }
+
+        /**
+         * Population standard deviation.
+         */
+        public double getStandardDeviation() {
+            return standardDeviation;
+        }
+
+        public double getMax() {
+            return max;
+        }
+
+        /**
+         * @return null if there are no INTEGRATED machines.
+         */
+        @Nullable
+        public Machine getMaxMachine() {
+            return maxMachine;
+        }
+
+        /**
+         * @return max / mean, 1 for perfect balance, 0 if there are no INTEGRATED machines.
+         */
+        public double getImbalance() {
+            return mean > 0 ? max / mean : 0;
+        }
+
+        @Override
+        public String toString() {
+            return "Statistics{" +
+                    "machineCount=" + machineCount +
+                    ", mean=" + mean +
+                    ", standardDeviation=" + standardDeviation +
+                    ", max=" + max +
+                    ", maxMachine=" + (maxMachine != null ? maxMachine.getMachineId() : null) +
+                    ", imbalance=" + getImbalance() +
+                    '}';
+        }
+    }
+}
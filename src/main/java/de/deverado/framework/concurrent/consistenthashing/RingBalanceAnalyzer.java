@@ -0,0 +1,107 @@
+package de.deverado.framework.concurrent.consistenthashing;/*
+ * Copyright Georg Koester 2012-15. All rights reserved.
+ */
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.util.List;
+
+/**
+ * Computes how much of the hash space each machine of a {@link VNodeConsistentHashRing} leads and replicates, see
+ * {@link RingBalance}. One pass over the ring's nodes: A node's share is the distance from the token before it to its
+ * token. For sizing vnode counts the what-if methods analyze the ring as it would be after adding or removing a
+ * machine, without changing the ring.
+ */
+@ParametersAreNonnullByDefault
+public final class RingBalanceAnalyzer {
+
+    /**
+     * 2^64
+     */
+    private static final double HASH_SPACE = 18446744073709551616.0;
+
+    private RingBalanceAnalyzer() {
+    }
+
+    public static RingBalance analyze(VNodeConsistentHashRing ring) {
+        List<Machine> machines = ring.getMachines();
+        double[] owned = new double[machines.size()];
+        double[][] byPosition = new double[machines.size()][];
+        double[] replicated = new double[machines.size()];
+
+        ConsistentHashRingHoldingResourceEntries<?, VNodeImpl, String, String> nodeRing = ring.getNodeRing();
+        VNodeImpl first = null;
+        long previousToken = 0;
+        for (VNodeImpl n : nodeRing.getNodes()) {
+            if (first == null) {
+                first = n; // its share starts at the last token, added after the loop
+            } else {
+                addShare(n, hashSpaceFraction(previousToken, n.getHash()), owned, byPosition, replicated);
+            }
+            previousToken = n.getHash();
+        }
+        if (first != null) {
+            addShare(first, first.getHash() == previousToken ? 1.0 : hashSpaceFraction(previousToken, first.getHash()),
+                    owned, byPosition, replicated);
+        }
+        for (int i = 0; i < byPosition.length; i++) {
+            if (byPosition[i] == null) {
+                byPosition[i] = new double[0];
+            }
+        }
+        return new RingBalance(machines, owned, byPosition, replicated);
+    }
+
+    private static void addShare(VNodeImpl n, double fraction, double[] owned, double[][] byPosition,
+                                 double[] replicated) {
+        owned[n.getLeader().getIdxInAllMachineList()] += fraction;
+        List<Machine> readReplicas = n.getReadReplicas();
+        for (int i = 0; i < readReplicas.size(); i++) {
+            int ordinal = readReplicas.get(i).getIdxInAllMachineList();
+            byPosition[ordinal] = ensureLength(byPosition[ordinal], i + 1);
+            byPosition[ordinal][i] += fraction;
+            replicated[ordinal] += fraction;
+        }
+    }
+
+    /**
+     * @param ring built with build state by {@link VNodeConsistentHashRingBuilder}, see
+     *             {@link VNodeConsistentHashRingBuilder#createIncremental(VNodeConsistentHashRing)}.
+     * @param id   replaces the machine if it is in the ring already.
+     * @throws IllegalArgumentException if the ring can't be the base of an incremental build.
+     */
+    public static RingBalance analyzeWithMachineAdded(VNodeConsistentHashRing ring, String id,
+                                                      MachineInRingState state, long... vnodes) {
+        return analyze(VNodeConsistentHashRingBuilder.createIncremental(ring).addMachine(id, state, vnodes).build());
+    }
+
+    /**
+     * @param ring built with build state by {@link VNodeConsistentHashRingBuilder}, see
+     *             {@link VNodeConsistentHashRingBuilder#createIncremental(VNodeConsistentHashRing)}.
+     * @throws IllegalArgumentException if the ring can't be the base of an incremental build.
+     */
+    public static RingBalance analyzeWithMachineRemoved(VNodeConsistentHashRing ring, String id) {
+        return analyze(VNodeConsistentHashRingBuilder.createIncremental(ring).removeMachine(id).build());
+    }
+
+    /**
+     * @return the fraction of the hash space in (from, to], looping around at the end.
+     */
+    static double hashSpaceFraction(long from, long to) {
+        long distance = to - from; // two's complement: correct modulo 2^64
+        double unsigned = distance >= 0 ? distance : (distance >>> 1) * 2.0 + (distance & 1);
+        return unsigned / HASH_SPACE;
+    }
+
+    private static double[] ensureLength(@Nullable double[] array, int length) {
+        if (array == null) {
+            return new double[length];
+        }
+        if (array.length >= length) {
+            return array;
+        }
+        double[] result = new double[length];
+        System.arraycopy(array, 0, result, 0, array.length);
+        return result;
+    }
+}
@@ -0,0 +1,104 @@
+package de.deverado.framework.concurrent.consistenthashing;/*
+ * Copyright Georg Koester 2012-15. All rights reserved.
+ */
+
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * What a planned ring change moves, see {@link RingChangeImpactPredictor}. Fractions are of the whole 2^64 hash
+ * space - with evenly hashed keys the fraction of the data.
+ */
+@ParametersAreNonnullByDefault
+public final class RingChangeImpact {
+
+    private final VNodeConsistentHashRing candidateRing;
+
+    private final Map<String, MachineRangeChange> rangeChanges;
+
+    private final List<String> changedShardIds;
+
+    RingChangeImpact(VNodeConsistentHashRing candidateRing, Map<String, MachineRangeChange> rangeChanges,
+                     List<String> changedShardIds) {
+        this.candidateRing = candidateRing;
+        this.rangeChanges = Collections.unmodifiableMap(rangeChanges);
+        this.changedShardIds = Collections.unmodifiableList(changedShardIds);
+    }
+
+    /**
+     * @return the ring as it would be after the change.
+     */
+    public VNodeConsistentHashRing getCandidateRing() {
+        return candidateRing;
+    }
+
+    /**
+     * @return ids of the machines gaining or losing ranges.
+     */
+    public Set<String> getAffectedMachineIds() {
+        return rangeChanges.keySet();
+    }
+
+    /**
+     * @return by machine id, only machines with changes.
+     */
+    public Map<String, MachineRangeChange> getRangeChanges() {
+        return rangeChanges;
+    }
+
+    /**
+     * @return fraction of the data the machine has to receive - the ranges it becomes write replica for.
+     */
+    public double getGainedFraction(String machineId) {
+        MachineRangeChange change = rangeChanges.get(machineId);
+        return change != null ? sum(change.getGainedWriteRanges()) : 0;
+    }
+
+    /**
+     * @return fraction of the data the machine can drop - the ranges it stops being write replica for.
+     */
+    public double getLostFraction(String machineId) {
+        MachineRangeChange change = rangeChanges.get(machineId);
+        return change != null ? sum(change.getLostWriteRanges()) : 0;
+    }
+
+    /**
+     * @return sum of {@link #getGainedFraction(String)} over all machines - how much data is copied, counting each
+     * new replica.
+     */
+    public double getTotalGainedFraction() {
+        double result = 0;
+        for (MachineRangeChange change : rangeChanges.values()) {
+            result += sum(change.getGainedWriteRanges());
+        }
+        return result;
+    }
+
+    /**
+     * @return shard ids whose read or write replicas change, in shard order. Empty if the predictor has no shard ids.
+     */
+    public List<String> getChangedShardIds() {
+        return changedShardIds;
+    }
+
+    private static double sum(List<HashRange> ranges) {
+        double result = 0;
+        for (HashRange r : ranges) {
+            result += r.isFullRing() ? 1.0
+                    : RingBalanceAnalyzer.hashSpaceFraction(r.getFromExclusive(), r.getToInclusive());
+        }
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "RingChangeImpact{" +
+                "affectedMachines=" + rangeChanges.size() +
+                ", totalGainedFraction=" + getTotalGainedFraction() +
+                ", changedShards=" + changedShardIds.size() +
+                '}';
+    }
+}
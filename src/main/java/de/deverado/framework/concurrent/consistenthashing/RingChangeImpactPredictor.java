@@ -0,0 +1,128 @@
+package de.deverado.framework.concurrent.consistenthashing;/*
+ * Copyright Georg Koester 2012-15. All rights reserved.
+ */
+
+import org.apache.commons.lang3.tuple.Pair;
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Answers "what moves if..." for a planned change of a ring, without changing the ring: Candidate rings are built
+ * incrementally by the same builder (see {@link VNodeConsistentHashRingBuilder#createIncremental}) and compared with
+ * {@link RingDifferenceImpl#getRangeChanges()}, so trying a plan costs about as much as the incremental build. Shard
+ * ids are hashed and looked up in the current ring once, in
+ * {@link #setShardIds(FixedShardCountPrefixShardIdGenerator)}.
+ */
+@ParametersAreNonnullByDefault
+public final class RingChangeImpactPredictor {
+
+    private final VNodeConsistentHashRing ring;
+
+    private String[] shardIds = new String[0];
+
+    private long[] shardHashes = new long[0];
+
+    private VNodeImpl[] currentShardNodes = new VNodeImpl[0];
+
+    private RingChangeImpactPredictor(VNodeConsistentHashRing ring) {
+        this.ring = ring;
+    }
+
+    /**
+     * @param ring built with build state by {@link VNodeConsistentHashRingBuilder}, see
+     *             {@link VNodeConsistentHashRingBuilder#createIncremental(VNodeConsistentHashRing)}.
+     * @throws IllegalArgumentException if the ring can't be the base of an incremental build.
+     */
+    public static RingChangeImpactPredictor create(VNodeConsistentHashRing ring) {
+        if (ring.getBuildState() == null) {
+            throw new IllegalArgumentException("Ring wasn't built with build state by "
+                    + VNodeConsistentHashRingBuilder.class + ", can't predict changes");
+        }
+        return new RingChangeImpactPredictor(ring);
+    }
+
+    /**
+     * Shards as assigned by {@link FixedShardCountReplicatedTaskMgr}: by the ring node of the shard id.
+     */
+    public RingChangeImpactPredictor setShardIds(FixedShardCountPrefixShardIdGenerator shardIdGenerator) {
+        List<String> ids = shardIdGenerator.asList();
+        shardIds = ids.toArray(new String[ids.size()]);
+        shardHashes = new long[shardIds.length];
+        ConsistentHashRingHoldingResourceEntries<?, VNodeImpl, String, String> nodeRing = ring.getNodeRing();
+        for (int i = 0; i < shardIds.length; i++) {
+            shardHashes[i] = nodeRing.hashEntryKey(shardIds[i]);
+        }
+        currentShardNodes = new VNodeImpl[shardIds.length];
+        ring.getNodesForHashes(shardHashes, currentShardNodes);
+        return this;
+    }
+
+    public VNodeConsistentHashRing getRing() {
+        return ring;
+    }
+
+    /**
+     * @return a builder starting with the current ring's machines - add and remove machines, then pass it to
+     * {@link #predict(VNodeConsistentHashRingBuilder)}.
+     */
+    public VNodeConsistentHashRingBuilder newPlan() {
+        return VNodeConsistentHashRingBuilder.createIncremental(ring);
+    }
+
+    /**
+     * Adds the machine with its current tokens in the new state, like for flipping a machine to LEAVING.
+     *
+     * @throws IllegalArgumentException if the machine isn't in the ring.
+     */
+    public VNodeConsistentHashRingBuilder newPlanWithState(String machineId, MachineInRingState state) {
+        Pair<MachineInRingState, long[]> machine = ring.getBuildState().getMachines().get(machineId);
+        if (machine == null) {
+            throw new IllegalArgumentException("Machine not in ring: " + machineId);
+        }
+        return newPlan().addMachine(machineId, state, machine.getRight());
+    }
+
+    /**
+     * @param plan created by {@link #newPlan()} - it is built here.
+     */
+    public RingChangeImpact predict(VNodeConsistentHashRingBuilder plan) {
+        VNodeConsistentHashRing candidate = plan.build();
+        Map<String, MachineRangeChange> rangeChanges = RingDifferenceImpl.computeRangeChanges(ring, candidate);
+
+        List<String> changedShardIds = new ArrayList<>();
+        if (shardIds.length > 0) {
+            VNodeImpl[] candidateShardNodes = new VNodeImpl[shardIds.length];
+            candidate.getNodesForHashes(shardHashes, candidateShardNodes);
+            for (int i = 0; i < shardIds.length; i++) {
+                if (isAssignmentChanged(currentShardNodes[i], candidateShardNodes[i])) {
+                    changedShardIds.add(shardIds[i]);
+                }
+            }
+        }
+        return new RingChangeImpact(candidate, rangeChanges, changedShardIds);
+    }
+
+    private static boolean isAssignmentChanged(@Nullable VNodeImpl current, @Nullable VNodeImpl candidate) {
+        if (current == null || candidate == null) {
+            return current != candidate;
+        }
+        return !isSameIds(current.getReadReplicas(), candidate.getReadReplicas())
+                || !isSameIds(current.getWriteReplicas(), candidate.getWriteReplicas());
+    }
+
+    private static boolean isSameIds(List<Machine> a, List<Machine> b) {
+        if (a.size() != b.size()) {
+            return false;
+        }
+        for (int i = 0; i < a.size(); i++) {
+            if (!a.get(i).getMachineId().equals(b.get(i).getMachineId())) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
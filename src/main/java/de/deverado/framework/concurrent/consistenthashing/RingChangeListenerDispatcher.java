@@ -0,0 +1,152 @@
+package de.deverado.framework.concurrent.consistenthashing;/*
+ * Copyright Georg Koester 2012-15. All rights reserved.
+ */
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Delivers ring changes to one listener, serially and in order, on the given executor. Changes arriving while the
+ * listener is behind are conflated: The listener gets the newest ring with the difference to the last ring it saw.
+ */
+@ParametersAreNonnullByDefault
+final class RingChangeListenerDispatcher implements Runnable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RingChangeListenerDispatcher.class);
+
+    private final VNodeConsistentHashRingChangeListener listener;
+
+    private final Executor executor;
+
+    private final long deadlineNanos;
+
+    // guarded by this:
+    private boolean running;
+    private boolean removed;
+    private boolean hasPending;
+    private VNodeConsistentHashRing pendingOld;
+    private VNodeConsistentHashRing pendingNew;
+    private RingDifference pendingDifference;
+    private long deliveredCount;
+    private long conflatedCount;
+    private long slowCount;
+    private long totalLatencyNanos;
+    private long maxLatencyNanos;
+
+    /**
+     * @param deadlineNanos calls taking longer are logged and counted as slow, not interrupted. 0 for no deadline.
+     */
+    RingChangeListenerDispatcher(VNodeConsistentHashRingChangeListener listener, Executor executor,
+                                 long deadlineNanos) {
+        this.listener = listener;
+        this.executor = executor;
+        this.deadlineNanos = deadlineNanos;
+    }
+
+    VNodeConsistentHashRingChangeListener getListener() {
+        return listener;
+    }
+
+    void submit(@Nullable VNodeConsistentHashRing old, VNodeConsistentHashRing newRing, RingDifference difference) {
+        synchronized (this) {
+            if (removed) {
+                return;
+            }
+            if (hasPending) {
+                conflatedCount++;
+                pendingNew = newRing;
+                pendingDifference = RingDifferenceImpl.create(pendingOld, newRing);
+            } else {
+                hasPending = true;
+                pendingOld = old;
+                pendingNew = newRing;
+                pendingDifference = difference;
+            }
+            if (running) {
+                return;
+            }
+            running = true;
+        }
+        try {
+            executor.execute(this);
+        } catch (RejectedExecutionException e) {
+            LOG.warn("Ring change listener dispatch rejected for {}, dropping change", listener, e);
+            synchronized (this) {
+                running = false;
+                clearPending();
+            }
+        }
+    }
+
+    /**
+     * Pending changes are not delivered anymore.
+     */
+    synchronized void remove() {
+        removed = true;
+        clearPending();
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            VNodeConsistentHashRing old;
+            VNodeConsistentHashRing newRing;
+            RingDifference difference;
+            synchronized (this) {
+                if (!hasPending) {
+                    running = false;
+                    return;
+                }
+                old = pendingOld;
+                newRing = pendingNew;
+                difference = pendingDifference;
+                clearPending();
+            }
+            if (difference.isHavingDifference()) { // conflated changes can cancel out
+                deliver(old, newRing, difference);
+            }
+        }
+    }
+
+    private void deliver(@Nullable VNodeConsistentHashRing old, VNodeConsistentHashRing newRing,
+                         RingDifference difference) {
+        long start = System.nanoTime();
+        try {
+            listener.changed(old, newRing, difference);
+        } catch (Exception e) {
+            LOG.warn("Exception in ring change listener: {}, ignoring", listener, e);
+        }
+        long latency = System.nanoTime() - start;
+        boolean slow = deadlineNanos > 0 && latency > deadlineNanos;
+        synchronized (this) {
+            deliveredCount++;
+            totalLatencyNanos += latency;
+            maxLatencyNanos = Math.max(maxLatencyNanos, latency);
+            if (slow) {
+                slowCount++;
+            }
+        }
+        if (slow) {
+            LOG.warn("Ring change listener {} took {} ms, deadline is {} ms", listener,
+                    TimeUnit.NANOSECONDS.toMillis(latency), TimeUnit.NANOSECONDS.toMillis(deadlineNanos));
+        }
+    }
+
+    private void clearPending() {
+        hasPending = false;
+        pendingOld = null;
+        pendingNew = null;
+        pendingDifference = null;
+    }
+
+    synchronized RingChangeListenerStatistics getStatistics() {
+        return new RingChangeListenerStatistics(deliveredCount, conflatedCount, slowCount, totalLatencyNanos,
+                maxLatencyNanos);
+    }
+}
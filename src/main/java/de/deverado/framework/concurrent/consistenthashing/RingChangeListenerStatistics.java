@@ -0,0 +1,69 @@
+package de.deverado.framework.concurrent.consistenthashing;/*
+ * Copyright Georg Koester 2012-15. All rights reserved.
+ */
+
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Snapshot of how a ring change listener keeps up, see
+ * {@link VNodeConsistentHashRingMgr#getListenerStatistics(VNodeConsistentHashRingChangeListener)}.
+ */
+@ParametersAreNonnullByDefault
+public final class RingChangeListenerStatistics {
+
+    private final long deliveredCount;
+    private final long conflatedCount;
+    private final long slowCount;
+    private final long totalLatencyNanos;
+    private final long maxLatencyNanos;
+
+    RingChangeListenerStatistics(long deliveredCount, long conflatedCount, long slowCount, long totalLatencyNanos,
+                                 long maxLatencyNanos) {
+        this.deliveredCount = deliveredCount;
+        this.conflatedCount = conflatedCount;
+        this.slowCount = slowCount;
+        this.totalLatencyNanos = totalLatencyNanos;
+        this.maxLatencyNanos = maxLatencyNanos;
+    }
+
+    /**
+     * @return count of calls to the listener.
+     */
+    public long getDeliveredCount() {
+        return deliveredCount;
+    }
+
+    /**
+     * @return count of changes the listener skipped because a newer ring arrived before it was ready.
+     */
+    public long getConflatedCount() {
+        return conflatedCount;
+    }
+
+    /**
+     * @return count of calls exceeding the listener deadline.
+     */
+    public long getSlowCount() {
+        return slowCount;
+    }
+
+    public long getMeanLatency(TimeUnit unit) {
+        return deliveredCount > 0 ? unit.convert(totalLatencyNanos / deliveredCount, TimeUnit.NANOSECONDS) : 0;
+    }
+
+    public long getMaxLatency(TimeUnit unit) {
+        return unit.convert(maxLatencyNanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public String toString() {
+        return "RingChangeListenerStatistics{" +
+                "delivered=" + deliveredCount +
+                ", conflated=" + conflatedCount +
+                ", slow=" + slowCount +
+                ", meanLatencyMicros=" + getMeanLatency(TimeUnit.MICROSECONDS) +
+                ", maxLatencyMicros=" + getMaxLatency(TimeUnit.MICROSECONDS) +
+                '}';
+    }
+}
@@ -17,6 +17,12 @@ public class RingDifferenceImpl implements RingDifference {
 
     private Set<MachineInfo> changed;
 
+    private VNodeConsistentHashRing oldRing;
+
+    private VNodeConsistentHashRing newRing;
+
+    private Map<String, MachineRangeChange> rangeChanges;
+
     public static RingDifferenceImpl create(@Nullable VNodeConsistentHashRing currentRing,
                                             Collection<? extends MachineInfo> newInfos) {
 
@@ -44,6 +50,48 @@ public class RingDifferenceImpl implements RingDifference {
         return result;
     }
 
+    /**
+     * Like {@link #create(VNodeConsistentHashRing, Collection)}, but looks the machines up in the new ring's
+     * {@link MachineRegistry} instead of hashing all ids into a new map. Supports {@link #getRangeChanges()}, so it
+     * keeps references to both rings.
+     */
+    public static RingDifferenceImpl create(@Nullable VNodeConsistentHashRing currentRing,
+                                            VNodeConsistentHashRing newRing) {
+
+        MachineRegistry newMachines = newRing.getMachineRegistry();
+        boolean[] inCurrent = new boolean[newMachines.size()];
+
+        Set<MachineInfo> changed = new HashSet<>();
+        if (currentRing != null) {
+            for (Machine old : currentRing.getMachines()) {
+                int ordinal = newMachines.getOrdinal(old.getMachineId());
+                if (ordinal < 0) {
+                    // removed
+                    changed.add(old.asMachineInfo());
+                } else {
+                    inCurrent[ordinal] = true;
+                    Machine newMachine = newMachines.getMachine(ordinal);
+                    if (!Objects.equals(old.getState(), newMachine.getState())) {
+                        // state changed
+                        changed.add(newMachine.asMachineInfo());
+                    }
+                }
+            }
+        }
+        // machines that are new in new:
+        for (int i = 0; i < inCurrent.length; i++) {
+            if (!inCurrent[i]) {
+                changed.add(newMachines.getMachine(i).asMachineInfo());
+            }
+        }
+
+        RingDifferenceImpl result = new RingDifferenceImpl();
+        result.changed = changed;
+        result.oldRing = currentRing;
+        result.newRing = newRing;
+        return result;
+    }
+
     private static Map<String, MachineInfo> makeMap(Collection<? extends MachineInfo> machineInfos) {
 
         Map<String, MachineInfo> result = new HashMap<>(machineInfos.size());
@@ -62,4 +110,117 @@ public class RingDifferenceImpl implements RingDifference {
     public Set<MachineInfo> getChanged() {
         return changed;
     }
+
+    /**
+     * For moving data or tasks without checking every key against the new ring: the exact ranges each machine gained
+     * and lost as read and write replica. Computed on first call. Listeners of {@link VNodeConsistentHashRingMgr} get
+     * instances of this class.
+     *
+     * @return by machine id, only machines with changes. Null if the difference wasn't created from two rings, see
+     * {@link #create(VNodeConsistentHashRing, VNodeConsistentHashRing)}.
+     */
+    @Nullable
+    public synchronized Map<String, MachineRangeChange> getRangeChanges() {
+        if (rangeChanges == null && newRing != null) {
+            rangeChanges = Collections.unmodifiableMap(computeRangeChanges(oldRing, newRing));
+        }
+        return rangeChanges;
+    }
+
+    /**
+     * Linear merge of the token lists of both rings: Between two neighboring tokens of the union the replicas of
+     * both rings are constant, so each such segment is looked at once.
+     */
+    static Map<String, MachineRangeChange> computeRangeChanges(@Nullable VNodeConsistentHashRing oldRing,
+                                                               VNodeConsistentHashRing newRing) {
+        VNodeImpl[] oldNodes = oldRing == null ? new VNodeImpl[0] : nodesOf(oldRing);
+        VNodeImpl[] newNodes = nodesOf(newRing);
+        Map<String, MachineRangeChange> result = new HashMap<>();
+        if (oldNodes.length == 0 && newNodes.length == 0) {
+            return result;
+        }
+
+        long lastBoundary = Math.max(oldNodes.length > 0 ? oldNodes[oldNodes.length - 1].getHash() : Long.MIN_VALUE,
+                newNodes.length > 0 ? newNodes[newNodes.length - 1].getHash() : Long.MIN_VALUE);
+        long from = lastBoundary;
+        int oldIdx = 0;
+        int newIdx = 0;
+        while (oldIdx < oldNodes.length || newIdx < newNodes.length) {
+            long to;
+            if (newIdx >= newNodes.length
+                    || oldIdx < oldNodes.length && oldNodes[oldIdx].getHash() <= newNodes[newIdx].getHash()) {
+                to = oldNodes[oldIdx].getHash();
+            } else {
+                to = newNodes[newIdx].getHash();
+            }
+            // segment (from, to] is owned by the first node with a token >= to, looping around
+            VNodeImpl oldNode = oldNodes.length > 0 ? oldNodes[oldIdx % oldNodes.length] : null;
+            VNodeImpl newNode = newNodes.length > 0 ? newNodes[newIdx % newNodes.length] : null;
+
+            List<Machine> oldRead = oldNode == null ? Collections.<Machine>emptyList() : oldNode.getReadReplicas();
+            List<Machine> newRead = newNode == null ? Collections.<Machine>emptyList() : newNode.getReadReplicas();
+            for (Machine m : oldRead) {
+                if (!containsId(newRead, m.getMachineId())) {
+                    rangeChange(result, m).addLostRead(from, to);
+                }
+            }
+            for (Machine m : newRead) {
+                if (!containsId(oldRead, m.getMachineId())) {
+                    rangeChange(result, m).addGainedRead(from, to);
+                }
+            }
+            List<Machine> oldWrite = oldNode == null ? Collections.<Machine>emptyList() : oldNode.getWriteReplicas();
+            List<Machine> newWrite = newNode == null ? Collections.<Machine>emptyList() : newNode.getWriteReplicas();
+            for (Machine m : oldWrite) {
+                if (!containsId(newWrite, m.getMachineId())) {
+                    rangeChange(result, m).addLostWrite(from, to);
+                }
+            }
+            for (Machine m : newWrite) {
+                if (!containsId(oldWrite, m.getMachineId())) {
+                    rangeChange(result, m).addGainedWrite(from, to);
+                }
+            }
+
+            if (oldIdx < oldNodes.length && oldNodes[oldIdx].getHash() == to) {
+                oldIdx++;
+            }
+            if (newIdx < newNodes.length && newNodes[newIdx].getHash() == to) {
+                newIdx++;
+            }
+            from = to;
+        }
+        for (MachineRangeChange c : result.values()) {
+            c.finish();
+        }
+        return result;
+    }
+
+    private static VNodeImpl[] nodesOf(VNodeConsistentHashRing ring) {
+        ConsistentHashRingHoldingResourceEntries<?, VNodeImpl, String, String> nodeRing = ring.getNodeRing();
+        VNodeImpl[] result = new VNodeImpl[nodeRing.getNodeCount()];
+        int i = 0;
+        for (VNodeImpl n : nodeRing.getNodes()) {
+            result[i++] = n;
+        }
+        return result;
+    }
+
+    private static boolean containsId(List<Machine> machines, String machineId) {
+        for (int i = 0; i < machines.size(); i++) {
+            if (machines.get(i).getMachineId().equals(machineId)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static MachineRangeChange rangeChange(Map<String, MachineRangeChange> changes, Machine machine) {
+        MachineRangeChange result = changes.get(machine.getMachineId());
+        if (result == null) {
+            result = new MachineRangeChange(machine.getMachineId());
+            changes.put(machine.getMachineId(), result);
+        }
+        return result;
+    }
 }
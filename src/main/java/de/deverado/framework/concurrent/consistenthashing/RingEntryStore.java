@@ -0,0 +1,46 @@
+package de.deverado.framework.concurrent.consistenthashing;/*
+ * Copyright Georg Koester 2012-15. All rights reserved.
+ */
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+
+/**
+ * Holds the resource entries of a {@link ConsistentHashRingImpl}, ordered by hash. Entry keys with colliding hashes
+ * must be supported. Not thread-safe.
+ *
+ * @see TreeMapRingEntryStore
+ * @see SortedArrayRingEntryStore
+ */
+@ParametersAreNonnullByDefault
+public interface RingEntryStore<EntryKeyT, EntryT> {
+
+    @Nullable
+    public EntryT get(long hash, EntryKeyT key);
+
+    /**
+     * @return the replaced entry
+     */
+    @Nullable
+    public EntryT put(long hash, EntryKeyT key, EntryT entry);
+
+    /**
+     * @return the removed entry
+     */
+    @Nullable
+    public EntryT remove(long hash, EntryKeyT key);
+
+    public int size();
+
+    /**
+     * @return all entries, in hash order.
+     */
+    public Iterable<EntryT> getEntries();
+
+    /**
+     * @return the entries with hashes in <code>(fromExclusive, toInclusive]</code>, in ring order. If fromExclusive
+     * is not smaller than toInclusive the range loops around the end of the ring - so if both are equal all entries
+     * are returned.
+     */
+    public Iterable<EntryT> getEntriesInRange(long fromExclusive, long toInclusive);
+}
@@ -0,0 +1,72 @@
+package de.deverado.framework.concurrent.consistenthashing;/*
+ * Copyright Georg Koester 2012-15. All rights reserved.
+ */
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+
+/**
+ * The result of a pending node add or removal: the only range of the ring that changes owner, with the old and the new
+ * owner for all of it. See
+ * {@link ConsistentHashRingHoldingResourceEntries#getOwnershipChangeForAdd(long, Object)} and
+ * {@link ConsistentHashRingHoldingResourceEntries#getOwnershipChangeForRemove(long)}.
+ */
+@ParametersAreNonnullByDefault
+public class RingOwnershipChange<NodeT, EntryT> {
+
+    private final HashRange range;
+    private final NodeT oldOwner;
+    private final NodeT newOwner;
+    private final Iterable<EntryT> entries;
+
+    private RingOwnershipChange(HashRange range, @Nullable NodeT oldOwner, @Nullable NodeT newOwner,
+                                Iterable<EntryT> entries) {
+        this.range = range;
+        this.oldOwner = oldOwner;
+        this.newOwner = newOwner;
+        this.entries = entries;
+    }
+
+    public static <NodeT, EntryT> RingOwnershipChange<NodeT, EntryT> create(HashRange range, @Nullable NodeT oldOwner,
+                                                                            @Nullable NodeT newOwner,
+                                                                            Iterable<EntryT> entries) {
+        return new RingOwnershipChange<>(range, oldOwner, newOwner, entries);
+    }
+
+    public HashRange getRange() {
+        return range;
+    }
+
+    /**
+     * @return <code>null</code> if the ring was empty before.
+     */
+    @Nullable
+    public NodeT getOldOwner() {
+        return oldOwner;
+    }
+
+    /**
+     * @return <code>null</code> if the ring is empty after the change.
+     */
+    @Nullable
+    public NodeT getNewOwner() {
+        return newOwner;
+    }
+
+    /**
+     * @return a lazy view of the ring's entries in the range - iterating it only touches the entries that move. Like
+     * the ring's other entry views it is backed by the ring's entries.
+     */
+    public Iterable<EntryT> getEntries() {
+        return entries;
+    }
+
+    @Override
+    public String toString() {
+        return "RingOwnershipChange{" +
+                "range=" + range +
+                ", oldOwner=" + oldOwner +
+                ", newOwner=" + newOwner +
+                '}';
+    }
+}
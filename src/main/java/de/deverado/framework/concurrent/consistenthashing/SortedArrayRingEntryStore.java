@@ -0,0 +1,303 @@
+package de.deverado.framework.concurrent.consistenthashing;/*
+ * Copyright Georg Koester 2012-15. All rights reserved.
+ */
+
+import com.google.common.collect.Iterables;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+
+/**
+ * {@link RingEntryStore} for big entry counts: Hashes are kept in sorted <code>long[]</code> chunks with parallel key
+ * and entry reference arrays, so an entry costs a small constant (a primitive hash and two references, about 16-24
+ * bytes) in addition to the key and entry objects themselves - no map entry, no boxed hash, no per-hash map. The few
+ * big arrays are also cheap for the GC to trace compared to millions of small objects.
+ * <p>
+ * Chunks are split when full, so an insert or removal moves at most one chunk's elements. Colliding hashes are kept in
+ * adjacent slots.
+ * </p>
+ * <p>
+ * Iterators fail with a {@link ConcurrentModificationException} if the store is modified during iteration.
+ * </p>
+ */
+@ParametersAreNonnullByDefault
+public class SortedArrayRingEntryStore<EntryKeyT, EntryT> implements RingEntryStore<EntryKeyT, EntryT> {
+
+    public static final int DEFAULT_MAX_CHUNK_SIZE = 1024;
+
+    private static final int INITIAL_CHUNK_CAPACITY = 16;
+
+    private final int maxChunkSize;
+
+    /**
+     * Non-empty chunks in hash order.
+     */
+    private final ArrayList<Chunk> chunks = new ArrayList<>();
+
+    private int size;
+
+    private int modCount;
+
+    public SortedArrayRingEntryStore() {
+        this(DEFAULT_MAX_CHUNK_SIZE);
+    }
+
+    /**
+     * @param maxChunkSize number of entries after which a chunk is split.
+     */
+    public SortedArrayRingEntryStore(int maxChunkSize) {
+        if (maxChunkSize < 2) {
+            throw new IllegalArgumentException("maxChunkSize must be at least 2, got: " + maxChunkSize);
+        }
+        this.maxChunkSize = maxChunkSize;
+    }
+
+    private static final class Chunk {
+        long[] hashes;
+        Object[] keys;
+        Object[] entries;
+        int size;
+
+        Chunk(int capacity) {
+            hashes = new long[capacity];
+            keys = new Object[capacity];
+            entries = new Object[capacity];
+        }
+
+        long lastHash() {
+            return hashes[size - 1];
+        }
+
+        /**
+         * @return first position with a hash bigger or equal than the given one, size if there is none.
+         */
+        int lowerBound(long hash) {
+            int lo = 0;
+            int hi = size;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (hashes[mid] < hash) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            return lo;
+        }
+
+        void insert(int pos, long hash, Object key, Object entry) {
+            if (size == hashes.length) {
+                int capacity = hashes.length * 2;
+                hashes = Arrays.copyOf(hashes, capacity);
+                keys = Arrays.copyOf(keys, capacity);
+                entries = Arrays.copyOf(entries, capacity);
+            }
+            System.arraycopy(hashes, pos, hashes, pos + 1, size - pos);
+            System.arraycopy(keys, pos, keys, pos + 1, size - pos);
+            System.arraycopy(entries, pos, entries, pos + 1, size - pos);
+            hashes[pos] = hash;
+            keys[pos] = key;
+            entries[pos] = entry;
+            size++;
+        }
+
+        void remove(int pos) {
+            int moved = size - pos - 1;
+            System.arraycopy(hashes, pos + 1, hashes, pos, moved);
+            System.arraycopy(keys, pos + 1, keys, pos, moved);
+            System.arraycopy(entries, pos + 1, entries, pos, moved);
+            size--;
+            keys[size] = null;
+            entries[size] = null;
+        }
+
+        /**
+         * Moves the upper half into a new chunk.
+         */
+        Chunk split() {
+            int moved = size / 2;
+            Chunk upper = new Chunk(Math.max(INITIAL_CHUNK_CAPACITY, hashes.length));
+            System.arraycopy(hashes, size - moved, upper.hashes, 0, moved);
+            System.arraycopy(keys, size - moved, upper.keys, 0, moved);
+            System.arraycopy(entries, size - moved, upper.entries, 0, moved);
+            upper.size = moved;
+            Arrays.fill(keys, size - moved, size, null);
+            Arrays.fill(entries, size - moved, size, null);
+            size -= moved;
+            return upper;
+        }
+    }
+
+    /**
+     * @return index of the first chunk containing a hash bigger or equal than the given one, the chunk count if none.
+     */
+    private int chunkIndexFor(long hash) {
+        int lo = 0;
+        int hi = chunks.size();
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (chunks.get(mid).lastHash() < hash) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * @return <code>{chunkIdx, pos}</code> of the key, null if not found.
+     */
+    private int[] find(long hash, EntryKeyT key) {
+        for (int chunkIdx = chunkIndexFor(hash); chunkIdx < chunks.size(); chunkIdx++) {
+            // colliding hashes might continue in the next chunk
+            Chunk chunk = chunks.get(chunkIdx);
+            for (int pos = chunk.lowerBound(hash); pos < chunk.size; pos++) {
+                if (chunk.hashes[pos] != hash) {
+                    return null;
+                }
+                if (Objects.equals(chunk.keys[pos], key)) {
+                    return new int[]{chunkIdx, pos};
+                }
+            }
+        }
+        return null;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public EntryT get(long hash, EntryKeyT key) {
+        int[] found = find(hash, key);
+        return found == null ? null : (EntryT) chunks.get(found[0]).entries[found[1]];
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public EntryT put(long hash, EntryKeyT key, EntryT entry) {
+        int[] found = find(hash, key);
+        if (found != null) {
+            Chunk chunk = chunks.get(found[0]);
+            EntryT retval = (EntryT) chunk.entries[found[1]];
+            chunk.entries[found[1]] = entry;
+            return retval;
+        }
+
+        modCount++;
+        size++;
+        if (chunks.isEmpty()) {
+            Chunk chunk = new Chunk(INITIAL_CHUNK_CAPACITY);
+            chunk.insert(0, hash, key, entry);
+            chunks.add(chunk);
+            return null;
+        }
+        int chunkIdx = Math.min(chunkIndexFor(hash), chunks.size() - 1);
+        Chunk chunk = chunks.get(chunkIdx);
+        if (chunk.size >= maxChunkSize) {
+            Chunk upper = chunk.split();
+            chunks.add(chunkIdx + 1, upper);
+            if (hash > chunk.lastHash()) {
+                chunk = upper;
+            }
+        }
+        chunk.insert(chunk.lowerBound(hash), hash, key, entry);
+        return null;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public EntryT remove(long hash, EntryKeyT key) {
+        int[] found = find(hash, key);
+        if (found == null) {
+            return null;
+        }
+        modCount++;
+        size--;
+        Chunk chunk = chunks.get(found[0]);
+        EntryT retval = (EntryT) chunk.entries[found[1]];
+        chunk.remove(found[1]);
+        if (chunk.size == 0) {
+            chunks.remove(found[0]);
+        }
+        return retval;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public Iterable<EntryT> getEntries() {
+        return range(Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    @Override
+    public Iterable<EntryT> getEntriesInRange(long fromExclusive, long toInclusive) {
+        if (fromExclusive < toInclusive) {
+            return range(fromExclusive + 1, toInclusive);
+        }
+        // need to loop
+        if (fromExclusive == Long.MAX_VALUE) {
+            return range(Long.MIN_VALUE, toInclusive);
+        }
+        return Iterables.concat(range(fromExclusive + 1, Long.MAX_VALUE), range(Long.MIN_VALUE, toInclusive));
+    }
+
+    /**
+     * @return entries with hashes in <code>[fromInclusive, toInclusive]</code>
+     */
+    private Iterable<EntryT> range(final long fromInclusive, final long toInclusive) {
+        return new Iterable<EntryT>() {
+            @Override
+            public Iterator<EntryT> iterator() {
+                return new Iterator<EntryT>() {
+
+                    private final int expectedModCount = modCount;
+                    private int chunkIdx = chunkIndexFor(fromInclusive);
+                    private int pos = chunkIdx < chunks.size() ? chunks.get(chunkIdx).lowerBound(fromInclusive) : 0;
+
+                    @Override
+                    public boolean hasNext() {
+                        if (modCount != expectedModCount) {
+                            throw new ConcurrentModificationException();
+                        }
+                        return chunkIdx < chunks.size() && chunks.get(chunkIdx).hashes[pos] <= toInclusive;
+                    }
+
+                    @Override
+                    @SuppressWarnings("unchecked")
+                    public EntryT next() {
+                        if (!hasNext()) {
+                            throw new NoSuchElementException();
+                        }
+                        Chunk chunk = chunks.get(chunkIdx);
+                        EntryT next = (EntryT) chunk.entries[pos];
+                        if (++pos == chunk.size) {
+                            chunkIdx++;
+                            pos = 0;
+                        }
+                        return next;
+                    }
+
+                    @Override
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+        };
+    }
+
+    @Override
+    public String toString() {
+        return "SortedArrayRingEntryStore{" +
+                "size=" + size +
+                ", chunks=" + chunks.size() +
+                '}';
+    }
+}
@@ -0,0 +1,35 @@
+package de.deverado.framework.concurrent.consistenthashing;/*
+ * Copyright Georg Koester 2012-15. All rights reserved.
+ */
+
+/**
+ * Thrown by the epoch-conditional lookups of {@link VNodeConsistentHashRingMgr} if the ring changed since the caller
+ * pinned it. Meant for fail-fast routing - without stack trace, so it is cheap to create.
+ */
+public class StaleRingEpochException extends IllegalStateException {
+
+    private static final long serialVersionUID = -5265235203657073729L;
+
+    private final long expectedEpoch;
+
+    private final long currentEpoch;
+
+    public StaleRingEpochException(long expectedEpoch, long currentEpoch) {
+        super("Ring epoch is " + currentEpoch + ", caller expected " + expectedEpoch);
+        this.expectedEpoch = expectedEpoch;
+        this.currentEpoch = currentEpoch;
+    }
+
+    public long getExpectedEpoch() {
+        return expectedEpoch;
+    }
+
+    public long getCurrentEpoch() {
+        return currentEpoch;
+    }
+
+    @Override
+    public synchronized Throwable fillInStackTrace() {
+        return this;
+    }
+}
@@ -0,0 +1,535 @@
+package de.deverado.framework.concurrent.consistenthashing;/*
+ * Copyright Georg Koester 2012-15. All rights reserved.
+ */
+
+import com.google.common.primitives.UnsignedLongs;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Chooses the vnode tokens of a new machine so that the replicated ownership - the fraction of the hash space a
+ * machine holds as read replica - is even relative to the capacity weights of the machines. An alternative to
+ * {@link ConsistentHashRings#createRandomVnodes(Random, String, int)}, where ownership varies by 10% and more even
+ * with hundreds of vnodes per machine.
+ * <p>
+ * Tokens are chosen greedily one after the other: Every candidate range is split where the weighted squared
+ * difference of replicated ownership and target ownership gets smallest, the candidate reducing it most wins.
+ * Replicas are modelled like {@link VNodeConsistentHashRingBuilder} determines them: The leader and the leaders of the
+ * nodes before it, up to replicaCount distinct machines. Only the effect on the nodes near the split is evaluated, so
+ * a token costs about candidate count times replicaCount squared steps. For big rings the candidates are a random
+ * sample of the ranges.
+ * </p>
+ * <p>
+ * The result only depends on the machines, weights, settings and the seed, so all nodes compute the same tokens. Not
+ * thread-safe.
+ * </p>
+ */
+@ParametersAreNonnullByDefault
+public final class TokenAllocator {
+
+    public static final int DEFAULT_MAX_CANDIDATES = 1024;
+
+    private static final double HASH_SPACE = 18446744073709551616.0;
+
+    private static final double TWO_TO_63 = 9223372036854775808.0;
+
+    private static final double MIN_SPLIT_FRACTION = 0.25;
+
+    private final int replicaCount;
+
+    private int maxCandidates = DEFAULT_MAX_CANDIDATES;
+
+    private final Map<String, Integer> machineIndexes = new HashMap<>();
+    private final List<String> machineIds = new ArrayList<>();
+    private double[] weights = new double[8];
+    private double[] loads = new double[8];
+    private int[] tokenCounts = new int[8];
+    private int machinesWithTokens;
+
+    private int tokenCount;
+    private long[] tokens = new long[16];
+    private int[] owners = new int[16];
+
+    // scratch for evaluating candidates
+    private double[] targets = new double[8];
+    private double[] constantDeltas = new double[8];
+    private double[] slopeDeltas = new double[8];
+    private int[] touchedMachines = new int[16];
+    private int touchedCount;
+    private final int[] replicas;
+    private final int[] seenOwners;
+
+    private TokenAllocator(int replicaCount) {
+        if (replicaCount < 1) {
+            throw new IllegalArgumentException("Replica count must be 1 at least, got: " + replicaCount);
+        }
+        this.replicaCount = replicaCount;
+        this.replicas = new int[replicaCount];
+        this.seenOwners = new int[replicaCount];
+    }
+
+    public static TokenAllocator create(int replicaCount) {
+        return new TokenAllocator(replicaCount);
+    }
+
+    /**
+     * Starts with the vnodes led by the INTEGRATED machines of the ring, each with weight 1. LEAVING machines are
+     * left out as their ranges are about to move, BOOTSTRAPPING ones aren't in the ring yet - add them with
+     * {@link #addMachine(String, double, long...)}.
+     */
+    public static TokenAllocator create(VNodeConsistentHashRing ring, int replicaCount) {
+        TokenAllocator result = new TokenAllocator(replicaCount);
+        for (Machine m : ring.getMachines()) {
+            if (MachineInRingState.INTEGRATED.equals(m.getState())) {
+                result.getOrAddMachine(m.getMachineId(), 1.0);
+            }
+        }
+        for (VNodeImpl n : ring.getNodeRing().getNodes()) {
+            if (MachineInRingState.INTEGRATED.equals(n.getLeader().getState())) {
+                result.appendToken(n.getHash(), result.machineIndexes.get(n.getLeaderId()));
+            }
+        }
+        result.recomputeLoads();
+        return result;
+    }
+
+    /**
+     * Defaults to {@link #DEFAULT_MAX_CANDIDATES}. Rings with more ranges get a random sample of this many ranges
+     * evaluated per token. More candidates, better balance, slower.
+     */
+    public TokenAllocator setMaxCandidates(int maxCandidates) {
+        if (maxCandidates < 1) {
+            throw new IllegalArgumentException("maxCandidates must be 1 at least, got: " + maxCandidates);
+        }
+        this.maxCandidates = maxCandidates;
+        return this;
+    }
+
+    /**
+     * Adds a machine with already chosen tokens. Tokens some other machine has already are ignored.
+     *
+     * @param weight relative capacity, a machine of weight 2 should hold twice the data of one of weight 1.
+     * @throws IllegalArgumentException if the machine is known already.
+     */
+    public TokenAllocator addMachine(String id, double weight, long... machineTokens) {
+        if (machineIndexes.containsKey(id)) {
+            throw new IllegalArgumentException("Machine already added: " + id);
+        }
+        int machine = getOrAddMachine(id, weight);
+        for (long token : machineTokens) {
+            int idx = Arrays.binarySearch(tokens, 0, tokenCount, token);
+            if (idx < 0) {
+                insertToken(-idx - 1, token, machine);
+            }
+        }
+        recomputeLoads();
+        return this;
+    }
+
+    /**
+     * Sets the capacity weight of a known machine.
+     */
+    public TokenAllocator setWeight(String id, double weight) {
+        checkWeight(weight);
+        Integer machine = machineIndexes.get(id);
+        if (machine == null) {
+            throw new IllegalArgumentException("Unknown machine: " + id);
+        }
+        weights[machine] = weight;
+        return this;
+    }
+
+    /**
+     * Chooses the tokens for a new machine and adds it, so that allocations for several new machines can follow each
+     * other.
+     *
+     * @param weight relative capacity, see {@link #addMachine(String, double, long...)}.
+     * @param seed   same seed and same state give the same tokens.
+     * @return the tokens, sorted.
+     * @throws IllegalArgumentException if the machine is known already.
+     */
+    public long[] allocate(String id, double weight, int vnodeCount, long seed) {
+        if (machineIndexes.containsKey(id)) {
+            throw new IllegalArgumentException("Machine already added: " + id);
+        }
+        if (vnodeCount < 1) {
+            throw new IllegalArgumentException("vnodeCount must be 1 at least, got: " + vnodeCount);
+        }
+        int machine = getOrAddMachine(id, weight);
+        Random random = new Random(seed);
+        long[] result = new long[vnodeCount];
+        int resultCount = 0;
+
+        while (resultCount < vnodeCount) {
+            if (machinesWithTokens + (tokenCounts[machine] == 0 ? 1 : 0) <= replicaCount) {
+                // every machine replicates the whole ring, no matter where the token goes
+                result[resultCount] = insertGridToken(machine, machinesWithTokens - (resultCount > 0 ? 1 : 0),
+                        resultCount, vnodeCount, random);
+                resultCount++;
+                continue;
+            }
+            updateTargets(machine, resultCount + 1, vnodeCount);
+            int bestRange = -1;
+            long bestOffset = 0;
+            double bestObjectiveDelta = 0;
+            double bestRangeSize = 0;
+            int candidates = Math.min(tokenCount, maxCandidates);
+            for (int c = 0; c < candidates; c++) {
+                int range = tokenCount <= maxCandidates ? c : random.nextInt(tokenCount);
+                if (getRangeLength(range) == 1) {
+                    continue; // no token left in the range
+                }
+                double rangeSize = getRangeSize(range);
+                evaluateSplit(range, machine);
+                long offset = getBestOffset(range);
+                double objectiveDelta = getObjectiveDelta(getOffsetFraction(range, offset));
+                if (bestRange < 0 || objectiveDelta < bestObjectiveDelta
+                        || objectiveDelta == bestObjectiveDelta && rangeSize > bestRangeSize) {
+                    bestRange = range;
+                    bestOffset = offset;
+                    bestObjectiveDelta = objectiveDelta;
+                    bestRangeSize = rangeSize;
+                }
+            }
+            if (bestRange < 0) {
+                throw new IllegalStateException("No token left to split a range in the hash space");
+            }
+            result[resultCount++] = split(bestRange, bestOffset, machine);
+        }
+        Arrays.sort(result);
+        return result;
+    }
+
+    /**
+     * @return the fraction of the hash space the machine holds as replica, 0 for unknown machines.
+     */
+    public double getReplicatedOwnership(String id) {
+        Integer machine = machineIndexes.get(id);
+        return machine != null ? loads[machine] : 0;
+    }
+
+    /**
+     * @return the standard deviation of replicated ownership divided by weight, over all machines, in units of the
+     * mean.
+     */
+    public double getRelativeStandardDeviation() {
+        int count = machineIds.size();
+        if (count == 0) {
+            return 0;
+        }
+        double sum = 0;
+        for (int m = 0; m < count; m++) {
+            sum += loads[m] / weights[m];
+        }
+        double mean = sum / count;
+        double squares = 0;
+        for (int m = 0; m < count; m++) {
+            double d = loads[m] / weights[m] - mean;
+            squares += d * d;
+        }
+        return mean > 0 ? Math.sqrt(squares / count) / mean : 0;
+    }
+
+    private int getOrAddMachine(String id, double weight) {
+        checkWeight(weight);
+        Integer existing = machineIndexes.get(id);
+        if (existing != null) {
+            return existing;
+        }
+        int result = machineIds.size();
+        machineIds.add(id);
+        machineIndexes.put(id, result);
+        if (result == weights.length) {
+            weights = Arrays.copyOf(weights, result * 2);
+            loads = Arrays.copyOf(loads, result * 2);
+            tokenCounts = Arrays.copyOf(tokenCounts, result * 2);
+            targets = Arrays.copyOf(targets, result * 2);
+            constantDeltas = Arrays.copyOf(constantDeltas, result * 2);
+            slopeDeltas = Arrays.copyOf(slopeDeltas, result * 2);
+        }
+        weights[result] = weight;
+        return result;
+    }
+
+    private static void checkWeight(double weight) {
+        if (!(weight > 0) || Double.isInfinite(weight)) {
+            throw new IllegalArgumentException("weight must be positive, got: " + weight);
+        }
+    }
+
+    private void appendToken(long token, int machine) {
+        insertToken(tokenCount, token, machine);
+    }
+
+    private void insertToken(int idx, long token, int machine) {
+        if (tokenCount == tokens.length) {
+            tokens = Arrays.copyOf(tokens, tokenCount * 2);
+            owners = Arrays.copyOf(owners, tokenCount * 2);
+        }
+        System.arraycopy(tokens, idx, tokens, idx + 1, tokenCount - idx);
+        System.arraycopy(owners, idx, owners, idx + 1, tokenCount - idx);
+        tokens[idx] = token;
+        owners[idx] = machine;
+        tokenCount++;
+        if (tokenCounts[machine]++ == 0) {
+            machinesWithTokens++;
+        }
+    }
+
+    private void recomputeLoads() {
+        Arrays.fill(loads, 0);
+        for (int q = 0; q < tokenCount; q++) {
+            double size = getRangeSize(q);
+            int count = collectReplicas(q, tokenCount, -1, -1);
+            for (int i = 0; i < count; i++) {
+                loads[replicas[i]] += size;
+            }
+        }
+    }
+
+    private long getRangeStart(int range) {
+        return tokens[range == 0 ? tokenCount - 1 : range - 1];
+    }
+
+    /**
+     * @return the unsigned count of hashes owned by the node at the index, 0 for all 2^64.
+     */
+    private long getRangeLength(int idx) {
+        return tokens[idx] - getRangeStart(idx);
+    }
+
+    /**
+     * @return the fraction of the hash space owned by the node at the index.
+     */
+    private double getRangeSize(int idx) {
+        if (tokenCount == 1) {
+            return 1.0;
+        }
+        return RingBalanceAnalyzer.hashSpaceFraction(getRangeStart(idx), tokens[idx]);
+    }
+
+    /**
+     * @return the fraction of the range that the new node gets when splitting at the offset from the range start.
+     */
+    private double getOffsetFraction(int range, long offset) {
+        return RingBalanceAnalyzer.hashSpaceFraction(0, offset) / getRangeSize(range);
+    }
+
+    /**
+     * For the split evaluated last: The new node gets the hashes from the start of the range up to the returned
+     * offset. The load changes are linear in the offset, so the objective is a parabola with its minimum at
+     * -sum((load + constant - target) * slope / weight) / sum(slope^2 / weight). Limited to
+     * {@link #MIN_SPLIT_FRACTION} from either end of the range: Splits into very uneven ranges balance the next token
+     * best but leave big ranges whose replicas can't be changed by a single token later.
+     *
+     * @return unsigned offset, at least 1 and less than the range length.
+     */
+    private long getBestOffset(int range) {
+        double numerator = 0;
+        double denominator = 0;
+        for (int i = 0; i < touchedCount; i++) {
+            int m = touchedMachines[i];
+            numerator += (loads[m] + constantDeltas[m] - targets[m]) * slopeDeltas[m] / weights[m];
+            denominator += slopeDeltas[m] * slopeDeltas[m] / weights[m];
+        }
+        double fraction = denominator > 0 ? -numerator / denominator : 0.5;
+        double offset = Math.max(MIN_SPLIT_FRACTION, Math.min(1 - MIN_SPLIT_FRACTION, fraction))
+                * getRangeSize(range) * HASH_SPACE;
+
+        long maxOffset = getRangeLength(range) - 1; // unsigned, 2^64 - 1 for the whole ring
+        long result = offset >= TWO_TO_63 ? (long) (offset - TWO_TO_63) + Long.MIN_VALUE : (long) offset;
+        if (UnsignedLongs.compare(result, 1) < 0) {
+            return 1;
+        }
+        return UnsignedLongs.compare(result, maxOffset) > 0 ? maxOffset : result;
+    }
+
+    /**
+     * For the split evaluated last.
+     *
+     * @param fraction of the range the new node gets.
+     * @return change of the sum of the squared differences of load and target, divided by weight.
+     */
+    private double getObjectiveDelta(double fraction) {
+        double result = 0;
+        for (int i = 0; i < touchedCount; i++) {
+            int m = touchedMachines[i];
+            double before = loads[m] - targets[m];
+            double after = before + constantDeltas[m] + slopeDeltas[m] * fraction;
+            result += (after * after - before * before) / weights[m];
+        }
+        return result;
+    }
+
+    /**
+     * Inserts a token of the machine at the offset from the start of the range, updates the loads.
+     *
+     * @return the new token.
+     */
+    private long split(int range, long offset, int machine) {
+        evaluateSplit(range, machine);
+        double fraction = getOffsetFraction(range, offset);
+        for (int i = 0; i < touchedCount; i++) {
+            int m = touchedMachines[i];
+            loads[m] += constantDeltas[m] + slopeDeltas[m] * fraction;
+        }
+        clearDeltas();
+        return insertSplit(range, offset, machine);
+    }
+
+    private long insertSplit(int range, long offset, int machine) {
+        long token = getRangeStart(range) + offset;
+        // the split of the wrapping range can end up before the first or after the last token
+        insertToken(range == 0 && token > tokens[tokenCount - 1] ? tokenCount : range, token, machine);
+        return token;
+    }
+
+    /**
+     * The targets are the loads of a perfect balance by weight, for the allocating machine the part of it the tokens
+     * up to the current one should get. Without the latter the first tokens would take too much from the machines
+     * they split as the allocating machine starts without load.
+     */
+    private void updateTargets(int machine, int tokenNumber, int vnodeCount) {
+        int owning = machinesWithTokens + (tokenCounts[machine] == 0 ? 1 : 0);
+        double totalWeight = 0;
+        for (int m = 0; m < machineIds.size(); m++) {
+            if (tokenCounts[m] > 0 || m == machine) {
+                totalWeight += weights[m];
+            }
+        }
+        double perWeight = Math.min(replicaCount, owning) / totalWeight;
+        for (int m = 0; m < machineIds.size(); m++) {
+            targets[m] = tokenCounts[m] > 0 || m == machine ? weights[m] * perWeight : 0;
+        }
+        targets[machine] *= (double) tokenNumber / vnodeCount;
+    }
+
+    /**
+     * While all machines replicate everything a token's position doesn't change the loads, so the tokens are placed
+     * for the machines to come: The first replicaCount machines get interleaved evenly spaced tokens, so any
+     * replicaCount consecutive nodes have distinct leaders. Later machines then can take load off any machine with a
+     * single token, which isn't possible for runs of a few alternating leaders.
+     *
+     * @param k the count of machines with tokens before this one.
+     * @return the new token.
+     */
+    private long insertGridToken(int machine, int k, int tokenNumber, int vnodeCount, Random random) {
+        long base = tokenCount == 0 ? random.nextLong() : tokens[0];
+        long spacing = UnsignedLongs.divide(-1L, (long) replicaCount * vnodeCount); // about 2^64 / count
+        long token = base + spacing * ((long) tokenNumber * replicaCount + k);
+        while (Arrays.binarySearch(tokens, 0, tokenCount, token) >= 0) {
+            token++;
+        }
+        insertToken(-Arrays.binarySearch(tokens, 0, tokenCount, token) - 1, token, machine);
+        loads[machine] = 1.0;
+        return token;
+    }
+
+    /**
+     * Computes the load changes of the touched machines caused by splitting the range with a node of the machine
+     * before it, as constant and as slope per fraction of the range the new node gets. Nodes with the same replicas
+     * and size before and after the split aren't evaluated. The ring is seen as virtual indexes, the ones of the token
+     * array with the new node at the index of the range.
+     */
+    private void evaluateSplit(int range, int machine) {
+        clearDeltas();
+        int virtualCount = tokenCount + 1;
+        double rangeSize = getRangeSize(range);
+
+        // the new node
+        addDeltas(collectReplicas(range, virtualCount, range, machine), 0, rangeSize);
+
+        // the split node and nodes after it whose replica walk reaches the new node
+        int distinct = 0;
+        for (int step = 0; step < tokenCount; step++) {
+            int q = (range + step) % tokenCount;
+            int owner = owners[q];
+            boolean isNew = true;
+            for (int i = 0; i < distinct; i++) {
+                if (seenOwners[i] == owner) {
+                    isNew = false;
+                    break;
+                }
+            }
+            if (isNew && distinct < replicaCount) {
+                seenOwners[distinct++] = owner;
+            }
+            if (distinct >= replicaCount && step > 0) {
+                break; // walk stops before reaching the new node
+            }
+            double size = getRangeSize(q);
+            addDeltas(collectReplicas(q, tokenCount, -1, -1), -size, 0);
+            int virtual = q >= range ? q + 1 : q;
+            addDeltas(collectReplicas(virtual, virtualCount, range, machine), size, step == 0 ? -size : 0);
+        }
+    }
+
+    private void addDeltas(int count, double constant, double slope) {
+        for (int i = 0; i < count; i++) {
+            int m = replicas[i];
+            if (!isTouched(m)) {
+                touch(m);
+            }
+            constantDeltas[m] += constant;
+            slopeDeltas[m] += slope;
+        }
+    }
+
+    private boolean isTouched(int m) {
+        for (int i = 0; i < touchedCount; i++) {
+            if (touchedMachines[i] == m) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void touch(int m) {
+        if (touchedCount == touchedMachines.length) {
+            touchedMachines = Arrays.copyOf(touchedMachines, touchedCount * 2);
+        }
+        touchedMachines[touchedCount++] = m;
+    }
+
+    private void clearDeltas() {
+        for (int i = 0; i < touchedCount; i++) {
+            constantDeltas[touchedMachines[i]] = 0;
+            slopeDeltas[touchedMachines[i]] = 0;
+        }
+        touchedCount = 0;
+    }
+
+    /**
+     * Walks back from the node at the virtual index, collecting distinct owners into {@link #replicas}. Virtual indexes
+     * are those of the token array with a node of insertedMachine at the inserted index, -1 for none.
+     *
+     * @return count of replicas collected.
+     */
+    private int collectReplicas(int virtual, int virtualCount, int inserted, int insertedMachine) {
+        int count = 0;
+        for (int step = 0; step < virtualCount && count < replicaCount; step++) {
+            int idx = virtual - step;
+            if (idx < 0) {
+                idx += virtualCount;
+            }
+            int m = inserted < 0 || idx < inserted ? owners[idx] : idx == inserted ? insertedMachine : owners[idx - 1];
+            boolean isNew = true;
+            for (int i = 0; i < count; i++) {
+                if (replicas[i] == m) {
+                    isNew = false;
+                    break;
+                }
+            }
+            if (isNew) {
+                replicas[count++] = m;
+            }
+        }
+        return count;
+    }
+}
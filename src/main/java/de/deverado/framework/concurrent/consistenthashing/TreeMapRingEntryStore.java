@@ -0,0 +1,157 @@
+package de.deverado.framework.concurrent.consistenthashing;/*
+ * Copyright Georg Koester 2012-15. All rights reserved.
+ */
+
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Maps;
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The default {@link RingEntryStore}: A {@link TreeMap} from hash to a singleton map, or a {@link TreeMap} for
+ * colliding hashes. Simple and fast, but costs around 100 bytes per entry - see {@link SortedArrayRingEntryStore} for
+ * big entry counts.
+ */
+@ParametersAreNonnullByDefault
+public class TreeMapRingEntryStore<EntryKeyT, EntryT> implements RingEntryStore<EntryKeyT, EntryT> {
+
+    private final TreeMap<Long, Map<EntryKeyT, EntryT>> entryRing = Maps.newTreeMap();
+
+    private int size;
+
+    @Override
+    public EntryT get(long hash, EntryKeyT key) {
+        Map<EntryKeyT, EntryT> inner = entryRing.get(hash);
+        if (inner != null) {
+            return inner.get(key);
+        }
+        return null;
+    }
+
+    @Override
+    public EntryT put(long hash, EntryKeyT key, EntryT entry) {
+        Map<EntryKeyT, EntryT> inner = entryRing.get(hash);
+        EntryT retval = null;
+        if (inner != null) {
+            if (inner instanceof TreeMap) {
+                int sizeBefore = inner.size();
+                retval = inner.put(key, entry);
+                size += inner.size() - sizeBefore;
+            } else {
+                inner = new TreeMap<EntryKeyT, EntryT>(inner);
+                retval = inner.put(key, entry);
+                if (inner.size() == 1) {
+                    entryRing.put(hash, Collections.singletonMap(key, entry));
+                } else {
+                    entryRing.put(hash, inner);
+                    size++;
+                }
+            }
+        } else {
+            inner = Collections.singletonMap(key, entry);
+            entryRing.put(hash, inner);
+            size++;
+        }
+        return retval;
+    }
+
+    @Override
+    public EntryT remove(long hash, EntryKeyT key) {
+        Map<EntryKeyT, EntryT> inner = entryRing.get(hash);
+        EntryT retval = null;
+        if (inner != null) {
+            if (inner.size() == 1) {
+                retval = inner.get(key);
+                if (retval != null) {
+                    entryRing.remove(hash);
+                    size--;
+                }
+            } else {
+                int sizeBefore = inner.size();
+                retval = inner.remove(key);
+                size -= sizeBefore - inner.size();
+            }
+        }
+        return retval;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public Iterable<EntryT> getEntries() {
+        return iterateEntries(entryRing.values());
+    }
+
+    @Override
+    public Iterable<EntryT> getEntriesInRange(long fromExclusive, long toInclusive) {
+        if (fromExclusive < toInclusive) {
+            return iterateEntries(entryRing.subMap(fromExclusive, false, toInclusive, true).values());
+        }
+        // need to loop
+        return Iterables.concat(
+                iterateEntries(entryRing.tailMap(fromExclusive, false).values()), //
+                iterateEntries(entryRing.headMap(toInclusive, true).values()));
+    }
+
+    private Iterable<EntryT> iterateEntries(
+            final Collection<Map<EntryKeyT, EntryT>> collection) {
+
+        return new Iterable<EntryT>() {
+            @Override
+            public Iterator<EntryT> iterator() {
+                return new Iterator<EntryT>() {
+
+                    private Iterator<Map<EntryKeyT, EntryT>> outer = collection
+                            .iterator();
+                    private Iterator<EntryT> inner;
+
+                    @Override
+                    public boolean hasNext() {
+                        boolean innerHasNext = false;
+                        while (!innerHasNext) {
+                            if (inner == null) {
+                                if (outer.hasNext()) {
+                                    inner = outer.next().values().iterator();
+                                } else {
+                                    break;
+                                }
+                            }
+
+                            innerHasNext = inner.hasNext();
+                            if (!innerHasNext) {
+                                inner = null;
+                            }
+                        }
+                        return innerHasNext;
+                    }
+
+                    @Override
+                    public EntryT next() {
+                        if (inner == null) {
+                            if (!hasNext()) {
+                                throw new IllegalStateException();
+                            }
+                        }
+                        EntryT next = inner.next();
+                        return next;
+                    }
+
+                    @Override
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+
+                };
+            }
+        };
+    }
+}
@@ -2,7 +2,8 @@ package de.deverado.framework.concurrent.consistenthashing;/*
  * Copyright Georg Koester 2012-15. All rights reserved.
  */
 
-import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.MultimapBuilder;
 
 import javax.annotation.Nullable;
 import javax.annotation.ParametersAreNonnullByDefault;
@@ -42,23 +43,63 @@ import java.util.List;
 public class VNodeConsistentHashRing {
 
     private ConsistentHashRingHoldingResourceEntries<?, VNodeImpl, String, String> ring;
-    private List<Machine> allMachineList;
+    private MachineRegistry machineRegistry;
     private int machineInfos;
+    private VNodeRingBuildState buildState;
 
     public static VNodeConsistentHashRing create(List<Machine> allMachines,
                                                  ConsistentHashRingHoldingResourceEntries<?, VNodeImpl, String,
                                                          String> ring) {
         VNodeConsistentHashRing result = new VNodeConsistentHashRing();
         result.ring = ring;
-        result.allMachineList = ImmutableList.copyOf(allMachines);
+        result.machineRegistry = MachineRegistry.create(allMachines);
         return result;
     }
 
+    static VNodeConsistentHashRing create(List<Machine> allMachines,
+                                          ConsistentHashRingHoldingResourceEntries<?, VNodeImpl, String, String> ring,
+                                          @Nullable VNodeRingBuildState buildState) {
+        VNodeConsistentHashRing result = create(allMachines, ring);
+        result.buildState = buildState;
+        return result;
+    }
+
+    /**
+     * @return null if the ring can't be the base of an incremental build.
+     */
+    @Nullable
+    VNodeRingBuildState getBuildState() {
+        return buildState;
+    }
+
+    ConsistentHashRingHoldingResourceEntries<?, VNodeImpl, String, String> getNodeRing() {
+        return ring;
+    }
+
     /**
      * @return check machine's vnode list to know if it leads vnodes in the ring.
      */
     public List<Machine> getMachines() {
-        return allMachineList;
+        return machineRegistry.getMachines();
+    }
+
+    public MachineRegistry getMachineRegistry() {
+        return machineRegistry;
+    }
+
+    /**
+     * @param ordinal see {@link #getMachineOrdinal(String)}.
+     */
+    public Machine getMachine(int ordinal) {
+        return machineRegistry.getMachine(ordinal);
+    }
+
+    /**
+     * @return the position of the machine in {@link #getMachines()}, for the ordinal-keyed checks like
+     * {@link VNodeImpl#getAssignmentStateForMachine(int, int)}. -1 if the machine isn't part of the ring.
+     */
+    public int getMachineOrdinal(String machineId) {
+        return machineRegistry.getOrdinal(machineId);
     }
 
     public List<MachineInfo> getMachineInfos() {
@@ -67,9 +108,55 @@ public class VNodeConsistentHashRing {
 
     @Nullable
     public VNodeImpl getNodeForHash(Long hash) {
+        return getNodeForHash(hash.longValue());
+    }
+
+    /**
+     * Doesn't allocate if the ring was built frozen, see
+     * {@link VNodeConsistentHashRingBuilder#setFreezeRing(boolean)}.
+     */
+    @Nullable
+    public VNodeImpl getNodeForHash(long hash) {
         return ring.getNodeForEntry(hash);
     }
 
+    /**
+     * Batch version of {@link #getNodeForHash(long)}: <code>out[i]</code> is set to the vnode for
+     * <code>hashes[i]</code>, null if the ring has no nodes.
+     *
+     * @param out must be at least as long as hashes
+     */
+    public void getNodesForHashes(long[] hashes, VNodeImpl[] out) {
+        ring.getNodesForEntries(hashes, out);
+    }
+
+    /**
+     * For fanning out one request per machine.
+     *
+     * @return leader machine to the positions in <code>hashes</code> of the hashes whose vnode it leads, machines in
+     * order of first occurrence and positions ascending. Empty if the ring has no nodes.
+     */
+    public ListMultimap<Machine, Integer> getHashPositionsByLeader(long[] hashes) {
+        VNodeImpl[] nodes = new VNodeImpl[hashes.length];
+        getNodesForHashes(hashes, nodes);
+        ListMultimap<Machine, Integer> result = MultimapBuilder.linkedHashKeys().arrayListValues().build();
+        for (int i = 0; i < nodes.length; i++) {
+            if (nodes[i] != null) {
+                result.put(nodes[i].getLeader(), i);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the next vnode in ring order, looping at the end of the ring. <code>null</code> if the given vnode is
+     * the only one.
+     */
+    @Nullable
+    public VNodeImpl getNodeAfterNode(VNodeImpl node) {
+        return ring.getNodeAfterNode(node.getHash().longValue());
+    }
+
     @Nullable
     public VNodeImpl getNode(String key) {
         return ring.getNodeForEntry(key);
@@ -81,6 +168,13 @@ public class VNodeConsistentHashRing {
      * leader is a bootstrapping machine it will not be in the list, because its data is not yet consistent.
      */
     public List<Machine> getReadReplicasForHash(Long hash) {
+        return getReadReplicasForHash(hash.longValue());
+    }
+
+    /**
+     * @see #getReadReplicasForHash(Long)
+     */
+    public List<Machine> getReadReplicasForHash(long hash) {
         VNodeImpl nodeForHash = getNodeForHash(hash);
         if (nodeForHash != null) {
             return nodeForHash.getReadReplicas();
@@ -95,6 +189,13 @@ public class VNodeConsistentHashRing {
      * machine.
      */
     public List<Machine> getWriteReplicasForHash(Long hash) {
+        return getWriteReplicasForHash(hash.longValue());
+    }
+
+    /**
+     * @see #getWriteReplicasForHash(Long)
+     */
+    public List<Machine> getWriteReplicasForHash(long hash) {
         VNodeImpl nodeForHash = getNodeForHash(hash);
         if (nodeForHash != null) {
             return nodeForHash.getWriteReplicas();
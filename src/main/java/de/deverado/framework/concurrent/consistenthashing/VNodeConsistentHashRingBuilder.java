@@ -2,13 +2,8 @@ package de.deverado.framework.concurrent.consistenthashing;/*
  * Copyright Georg Koester 2012-15. All rights reserved.
  */
 
-import com.google.common.base.Function;
 import com.google.common.base.Preconditions;
-import com.google.common.base.Supplier;
 import com.google.common.collect.ImmutableList;
-import com.google.common.collect.Multimap;
-import com.google.common.collect.Multimaps;
-import de.deverado.framework.core.AssertionFailure;
 import org.apache.commons.lang3.tuple.Pair;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -17,17 +12,19 @@ import javax.annotation.Nullable;
 import javax.annotation.ParametersAreNonnullByDefault;
 
 import java.util.ArrayList;
-import java.util.Collection;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashSet;
 import java.util.IdentityHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
-import java.util.Set;
 import java.util.SortedMap;
 import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 /**
  * This builder determines replicas by token order. Reminder: In {@link ConsistentHashRingImpl} a node owns the entries
@@ -74,8 +71,11 @@ import java.util.TreeMap;
  *         in this case to
  *         lower the memory consumption. But you'll have to monitor the load per machine as this might adversely affect
  *         the effectiveness of the random distribution.
- *         Or 2. the per-node lists can be removed and calculated on-demand. This will remove the 2*replicaCount factor,
- *         and some constant factors.
+ *         Or 2. the per-node lists can be removed and calculated on-demand, see
+ *         {@link #setOnDemandReplicaCacheSize(int)}. This will remove the 2*replicaCount factor, and some constant
+ *         factors.
+ *         Equal replica lists are shared between nodes as {@link MachineOrdinalList}s - with the
+ *         {@link VNodeConsistentHashRingWithReplicasByMachineOrderBuilder} there are only a few per machine.
  *     </li>
  *     <li>
  *         Only LEAVING or INTEGRATED-led nodes will be visible in the built ring. The other vnodes will get removed.
@@ -134,18 +134,69 @@ public class VNodeConsistentHashRingBuilder {
 
     private static final int DEFAULT_REPLICA_COUNT = 5;
 
+    /**
+     * Node count up to which a parallel replica determination task doesn't split any more. Every task warms up its
+     * sweep with the nodes before its chunk, about as many as the replica lists are long.
+     */
+    private static final int PARALLEL_CHUNK_SIZE = 4096;
+
     private SortedMap<String, Pair<MachineInRingState, long[]>> machines = new TreeMap<>();
 
     private int replicaCount = DEFAULT_REPLICA_COUNT;
 
+    private boolean freezeRing = false;
+
+    private boolean keepBuildState = false;
+
+    private int lookupIndexBits = 0;
+
+    private int onDemandReplicaCacheSize = 0;
+
+    private ForkJoinPool forkJoinPool;
+
+    private VNodeConsistentHashRing previousRing;
+
     /**
+     * For small changes to a big ring: The builder starts with the machines and settings of the previous ring, which
+     * then can be changed with {@link #addMachine(String, MachineInRingState, long...)} and
+     * {@link #removeMachine(String)}. {@link #build()} then only determines the replicas of the vnodes near the tokens
+     * of changed machines - up to replicaCount + 1 distinct unchanged INTEGRATED machines after them. The other vnodes
+     * get the replica lists of the previous ring. Without token collisions the built ring is the same as a full build
+     * would create. Changing the replica count or disabling freezing switches to a full build.
      *
-     * @param id collisions not allowed
+     * @param previousRing built by this builder with {@link #setKeepBuildState(boolean)}, without on-demand
+     *                     replicas. The rings built incrementally keep their build state, too.
+     * @throws IllegalArgumentException if the ring can't be the base of an incremental build.
+     */
+    public static VNodeConsistentHashRingBuilder createIncremental(VNodeConsistentHashRing previousRing) {
+        VNodeRingBuildState buildState = previousRing.getBuildState();
+        if (buildState == null) {
+            throw new IllegalArgumentException("Ring wasn't built with build state by "
+                    + VNodeConsistentHashRingBuilder.class + ", can't build incrementally");
+        }
+        VNodeConsistentHashRingBuilder result = new VNodeConsistentHashRingBuilder();
+        result.machines.putAll(buildState.getMachines());
+        result.replicaCount = buildState.getReplicaCount();
+        result.lookupIndexBits = buildState.getLookupIndexBits();
+        result.freezeRing = true;
+        result.keepBuildState = true;
+        result.previousRing = previousRing;
+        return result;
+    }
+
+    /**
+     *
+     * @param id collisions not allowed, replaces the machine if already added
      * @param state user has to determine the state the machine should be in. This is not managed by this API. This
      *              API will only ensure that readReplicas and writeReplicas will be determined correctly.
      */
     public VNodeConsistentHashRingBuilder addMachine(String id, MachineInRingState state, long... vnodes) {
-        machines.put(id, Pair.of(state, vnodes));
+        machines.put(id, Pair.of(state, vnodes.clone()));
+        return this;
+    }
+
+    public VNodeConsistentHashRingBuilder removeMachine(String id) {
+        machines.remove(id);
         return this;
     }
 
@@ -162,16 +213,146 @@ public class VNodeConsistentHashRingBuilder {
         return this;
     }
 
+    /**
+     * Defaults to false. If true the built ring is converted to a read-only {@link FrozenConsistentHashRing}, which
+     * is the better choice for routing as lookups don't box or walk a tree.
+     */
+    public VNodeConsistentHashRingBuilder setFreezeRing(boolean freezeRing) {
+        this.freezeRing = freezeRing;
+        return this;
+    }
+
+    /**
+     * Defaults to false. If true the built ring keeps the builder input and the tokens of all vnodes, about 20 bytes
+     * per vnode, so it can be the base of {@link #createIncremental(VNodeConsistentHashRing)} and the what-if analyses
+     * built on it. Not needed on clients that only route. Implies {@link #setFreezeRing(boolean)}. Can't be combined
+     * with {@link #setOnDemandReplicaCacheSize(int)}.
+     */
+    public VNodeConsistentHashRingBuilder setKeepBuildState(boolean keepBuildState) {
+        this.keepBuildState = keepBuildState;
+        if (keepBuildState) {
+            this.freezeRing = true;
+        }
+        return this;
+    }
+
+    /**
+     * Defaults to 0, no lookup index. Values greater 0 build a lookup index into the frozen ring and imply
+     * {@link #setFreezeRing(boolean)}. Negative values choose the bits by ring size, see
+     * {@link FrozenConsistentHashRing#suggestLookupIndexBits(int)}.
+     */
+    public VNodeConsistentHashRingBuilder setLookupIndexBits(int lookupIndexBits) {
+        this.lookupIndexBits = lookupIndexBits;
+        if (lookupIndexBits != 0) {
+            this.freezeRing = true;
+        }
+        return this;
+    }
+
+    /**
+     * Defaults to 0, the replica lists of all vnodes are determined while building. Values greater 0 switch to
+     * on-demand replicas, which is much cheaper in memory and build time for huge rings on clients that only route:
+     * vnodes keep only leader and token, their replica lists are determined on first access by walking the frozen ring
+     * and cached for up to the given number of vnodes. Implies {@link #setFreezeRing(boolean)}. With on-demand
+     * replicas {@link Machine#getVNodes()} only contains the vnodes the machine leads. Can't be combined with
+     * {@link #setKeepBuildState(boolean)}.
+     */
+    public VNodeConsistentHashRingBuilder setOnDemandReplicaCacheSize(int onDemandReplicaCacheSize) {
+        if (onDemandReplicaCacheSize < 0) {
+            throw new IllegalArgumentException("Cache size must not be negative, got: " + onDemandReplicaCacheSize);
+        }
+        this.onDemandReplicaCacheSize = onDemandReplicaCacheSize;
+        if (onDemandReplicaCacheSize > 0) {
+            this.freezeRing = true;
+        }
+        return this;
+    }
+
+    /**
+     * Defaults to null, replicas are determined in one sweep over the vnodes. With a pool the sweep is split into
+     * chunks of the token space which are processed in parallel. The built ring is the same. Worthwhile for huge rings.
+     * No effect with {@link #setOnDemandReplicaCacheSize(int)}, there are no replicas to determine while building.
+     */
+    public VNodeConsistentHashRingBuilder setForkJoinPool(@Nullable ForkJoinPool forkJoinPool) {
+        this.forkJoinPool = forkJoinPool;
+        return this;
+    }
+
     public VNodeConsistentHashRing build() {
         return build(null);
     }
 
+    /**
+     * @param ring empty ring to add the owning vnodes to, defaults to
+     *             {@link ConsistentHashRings#newMurmur3Ring64Bit()}.
+     * @throws IllegalStateException if build state is to be kept for a ring with on-demand replicas.
+     */
     public VNodeConsistentHashRing build(@Nullable ConsistentHashRingHoldingResourceEntries<?, VNodeImpl, String, String> ring) {
+        if (keepBuildState && onDemandReplicaCacheSize > 0) {
+            throw new IllegalStateException("Build state can't be kept for a ring with on-demand replicas");
+        }
+
+
+        List<Machine> allMachines = createMachines();
+
+        if (ring == null && isBuildingIncrementally()) {
+            VNodeConsistentHashRing result = buildIncrementally(allMachines);
+            if (result != null) {
+                return result;
+            }
+            LOG.debug("Token collisions, building ring completely");
+        }
 
         if (ring == null) {
             ring = ConsistentHashRings.newMurmur3Ring64Bit();
         }
 
+        // ring building:
+        // first sort the vnodes of all machines by token,
+        // then determine read and write replica lists in a sweep over the sorted vnodes,
+        // then add only the owning (INTEGRATED or LEAVING-led) nodes to the ring.
+        List<VNodeImpl> nodes = createNodesInTokenOrder(allMachines);
+
+        if (onDemandReplicaCacheSize > 0) {
+            return finishWithOnDemandReplicas(allMachines, nodes, ring);
+        }
+
+        // need all nodes for this, to look forward for next bosses of LEAVING nodes, too
+        VNodeReplicaSweep sweep = new VNodeReplicaSweep(nodes, allMachines.size(), replicaCount);
+        if (forkJoinPool != null) {
+            forkJoinPool.invoke(new DetermineReplicasTask(sweep, 0, nodes.size()));
+        } else {
+            sweep.determineReplicas(0, nodes.size());
+        }
+
+        List<VNodeImpl> owningNodes = getOwningNodes(nodes); // others only needed for replica determination
+        for (VNodeImpl n : owningNodes) {
+            ring.addNodeByHash(n.getHash(), n);
+        }
+        addNodesToMachines(allMachines, owningNodes);
+
+        ensureNoOutOfRingNodesAndDuplicates(ring);
+
+        MachineListPool pool = new MachineListPool(allMachines);
+        for (VNodeImpl n : ring.getNodes()) {
+            n.finishSetup(pool);
+        }
+
+        for (Machine m : allMachines) {
+            m.finishSetup();
+        }
+
+        if (freezeRing) {
+            ring = ConsistentHashRings.freeze(ring, lookupIndexBits >= 0 ? lookupIndexBits :
+                    FrozenConsistentHashRing.suggestLookupIndexBits(ring.getNodeCount()));
+            return VNodeConsistentHashRing.create(allMachines, ring, keepBuildState ?
+                    createBuildState(nodes, nodes.size() != countTokens(allMachines)) : null);
+        }
+
+        return VNodeConsistentHashRing.create(allMachines, ring);
+    }
+
+    private List<Machine> createMachines() {
         List<Machine> allMachines = new ArrayList<>(machines.size());
         for (Map.Entry<String, Pair<MachineInRingState, long[]>> entry : machines.entrySet()) {
             // keep them out - their nodes don't own anything any more and they should not serve as replicas
@@ -191,102 +372,382 @@ public class VNodeConsistentHashRingBuilder {
             m.init(allMachines, i);
             i++;
         }
+        return allMachines;
+    }
 
-        // ring building:
-        // first add all vnodes,
-        // then update read and write replica lists by checking neighboring vnodes.
-        // optional: Remove uninteresting (non-INTEGRATED) nodes.
-        for (final Machine m : allMachines) {
-
-            ConsistentHashRings.addVNodeMachineToRing(ring, m.getMachineId(),
-                    new Function<Pair<String, Long>, VNodeImpl>() {
-                        @Nullable
-                        @Override
-                        public VNodeImpl apply(Pair<String, Long> input) {
-                            VNodeImpl result = new VNodeImpl();
-                            result.init(input.getRight());
-                            if (!input.getLeft().equals(m.getMachineId())) {
-                                throw new AssertionFailure("This shouldn't happen");
-                            }
-                            result.setLeader(m);
-                            return result;
-                        }
-                    },
-                    machines.get(m.getMachineId()).getRight());
+    private boolean isBuildingIncrementally() {
+        return previousRing != null && freezeRing && onDemandReplicaCacheSize == 0
+                && previousRing.getBuildState().getReplicaCount() == replicaCount
+                && previousRing.getNodeRing() instanceof FrozenConsistentHashRing;
+    }
+
+    private VNodeRingBuildState createBuildState(List<VNodeImpl> nodes, boolean tokenCollisions) {
+        long[] tokens = new long[nodes.size()];
+        int[] leaderOrdinals = new int[nodes.size()];
+        for (int i = 0; i < tokens.length; i++) {
+            tokens[i] = nodes.get(i).getHash();
+            leaderOrdinals[i] = nodes.get(i).getLeader().getIdxInAllMachineList();
         }
+        return new VNodeRingBuildState(Collections.unmodifiableSortedMap(new TreeMap<>(machines)), tokens,
+                leaderOrdinals, tokenCollisions, replicaCount, lookupIndexBits);
+    }
 
-        // then find replicas for every boss - need to do this in an additional iteration because need to look forward
-        // for next bosses of LEAVING nodes:
-        for (final VNodeImpl n : ring.getNodes()) {
-            switch (n.getLeader().getState()) {
-                case INTEGRATED:
-                    addReplicasForIntegratedLedNode(ring, n);
-                    break;
-                case LEAVING:
-                    addReplicasForLeavingLedNode(ring, n);
-                    break;
-                case OUT_OF_RING:
-                case BOOTSTRAPPING:
-                    break; // ok, ignore this kind of node. Will be removed later. Still here for determining replicas:
-                    // a bootstrapping node is important as a write replica for its initialization/bootstrapping
-                default:
-                    throw new IllegalStateException(
-                            "Unknown MachineInRingState, please fix (in " + VNodeConsistentHashRingBuilder.class + ")");
+    /**
+     * @return null if there are token collisions, which need a full build.
+     */
+    @Nullable
+    private VNodeConsistentHashRing buildIncrementally(List<Machine> allMachines) {
+        VNodeRingBuildState previousState = previousRing.getBuildState();
+        if (previousState.isHavingTokenCollisions()) {
+            return null; // tokens hidden by collisions aren't known
+        }
+        List<Machine> previousMachines = previousRing.getMachines();
+        FrozenConsistentHashRing<?, VNodeImpl, String, String> previousNodeRing =
+                (FrozenConsistentHashRing<?, VNodeImpl, String, String>) previousRing.getNodeRing();
+
+        // machines are ordered by id in both rings
+        int[] ordinalRemap = new int[previousMachines.size()];
+        boolean sameOrdinals = previousMachines.size() == allMachines.size();
+        boolean[] changedPrevious = new boolean[previousMachines.size()];
+        boolean[] changed = new boolean[allMachines.size()];
+        Arrays.fill(changed, true);
+        int ordinal = 0;
+        for (int previousOrdinal = 0; previousOrdinal < previousMachines.size(); previousOrdinal++) {
+            String id = previousMachines.get(previousOrdinal).getMachineId();
+            while (ordinal < allMachines.size() && allMachines.get(ordinal).getMachineId().compareTo(id) < 0) {
+                ordinal++;
+            }
+            if (ordinal < allMachines.size() && allMachines.get(ordinal).getMachineId().equals(id)) {
+                Pair<MachineInRingState, long[]> previousInput = previousState.getMachines().get(id);
+                Pair<MachineInRingState, long[]> input = machines.get(id);
+                boolean machineChanged = previousInput.getLeft() != input.getLeft()
+                        || !Arrays.equals(previousInput.getRight(), input.getRight());
+                ordinalRemap[previousOrdinal] = ordinal;
+                sameOrdinals &= ordinal == previousOrdinal;
+                changedPrevious[previousOrdinal] = machineChanged;
+                changed[ordinal] = machineChanged;
+            } else {
+                ordinalRemap[previousOrdinal] = -1;
+                sameOrdinals = false;
+                changedPrevious[previousOrdinal] = true;
             }
         }
 
-        removeNonIntegratedOrLeavingLedNodesAndAddNodesToMachines(allMachines, ring); // they don't own anything, only for replica determination.
+        List<Machine> changedMachines = new ArrayList<>();
+        for (Machine m : allMachines) {
+            if (changed[m.getIdxInAllMachineList()]) {
+                changedMachines.add(m);
+            }
+        }
+        List<VNodeImpl> added = createNodesInTokenOrder(changedMachines);
+        if (added.size() != countTokens(changedMachines)) {
+            return null;
+        }
 
-        ensureNoOutOfRingNodesAndDuplicates(ring);
+        // merging the unchanged tokens of the previous ring with the tokens of the changed machines, marking the
+        // positions where tokens were added or removed
+        long[] previousTokens = previousState.getTokens();
+        int[] previousLeaderOrdinals = previousState.getLeaderOrdinals();
+        int nodeCount = added.size();
+        for (int previousLeaderOrdinal : previousLeaderOrdinals) {
+            nodeCount += changedPrevious[previousLeaderOrdinal] ? 0 : 1;
+        }
+        VNodeImpl[] nodes = new VNodeImpl[nodeCount];
+        VNodeImpl[] previousNodes = new VNodeImpl[nodeCount];
+        boolean[] changePoints = new boolean[nodeCount];
+        int previousIdx = 0;
+        int addedIdx = 0;
+        int previousRingIdx = 0;
+        boolean removed = false;
+        for (int pos = 0; pos < nodeCount; pos++) {
+            while (previousIdx < previousTokens.length && changedPrevious[previousLeaderOrdinals[previousIdx]]) {
+                previousIdx++;
+                removed = true;
+            }
+            boolean takeAdded = previousIdx >= previousTokens.length;
+            if (!takeAdded && addedIdx < added.size()) {
+                if (added.get(addedIdx).getHash() == previousTokens[previousIdx]) {
+                    return null;
+                }
+                takeAdded = added.get(addedIdx).getHash() < previousTokens[previousIdx];
+            }
+
+            if (takeAdded) {
+                nodes[pos] = added.get(addedIdx++);
+                changePoints[pos] = true;
+            } else {
+                long token = previousTokens[previousIdx];
+                VNodeImpl node = new VNodeImpl();
+                node.init(token);
+                node.setLeader(allMachines.get(ordinalRemap[previousLeaderOrdinals[previousIdx]]));
+                nodes[pos] = node;
+                while (previousRingIdx < previousNodeRing.getTokenCount()
+                        && previousNodeRing.getToken(previousRingIdx) < token) {
+                    previousRingIdx++;
+                }
+                if (previousRingIdx < previousNodeRing.getTokenCount()
+                        && previousNodeRing.getToken(previousRingIdx) == token) {
+                    previousNodes[pos] = previousNodeRing.getNodeAt(previousRingIdx);
+                }
+                previousIdx++;
+            }
+            changePoints[pos] |= removed;
+            removed = false;
+        }
+        if (previousIdx < previousTokens.length && nodeCount > 0) {
+            changePoints[0] = true; // the rest were removed, before the first node when looping
+        }
 
+        boolean[] dirty = new boolean[nodeCount];
+        for (int pos = 0; pos < nodeCount; pos++) {
+            if (changePoints[pos]) {
+                markDirty(nodes, changed, dirty, pos);
+            }
+        }
+
+        List<VNodeImpl> nodeList = Arrays.asList(nodes);
+        VNodeReplicaSweep sweep = new VNodeReplicaSweep(nodeList, allMachines.size(), replicaCount);
+        int dirtyFrom = -1;
+        for (int pos = 0; pos <= nodeCount; pos++) {
+            if (pos < nodeCount && dirty[pos]) {
+                if (dirtyFrom < 0) {
+                    dirtyFrom = pos;
+                }
+            } else if (dirtyFrom >= 0) {
+                sweep.determineReplicas(dirtyFrom, pos);
+                dirtyFrom = -1;
+            }
+        }
+
+        MachineListPool pool = new MachineListPool(allMachines);
+        IdentityHashMap<List<Machine>, MachineOrdinalList> reboundLists =
+                new IdentityHashMap<>(previousNodeRing.getTokenCount());
+        int[] listOrdinalRemap = sameOrdinals ? null : ordinalRemap;
+        int dirtyCount = 0;
+        for (int pos = 0; pos < nodeCount; pos++) {
+            VNodeImpl n = nodes[pos];
+            if (!isOwning(n)) {
+                continue;
+            }
+            if (dirty[pos]) {
+                dirtyCount++;
+                ensureNoOutOfRingNodesAndDuplicates(n, n.getReadReplicas());
+                ensureNoOutOfRingNodesAndDuplicates(n, n.getWriteReplicas());
+                n.finishSetup(pool);
+            } else {
+                VNodeImpl previous = previousNodes[pos];
+                Preconditions.checkState(previous != null, "Unchanged owning node missing in previous ring: %s", n);
+                n.setReadReplicas(rebind(reboundLists, previous.getReadReplicas(), allMachines, listOrdinalRemap));
+                n.setWriteReplicas(rebind(reboundLists, previous.getWriteReplicas(), allMachines, listOrdinalRemap));
+            }
+        }
+        LOG.debug("Incremental build determined replicas of {} of {} vnodes", dirtyCount, nodeCount);
+
+        List<VNodeImpl> owningNodes = getOwningNodes(nodeList);
+        addNodesToMachines(allMachines, owningNodes);
+        long[] ringTokens = new long[owningNodes.size()];
+        for (int i = 0; i < ringTokens.length; i++) {
+            ringTokens[i] = owningNodes.get(i).getHash();
+        }
+        FrozenConsistentHashRing<?, VNodeImpl, String, String> ring = previousNodeRing.withNodes(ringTokens,
+                owningNodes.toArray(), lookupIndexBits >= 0 ? lookupIndexBits :
+                        FrozenConsistentHashRing.suggestLookupIndexBits(ringTokens.length));
 
         for (Machine m : allMachines) {
             m.finishSetup();
         }
 
-        return VNodeConsistentHashRing.create(allMachines, ring);
+        return VNodeConsistentHashRing.create(allMachines, ring,
+                keepBuildState ? createBuildState(nodeList, false) : null);
+    }
+
+    /**
+     * Marks the nodes whose replicas might depend on the change at the position: After it up to replicaCount + 1
+     * distinct unchanged INTEGRATED machines, which close the replica search of any node after them. Before it the
+     * nodes up to an unchanged INTEGRATED-led node, which closes the search for new owners of LEAVING-led nodes.
+     */
+    private void markDirty(VNodeImpl[] nodes, boolean[] changed, boolean[] dirty, int position) {
+        List<Machine> closing = new ArrayList<>(replicaCount + 1);
+        for (int step = 0; step < nodes.length; step++) {
+            int pos = (position + step) % nodes.length;
+            dirty[pos] = true;
+            Machine leader = nodes[pos].getLeader();
+            if (isUnchangedIntegrated(leader, changed) && !closing.contains(leader)) {
+                closing.add(leader);
+                if (closing.size() > replicaCount) {
+                    break;
+                }
+            }
+        }
+        for (int step = 1; step < nodes.length; step++) {
+            int pos = (position - step + nodes.length) % nodes.length;
+            if (isUnchangedIntegrated(nodes[pos].getLeader(), changed)) {
+                break;
+            }
+            dirty[pos] = true;
+        }
     }
 
-    private void removeNonIntegratedOrLeavingLedNodesAndAddNodesToMachines(
-            List<Machine> allMachines, ConsistentHashRingHoldingResourceEntries<?, VNodeImpl, String, String> ring) {
+    private static boolean isUnchangedIntegrated(Machine m, boolean[] changed) {
+        return MachineInRingState.INTEGRATED.equals(m.getState()) && !changed[m.getIdxInAllMachineList()];
+    }
 
-        Multimap<String, VNodeImpl> vnodesForMachines = Multimaps.newSetMultimap(
-                new HashMap<String, Collection<VNodeImpl>>(), new Supplier<Set<VNodeImpl>>() {
-                    @Override
-                    public Set<VNodeImpl> get() {
-                        return new LinkedHashSet<VNodeImpl>();
-                    }
-                });
+    private static MachineOrdinalList rebind(IdentityHashMap<List<Machine>, MachineOrdinalList> reboundLists,
+                                             List<Machine> previousList, List<Machine> allMachines,
+                                             @Nullable int[] ordinalRemap) {
+        MachineOrdinalList result = reboundLists.get(previousList);
+        if (result == null) {
+            result = ((MachineOrdinalList) previousList).rebind(allMachines, ordinalRemap);
+            reboundLists.put(previousList, result);
+        }
+        return result;
+    }
 
-        List<VNodeImpl> toRemove = new ArrayList<>();
-        for (VNodeImpl n : ring.getNodes()) {
-            boolean remove = true;
-            if (Objects.equals(n.getLeader().getState(), MachineInRingState.INTEGRATED)) {
-                remove = false;
+    /**
+     * Determines the replicas of the nodes in [from, to), every node is only modified by one task.
+     */
+    private static class DetermineReplicasTask extends RecursiveAction {
+
+        private static final long serialVersionUID = -7020137003008828815L;
+
+        private final VNodeReplicaSweep sweep;
+        private final int from;
+        private final int to;
+
+        DetermineReplicasTask(VNodeReplicaSweep sweep, int from, int to) {
+            this.sweep = sweep;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= PARALLEL_CHUNK_SIZE) {
+                sweep.determineReplicas(from, to);
+            } else {
+                int mid = (from + to) >>> 1;
+                invokeAll(new DetermineReplicasTask(sweep, from, mid),
+                        new DetermineReplicasTask(sweep, mid, to));
             }
-            if (Objects.equals(n.getLeader().getState(), MachineInRingState.LEAVING)) {
-                remove = false;
+        }
+    }
+
+    /**
+     * @return the vnodes of all machines, sorted by token. On token collisions the machine with the smallest id wins,
+     * like in {@link ConsistentHashRings#addVNodeMachinesToRing}.
+     */
+    private List<VNodeImpl> createNodesInTokenOrder(List<Machine> machinesWithNodes) {
+        VNodeImpl[] nodes = new VNodeImpl[countTokens(machinesWithNodes)];
+        int i = 0;
+        for (Machine m : machinesWithNodes) {
+            for (long token : machines.get(m.getMachineId()).getRight()) {
+                VNodeImpl node = new VNodeImpl();
+                node.init(token);
+                node.setLeader(m);
+                nodes[i++] = node;
+            }
+        }
+
+        // machines are ordered by id, so their ordinals are, too
+        Arrays.sort(nodes, new Comparator<VNodeImpl>() {
+            @Override
+            public int compare(VNodeImpl o1, VNodeImpl o2) {
+                int result = Long.compare(o1.getHash(), o2.getHash());
+                return result != 0 ? result : Integer.compare(o1.getLeader().getIdxInAllMachineList(),
+                        o2.getLeader().getIdxInAllMachineList());
+            }
+        });
+
+        int distinct = 0;
+        for (VNodeImpl node : nodes) {
+            if (distinct == 0 || nodes[distinct - 1].getHash().longValue() != node.getHash()) {
+                nodes[distinct++] = node;
             }
-            if (remove) {
-                toRemove.add(n);
+        }
+        return Arrays.asList(nodes).subList(0, distinct);
+    }
+
+    private VNodeConsistentHashRing finishWithOnDemandReplicas(
+            List<Machine> allMachines, List<VNodeImpl> nodes,
+            ConsistentHashRingHoldingResourceEntries<?, VNodeImpl, String, String> ring) {
+
+        for (VNodeImpl n : nodes) {
+            ring.addNodeByHash(n.getHash(), n);
+        }
+
+        // replica determination needs the nodes of all machines, routing only the owning ones
+        OnDemandReplicas onDemandReplicas = new OnDemandReplicas(allMachines,
+                ConsistentHashRings.freeze(ring, FrozenConsistentHashRing.suggestLookupIndexBits(ring.getNodeCount())),
+                replicaCount, onDemandReplicaCacheSize);
+
+        for (VNodeImpl n : nodes) {
+            if (isOwning(n)) {
+                n.setOnDemandReplicas(onDemandReplicas);
+                n.getLeader().getVNodes().add(n);
             } else {
-                addNodeToMachines(vnodesForMachines, n.getReadReplicas(), n);
-                addNodeToMachines(vnodesForMachines, n.getWriteReplicas(), n);
+                ring.removeNodeByHash(n.getHash());
             }
         }
 
         for (Machine m : allMachines) {
-            m.getVNodes().addAll(vnodesForMachines.get(m.getMachineId()));
+            m.finishSetup();
         }
 
-        for (VNodeImpl n : toRemove) {
-            ring.removeNodeByHash(n.getHash());
+        return VNodeConsistentHashRing.create(allMachines, ConsistentHashRings.freeze(ring, lookupIndexBits >= 0 ?
+                lookupIndexBits : FrozenConsistentHashRing.suggestLookupIndexBits(ring.getNodeCount())));
+    }
+
+    private int countTokens(List<Machine> machinesToCount) {
+        int result = 0;
+        for (Machine m : machinesToCount) {
+            result += machines.get(m.getMachineId()).getRight().length;
         }
+        return result;
     }
 
-    private void addNodeToMachines(Multimap<String, VNodeImpl> vnodesForMachines, List<Machine> replicas, VNodeImpl n) {
-        for (Machine m : replicas) {
-            vnodesForMachines.put(m.getMachineId(), n);
+    private static List<VNodeImpl> getOwningNodes(List<VNodeImpl> nodes) {
+        List<VNodeImpl> result = new ArrayList<>(nodes.size());
+        for (VNodeImpl n : nodes) {
+            if (isOwning(n)) {
+                result.add(n);
+            }
+        }
+        return result;
+    }
+
+    static void addNodesToMachines(List<Machine> allMachines, List<VNodeImpl> owningNodes) {
+
+        // by machine ordinal
+        List<List<VNodeImpl>> vnodesForMachines = new ArrayList<>(allMachines.size());
+        for (int i = 0; i < allMachines.size(); i++) {
+            vnodesForMachines.add(new ArrayList<VNodeImpl>());
+        }
+
+        for (VNodeImpl n : owningNodes) {
+            addNodeToMachines(vnodesForMachines, n.getReadReplicas(), n);
+            addNodeToMachines(vnodesForMachines, n.getWriteReplicas(), n);
+        }
+
+        for (Machine m : allMachines) {
+            m.getVNodes().addAll(vnodesForMachines.get(m.getIdxInAllMachineList()));
+        }
+    }
+
+    private static boolean isOwning(VNodeImpl n) {
+        MachineInRingState state = n.getLeader().getState();
+        return MachineInRingState.INTEGRATED.equals(state) || MachineInRingState.LEAVING.equals(state);
+    }
+
+    private static void addNodeToMachines(List<List<VNodeImpl>> vnodesForMachines, List<Machine> replicas,
+                                          VNodeImpl n) {
+        MachineOrdinalList ordinalList = replicas instanceof MachineOrdinalList ? (MachineOrdinalList) replicas : null;
+        for (int i = 0; i < replicas.size(); i++) {
+            int ordinal = ordinalList != null ? ordinalList.getOrdinal(i) : replicas.get(i).getIdxInAllMachineList();
+            List<VNodeImpl> vnodes = vnodesForMachines.get(ordinal);
+            // nodes are added one after the other, so a duplicate would be the last one
+            if (vnodes.isEmpty() || vnodes.get(vnodes.size() - 1) != n) {
+                vnodes.add(n);
+            }
         }
     }
 
@@ -317,20 +778,28 @@ public class VNodeConsistentHashRingBuilder {
         }
     }
 
-    private void addReplicasForLeavingLedNode(
-            ConsistentHashRingHoldingResourceEntries<?, VNodeImpl, String, String> ring, VNodeImpl n) {
+    /**
+     * Determines the write replicas of an INTEGRATED or LEAVING-led node by walking the ring, which must still contain
+     * the nodes of all machines. For single nodes, building sweeps with {@link VNodeReplicaSweep}.
+     */
+    static List<Machine> findWriteReplicas(
+            ConsistentHashRingHoldingResourceEntries<?, VNodeImpl, String, String> ring, VNodeImpl n,
+            int replicaCount) {
 
-        addReplicasForIntegratedLedNode(ring, n);
+        List<Machine> writeReplicas = new ArrayList<>(findDefaultWriteReplicas(ring, n, replicaCount));
+        if (!MachineInRingState.LEAVING.equals(n.getLeader().getState())) {
+            return writeReplicas;
+        }
 
-        List<Machine> additionalWriters = getPossibleNewOwnersForLeavingNode(ring, n, n.getWriteReplicas());
+        List<Machine> additionalWriters = getPossibleNewOwnersForLeavingNode(ring, n, writeReplicas);
 
-        additionalWriters.addAll(n.getWriteReplicas()); // order determines prio - and future owner nodes are very
+        additionalWriters.addAll(writeReplicas); // order determines prio - and future owner nodes are very
         // important
 
-        n.setWriteReplicas(additionalWriters);
+        return additionalWriters;
     }
 
-    private List<Machine> getPossibleNewOwnersForLeavingNode(
+    private static List<Machine> getPossibleNewOwnersForLeavingNode(
             ConsistentHashRingHoldingResourceEntries<?, VNodeImpl, String, String> ring, VNodeImpl n,
             List<Machine> existingWriteReplicas) {
 
@@ -379,7 +848,7 @@ public class VNodeConsistentHashRingBuilder {
                 case OUT_OF_RING:
                     break; // ignore
                 default:
-                    throw new IllegalStateException("Unknown state in " + getClass());
+                    throw new IllegalStateException("Unknown state in " + VNodeConsistentHashRingBuilder.class);
             }
 
             current = ring.getNodeAfterNode(current.getHash());
@@ -387,7 +856,7 @@ public class VNodeConsistentHashRingBuilder {
         return additionalWriters;
     }
 
-    private Machine getAnotherIntegratedWriteReplicaBeforeLast(
+    private static Machine getAnotherIntegratedWriteReplicaBeforeLast(
             ConsistentHashRingHoldingResourceEntries<?, VNodeImpl, String, String> ring,
             VNodeImpl n, LinkedHashSet<Machine> existingWriteReplicas /* order important! */) {
         Machine lastIntegrated = null;
@@ -424,20 +893,12 @@ public class VNodeConsistentHashRingBuilder {
         return null;
     }
 
-    private void addReplicasForIntegratedLedNode(
-            ConsistentHashRingHoldingResourceEntries<?, VNodeImpl, String, String> ring, VNodeImpl n) {
-        List<Machine> readReplicas = findReadReplicas(ring, n);
-        List<Machine> writeReplicas = new ArrayList<>(findDefaultWriteReplicas(ring, n));
-        n.setReadReplicas(readReplicas);
-        n.setWriteReplicas(writeReplicas);
-    }
-
     /**
      * Find the write replicas left of the node - the replicas in the original sense.
      */
-    private LinkedHashSet<Machine> findDefaultWriteReplicas(
+    private static LinkedHashSet<Machine> findDefaultWriteReplicas(
             ConsistentHashRingHoldingResourceEntries<?, VNodeImpl, String, String> ring,
-            VNodeImpl n) {
+            VNodeImpl n, int replicaCount) {
 
         LinkedHashSet<Machine> defaultWriters = new LinkedHashSet<>();
         defaultWriters.add(n.getLeader());
@@ -470,7 +931,8 @@ public class VNodeConsistentHashRingBuilder {
                 case OUT_OF_RING:
                     break; // ignore
                 default:
-                    throw new IllegalStateException("Unknown state " + currentState + " in " + getClass());
+                    throw new IllegalStateException("Unknown state " + currentState + " in "
+                            + VNodeConsistentHashRingBuilder.class);
             }
 
             current = ring.getNodeBeforeNode(current.getHash());
@@ -478,8 +940,12 @@ public class VNodeConsistentHashRingBuilder {
         return defaultWriters;
     }
 
-    private List<Machine> findReadReplicas(ConsistentHashRingHoldingResourceEntries<?, VNodeImpl, String, String> ring,
-                                           VNodeImpl n) {
+    /**
+     * Determines the read replicas of an INTEGRATED or LEAVING-led node by walking the ring, which must still contain
+     * the nodes of all machines. For single nodes, building sweeps with {@link VNodeReplicaSweep}.
+     */
+    static List<Machine> findReadReplicas(ConsistentHashRingHoldingResourceEntries<?, VNodeImpl, String, String> ring,
+                                          VNodeImpl n, int replicaCount) {
 
         LinkedHashSet<Machine> defaultReaders = new LinkedHashSet<>();
         Preconditions.checkState(
@@ -517,7 +983,8 @@ public class VNodeConsistentHashRingBuilder {
                 case OUT_OF_RING:
                     break; // ignore
                 default:
-                    throw new IllegalStateException("Unknown state " + currentState + " in " + getClass());
+                    throw new IllegalStateException("Unknown state " + currentState + " in "
+                            + VNodeConsistentHashRingBuilder.class);
             }
 
             current = ring.getNodeBeforeNode(current.getHash());
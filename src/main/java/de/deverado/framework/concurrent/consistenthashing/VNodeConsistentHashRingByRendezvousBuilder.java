@@ -0,0 +1,339 @@
+package de.deverado.framework.concurrent.consistenthashing;/*
+ * Copyright Georg Koester 2012-15. All rights reserved.
+ */
+
+import com.google.common.collect.ImmutableList;
+import de.deverado.framework.concurrent.Hashing;
+import de.deverado.framework.core.AssertionFailure;
+import org.apache.commons.lang3.tuple.Pair;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Builds a {@link VNodeConsistentHashRing} by rendezvous or highest random weight (HRW) hashing - a good choice for
+ * small clusters (a few up to some dozen machines), where choosing vnode tokens per machine is a lot of bookkeeping for
+ * little benefit.
+ * <p>
+ * The hash space is split into {@link #setSegmentCount(int)} equally sized segments. For each segment every machine
+ * gets a score from the hashes of segment and machine id, scaled by the machine's weight. Ordered by descending score
+ * the machines are the segment's replica order: The first is the leader, read and write replicas are taken from that
+ * order by the same {@link MachineInRingState} rules as in
+ * {@link VNodeConsistentHashRingWithReplicasByMachineOrderBuilder}. Adding or removing a machine thus only changes the
+ * order relative to that machine - segments move only to or from it, and a
+ * {@link MachineInRingState#BOOTSTRAPPING} machine receives writes for exactly the segments it will be a read replica
+ * for after becoming {@link MachineInRingState#INTEGRATED}. Machines get a share of segments proportional to their
+ * weight.
+ * </p>
+ * <p>
+ * Neighboring segments with the same leader and replicas share a vnode, replica lists are shared between vnodes. The
+ * ring is frozen with a lookup index by default, so lookups are done in constant time. Use with
+ * {@link VNodeConsistentHashRingMgr} like any other builder by returning the built ring from the ring creator.
+ * </p>
+ */
+@ParametersAreNonnullByDefault
+public class VNodeConsistentHashRingByRendezvousBuilder {
+
+    public static final int DEFAULT_SEGMENT_COUNT = 4096;
+
+    public static final int MAX_SEGMENT_COUNT = 1 << 20;
+
+    private static final int DEFAULT_REPLICA_COUNT = 5;
+
+    private SortedMap<String, Pair<MachineInRingState, Double>> machines = new TreeMap<>();
+
+    private int replicaCount = DEFAULT_REPLICA_COUNT;
+
+    private int segmentCount = DEFAULT_SEGMENT_COUNT;
+
+    private boolean freezeRing = true;
+
+    private int lookupIndexBits = -1;
+
+    /**
+     * Adds a machine with weight 1.
+     *
+     * @param id collisions not allowed
+     * @param state user has to determine the state the machine should be in. This is not managed by this API. This
+     *              API will only ensure that readReplicas and writeReplicas will be determined correctly.
+     */
+    public VNodeConsistentHashRingByRendezvousBuilder addMachine(String id, MachineInRingState state) {
+        return addMachine(id, state, 1.0);
+    }
+
+    /**
+     * @param weight positive, the machine's share of the segments is proportional to it.
+     */
+    public VNodeConsistentHashRingByRendezvousBuilder addMachine(String id, MachineInRingState state, double weight) {
+        if (!(weight > 0) || Double.isInfinite(weight)) {
+            throw new IllegalArgumentException("Weight must be positive and finite, got: " + weight);
+        }
+        machines.put(id, Pair.of(state, weight));
+        return this;
+    }
+
+    public VNodeConsistentHashRingByRendezvousBuilder setReplicaCount(int replicaCount) {
+        if (replicaCount < 1) {
+            throw new IllegalArgumentException("Replica count must be 1 at least, got: " + replicaCount);
+        }
+        this.replicaCount = replicaCount;
+        return this;
+    }
+
+    /**
+     * Defaults to {@link #DEFAULT_SEGMENT_COUNT}. More segments distribute the hash space more evenly among the
+     * machines at the cost of a bigger ring.
+     *
+     * @param segmentCount a power of 2 up to {@link #MAX_SEGMENT_COUNT}.
+     */
+    public VNodeConsistentHashRingByRendezvousBuilder setSegmentCount(int segmentCount) {
+        if (segmentCount < 1 || segmentCount > MAX_SEGMENT_COUNT || Integer.bitCount(segmentCount) != 1) {
+            throw new IllegalArgumentException("Segment count must be a power of 2 up to " + MAX_SEGMENT_COUNT
+                    + ", got: " + segmentCount);
+        }
+        this.segmentCount = segmentCount;
+        return this;
+    }
+
+    /**
+     * Defaults to true, the built ring is converted to a read-only {@link FrozenConsistentHashRing}.
+     */
+    public VNodeConsistentHashRingByRendezvousBuilder setFreezeRing(boolean freezeRing) {
+        this.freezeRing = freezeRing;
+        return this;
+    }
+
+    /**
+     * Defaults to -1, choosing the bits by ring size, see
+     * {@link FrozenConsistentHashRing#suggestLookupIndexBits(int)}. 0 means no lookup index. Values other than 0
+     * imply {@link #setFreezeRing(boolean)}.
+     */
+    public VNodeConsistentHashRingByRendezvousBuilder setLookupIndexBits(int lookupIndexBits) {
+        this.lookupIndexBits = lookupIndexBits;
+        if (lookupIndexBits != 0) {
+            this.freezeRing = true;
+        }
+        return this;
+    }
+
+    public VNodeConsistentHashRing build() {
+
+        List<Machine> allMachines = new ArrayList<>(machines.size());
+        for (Map.Entry<String, Pair<MachineInRingState, Double>> entry : machines.entrySet()) {
+            Machine m = new Machine();
+            allMachines.add(m);
+            m.setMachineId(entry.getKey());
+            m.setState(entry.getValue().getLeft());
+        }
+        allMachines = ImmutableList.copyOf(allMachines);
+        int idx = 0;
+        for (Machine m : allMachines) {
+            m.init(allMachines, idx);
+            idx++;
+        }
+
+        // OUT_OF_RING machines are neither leaders nor replicas
+        List<Machine> candidates = new ArrayList<>(allMachines.size());
+        for (Machine m : allMachines) {
+            if (!MachineInRingState.OUT_OF_RING.equals(m.getState())) {
+                candidates.add(m);
+            }
+        }
+        int n = candidates.size();
+        long[] candidateHashes = new long[n];
+        double[] candidateWeights = new double[n];
+        for (int i = 0; i < n; i++) {
+            Machine m = candidates.get(i);
+            candidateHashes[i] = Hashing.hash64_murmur3(m.getMachineId());
+            candidateWeights[i] = machines.get(m.getMachineId()).getRight();
+        }
+
+        ConsistentHashRingHoldingResourceEntries<String, VNodeImpl, String, String> ring =
+                ConsistentHashRings.newMurmur3Ring64Bit();
+
+        if (n > 0) {
+            MachineListPool pool = new MachineListPool(allMachines);
+            double[] scores = new double[n];
+            int[] order = new int[n];
+            List<Machine> ordered = new ArrayList<>(n);
+
+            Machine firstLeader = null;
+            List<Machine> firstReads = null;
+            List<Machine> firstWrites = null;
+            Machine pendingLeader = null;
+            List<Machine> pendingReads = null;
+            List<Machine> pendingWrites = null;
+            long pendingToken = 0;
+
+            for (int segment = 0; segment < segmentCount; segment++) {
+                long token = getSegmentToken(segment);
+                long tokenHash = Hashing.mix64(token);
+                for (int i = 0; i < n; i++) {
+                    scores[i] = score(candidateHashes[i] ^ tokenHash, candidateWeights[i]);
+                }
+                sortByScoreDescending(order, scores);
+                ordered.clear();
+                for (int i : order) {
+                    ordered.add(candidates.get(i));
+                }
+
+                Machine leader = ordered.get(0);
+                List<Machine> reads = pool.intern(determineReadReplicas(ordered));
+                List<Machine> writes = pool.intern(determineWriteReplicas(ordered));
+
+                if (pendingLeader != null && !isSameAssignment(pendingLeader, pendingReads, pendingWrites,
+                        leader, reads, writes)) {
+                    addNode(ring, pool, pendingToken, pendingLeader, pendingReads, pendingWrites);
+                    if (firstLeader == null) {
+                        firstLeader = pendingLeader;
+                        firstReads = pendingReads;
+                        firstWrites = pendingWrites;
+                    }
+                }
+                // a vnode owns the range up to its hash, so the last of equal neighbors represents them
+                pendingLeader = leader;
+                pendingReads = reads;
+                pendingWrites = writes;
+                pendingToken = token;
+            }
+
+            // the last segment's range wraps to the first vnode if equal
+            if (firstLeader == null || !isSameAssignment(firstLeader, firstReads, firstWrites,
+                    pendingLeader, pendingReads, pendingWrites)) {
+                addNode(ring, pool, pendingToken, pendingLeader, pendingReads, pendingWrites);
+            }
+        }
+
+        for (Machine m : allMachines) {
+            m.finishSetup();
+        }
+
+        ConsistentHashRingHoldingResourceEntries<?, VNodeImpl, String, String> result = ring;
+        if (freezeRing) {
+            result = ConsistentHashRings.freeze(ring, lookupIndexBits >= 0 ? lookupIndexBits :
+                    FrozenConsistentHashRing.suggestLookupIndexBits(ring.getNodeCount()));
+        }
+
+        return VNodeConsistentHashRing.create(allMachines, result);
+    }
+
+    /**
+     * @return the highest hash of the segment - the hash of its vnode.
+     */
+    private long getSegmentToken(int segment) {
+        int segmentBits = Integer.numberOfTrailingZeros(segmentCount);
+        if (segmentBits == 0) {
+            return Long.MAX_VALUE;
+        }
+        long segmentSize = 1L << (64 - segmentBits);
+        // overflows to Long.MAX_VALUE for the last segment
+        return Long.MIN_VALUE + (segment + 1) * segmentSize - 1;
+    }
+
+    /**
+     * Weighted rendezvous score <code>-weight / ln(u)</code> for a uniform <code>u</code> in (0, 1) taken from the
+     * hash, which makes the probability of having the highest score proportional to the weight.
+     */
+    private static double score(long machineAndSegmentHash, double weight) {
+        long h = Hashing.mix64(machineAndSegmentHash);
+        double u = ((h >>> 11) + 0.5) * 0x1.0p-53;
+        return -weight / Math.log(u);
+    }
+
+    /**
+     * Insertion sort - machine counts are small. Ties are broken by machine order.
+     */
+    private static void sortByScoreDescending(int[] order, double[] scores) {
+        for (int i = 0; i < order.length; i++) {
+            int j = i;
+            while (j > 0 && scores[order[j - 1]] < scores[i]) {
+                order[j] = order[j - 1];
+                j--;
+            }
+            order[j] = i;
+        }
+    }
+
+    private static boolean isSameAssignment(Machine leader, List<Machine> reads, List<Machine> writes,
+                                            Machine otherLeader, List<Machine> otherReads,
+                                            List<Machine> otherWrites) {
+        // lists are interned
+        return leader == otherLeader && reads == otherReads && writes == otherWrites;
+    }
+
+    private static void addNode(ConsistentHashRingHoldingResourceEntries<String, VNodeImpl, String, String> ring,
+                                MachineListPool pool, long token, Machine leader, List<Machine> reads,
+                                List<Machine> writes) {
+        VNodeImpl node = new VNodeImpl();
+        node.init(token);
+        node.setLeader(leader);
+        node.setReadReplicas(reads);
+        node.setWriteReplicas(writes);
+        node.finishSetup(pool);
+        leader.getVNodes().add(node);
+        ring.addNodeByHash(token, node);
+    }
+
+    protected List<Machine> determineReadReplicas(List<Machine> ordered) {
+        List<Machine> result = new ArrayList<>(replicaCount);
+
+        int count = replicaCount;
+        for (Machine possibleReplica : ordered) {
+            if (count <= 0) break;
+            switch (possibleReplica.getState()) {
+                case BOOTSTRAPPING:
+                    // write-replica, doesn't have the data yet
+                    break;
+                case INTEGRATED:
+                case LEAVING:
+                    // leaving still has all data - reading from it until the following machines took over
+                    count--;
+                    result.add(possibleReplica);
+                    break;
+                default:
+                    throw new AssertionFailure("Unexpected state: " + possibleReplica.getState());
+            }
+        }
+        return result;
+    }
+
+    protected List<Machine> determineWriteReplicas(List<Machine> ordered) {
+        List<Machine> result = new ArrayList<>(replicaCount);
+
+        int count = replicaCount;
+        for (Machine possibleReplica : ordered) {
+            if (count <= 0) break;
+            switch (possibleReplica.getState()) {
+                case BOOTSTRAPPING:
+                    // not counting down, because not a full replica
+                    result.add(possibleReplica);
+                    break;
+                case INTEGRATED:
+                    count--;
+                    result.add(possibleReplica);
+                    break;
+                case LEAVING:
+                    // still receives writes, but not counting down, to send new writes to replacement replicas
+                    result.add(possibleReplica);
+                    break;
+                default:
+                    throw new AssertionFailure("Unexpected state: " + possibleReplica.getState());
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "VNodeConsistentHashRingByRendezvousBuilder{" +
+                "machines=" + machines.size() +
+                ", replicaCount=" + replicaCount +
+                ", segmentCount=" + segmentCount +
+                '}';
+    }
+}
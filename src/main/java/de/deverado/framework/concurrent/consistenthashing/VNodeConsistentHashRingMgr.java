@@ -4,34 +4,83 @@ package de.deverado.framework.concurrent.consistenthashing;/*
 
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nullable;
 import javax.annotation.ParametersAreNonnullByDefault;
 import java.util.List;
-import java.util.NoSuchElementException;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ConcurrentLinkedDeque;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Keeps the current ring and notifies listeners of changes. Update requests are coalesced: One update runs at a time
+ * and any number of requests arriving meanwhile lead to at most one follow-up update. Optionally updates are debounced,
+ * see {@link #setDebounce(long, long, ScheduledExecutorService)}. Listeners are called on the update thread by
+ * default, see {@link #setListenerDispatch(Executor, long)} for calling them in parallel.
+ */
 @ParametersAreNonnullByDefault
 public class VNodeConsistentHashRingMgr {
 
     private static final Logger LOG = LoggerFactory.getLogger(VNodeConsistentHashRingMgr.class);
 
-    private final ConcurrentLinkedDeque<Boolean> ringUpdateRequests = new ConcurrentLinkedDeque<>();
+    private final Object updateLock = new Object();
+
+    // guarded by updateLock:
+    private boolean updateRunning;
+    private boolean updatePending;
+    private boolean updateScheduled;
+    private long firstPendingRequestNanos;
+    private long lastRequestNanos;
+
+    private final AtomicLong requestedRebuildCount = new AtomicLong();
+
+    private final AtomicLong executedRebuildCount = new AtomicLong();
+
+    private long debounceNanos;
+
+    private long maxStalenessNanos;
+
+    private ScheduledExecutorService scheduler;
 
     private ListeningExecutorService executor;
 
     private Callable<ListenableFuture<? extends VNodeConsistentHashRing>> ringCreator;
 
-    private volatile VNodeConsistentHashRing ring;
+    /**
+     * Ring and epoch in one volatile field, so a single read gives a consistent pair.
+     */
+    private volatile PinnedRing current;
+
+    private final List<RingChangeListenerDispatcher> ringChangeListeners = new CopyOnWriteArrayList<>();
+
+    private Executor listenerExecutor = MoreExecutors.directExecutor();
 
-    private final List<VNodeConsistentHashRingChangeListener> ringChangeListeners = new CopyOnWriteArrayList<>();
+    private long listenerDeadlineNanos;
+
+    private final Runnable scheduledUpdate = new Runnable() {
+        @Override
+        public void run() {
+            boolean start;
+            synchronized (updateLock) {
+                updateScheduled = false;
+                start = startOrScheduleUpdate();
+            }
+            if (start) {
+                runRingUpdate();
+            }
+        }
+    };
 
     /**
      *
+     * @param ringCreator creates the current ring. For small changes to big rings it can build incrementally from
+     *                    {@link #getRing()}, see {@link VNodeConsistentHashRingBuilder#createIncremental}.
      * @param executor for future listening
      */
     public void init(Callable<ListenableFuture<? extends VNodeConsistentHashRing>> ringCreator,
@@ -40,6 +89,45 @@ public class VNodeConsistentHashRingMgr {
         this.executor = executor;
     }
 
+    /**
+     * Defaults to no debouncing: An update starts right away if none is running. With debouncing an update starts
+     * when there were no requests for debounceMillis, but at latest maxStalenessMillis after the first request it
+     * serves - so a burst of machine state changes, like in a rolling deploy, leads to one update. Call before
+     * {@link #startRing()}.
+     *
+     * @param maxStalenessMillis 0 for no bound.
+     * @param scheduler          for starting debounced updates.
+     */
+    public void setDebounce(long debounceMillis, long maxStalenessMillis, ScheduledExecutorService scheduler) {
+        if (debounceMillis < 0 || maxStalenessMillis < 0) {
+            throw new IllegalArgumentException("debounceMillis and maxStalenessMillis must not be negative, got: "
+                    + debounceMillis + ", " + maxStalenessMillis);
+        }
+        synchronized (updateLock) {
+            this.debounceNanos = TimeUnit.MILLISECONDS.toNanos(debounceMillis);
+            this.maxStalenessNanos = TimeUnit.MILLISECONDS.toNanos(maxStalenessMillis);
+            this.scheduler = scheduler;
+        }
+    }
+
+    /**
+     * Each listener gets changes serially and in order, but listeners run in parallel on the executor and neither
+     * wait for each other nor hold up the next update. A listener lagging behind skips to the newest ring - it gets
+     * the difference to the last ring it saw. Affects listeners added afterwards.
+     *
+     * @param deadlineMillis for detection only: listener calls taking longer are logged and counted, see
+     *                       {@link #getListenerStatistics(VNodeConsistentHashRingChangeListener)}, but neither
+     *                       interrupted nor abandoned. A slow listener only delays its own later changes, which get
+     *                       conflated. 0 for none.
+     */
+    public void setListenerDispatch(Executor executor, long deadlineMillis) {
+        if (deadlineMillis < 0) {
+            throw new IllegalArgumentException("deadlineMillis must not be negative, got: " + deadlineMillis);
+        }
+        this.listenerExecutor = executor;
+        this.listenerDeadlineNanos = TimeUnit.MILLISECONDS.toNanos(deadlineMillis);
+    }
+
     /**
      * ring will be created - listeners notified on change.
      */
@@ -47,55 +135,173 @@ public class VNodeConsistentHashRingMgr {
         ringChangedPossibly();
     }
 
+    /**
+     * Every call reads the current ring anew - use {@link #pin()} to do several lookups against the same ring.
+     */
     public VNodeConsistentHashRing getRing() {
-        return ring;
+        PinnedRing pinned = current;
+        return pinned != null ? pinned.getRing() : null;
+    }
+
+    /**
+     * @return the current ring with its epoch, null if there is no ring yet. Doesn't allocate.
+     */
+    @Nullable
+    public PinnedRing pin() {
+        return current;
     }
 
-    public void addRingListener(VNodeConsistentHashRingChangeListener listener) {
-        if (!ringChangeListeners.contains(listener)) {
-            ringChangeListeners.add(listener);
+    /**
+     * @return epoch of the current ring, 0 if there is no ring yet. Each published ring gets the next epoch.
+     */
+    public long getEpoch() {
+        PinnedRing pinned = current;
+        return pinned != null ? pinned.getEpoch() : 0;
+    }
+
+    /**
+     * @throws StaleRingEpochException if the current ring doesn't have the given epoch.
+     */
+    public PinnedRing checkEpoch(long epoch) {
+        PinnedRing pinned = current;
+        long currentEpoch = pinned != null ? pinned.getEpoch() : 0;
+        if (currentEpoch != epoch || pinned == null) {
+            throw new StaleRingEpochException(epoch, currentEpoch);
         }
+        return pinned;
     }
 
-    public void removeRingListener(VNodeConsistentHashRingChangeListener listener) {
-        ringChangeListeners.remove(listener);
+    /**
+     * Routing that fails fast instead of silently using a newer ring than the rest of the caller's operation.
+     *
+     * @throws StaleRingEpochException if the current ring doesn't have the given epoch.
+     */
+    public List<Machine> getReadReplicasForHash(long epoch, long hash) {
+        return checkEpoch(epoch).getReadReplicasForHash(hash);
     }
 
     /**
-     * Checks for changes (with id and state) and updates ring if necessary.
+     * @throws StaleRingEpochException if the current ring doesn't have the given epoch.
+     * @see #getReadReplicasForHash(long, long)
      */
-    public void ringChangedPossibly() {
-        synchronized (ringUpdateRequests) {
-            ringUpdateRequests.addLast(Boolean.TRUE);
-            if (ringUpdateRequests.size() == 1) {
-                runRingUpdate(); // starts it - if there are more it is already running
+    public List<Machine> getWriteReplicasForHash(long epoch, long hash) {
+        return checkEpoch(epoch).getWriteReplicasForHash(hash);
+    }
+
+    public synchronized void addRingListener(VNodeConsistentHashRingChangeListener listener) {
+        if (findDispatcher(listener) == null) {
+            ringChangeListeners.add(new RingChangeListenerDispatcher(listener, listenerExecutor,
+                    listenerDeadlineNanos));
+        }
+    }
+
+    public synchronized void removeRingListener(VNodeConsistentHashRingChangeListener listener) {
+        RingChangeListenerDispatcher dispatcher = findDispatcher(listener);
+        if (dispatcher != null) {
+            dispatcher.remove();
+            ringChangeListeners.remove(dispatcher);
+        }
+    }
+
+    /**
+     * @return null if the listener is not registered.
+     */
+    @Nullable
+    public RingChangeListenerStatistics getListenerStatistics(VNodeConsistentHashRingChangeListener listener) {
+        RingChangeListenerDispatcher dispatcher = findDispatcher(listener);
+        return dispatcher != null ? dispatcher.getStatistics() : null;
+    }
+
+    @Nullable
+    private RingChangeListenerDispatcher findDispatcher(VNodeConsistentHashRingChangeListener listener) {
+        for (RingChangeListenerDispatcher d : ringChangeListeners) {
+            if (d.getListener().equals(listener)) {
+                return d;
             }
         }
+        return null;
     }
 
-    private void continueRingUpdatingIfNecessary() {
-        boolean finished = false;
-        synchronized (ringUpdateRequests) {
-            ringUpdateRequests.removeFirst();
-            if (ringUpdateRequests.size() == 0) {
-                finished = true;
+    /**
+     * @return count of calls to {@link #ringChangedPossibly()}, including {@link #startRing()}.
+     */
+    public long getRequestedRebuildCount() {
+        return requestedRebuildCount.get();
+    }
+
+    /**
+     * @return count of calls to the ring creator.
+     */
+    public long getExecutedRebuildCount() {
+        return executedRebuildCount.get();
+    }
+
+    /**
+     * Checks for changes (with id and state) and updates ring if necessary.
+     */
+    public void ringChangedPossibly() {
+        requestedRebuildCount.incrementAndGet();
+        boolean start;
+        synchronized (updateLock) {
+            long now = System.nanoTime();
+            if (!updatePending) {
+                updatePending = true;
+                firstPendingRequestNanos = now;
             }
+            lastRequestNanos = now;
+            start = startOrScheduleUpdate();
         }
-        if (!finished) {
+        if (start) {
             runRingUpdate();
         }
     }
 
-    private void runRingUpdate() {
+    /**
+     * Must hold updateLock.
+     *
+     * @return true if the caller has to run the update.
+     */
+    private boolean startOrScheduleUpdate() {
+        if (updateRunning || !updatePending) {
+            return false;
+        }
+        long delay = getUpdateDueNanos() - System.nanoTime();
+        if (delay <= 0) {
+            updatePending = false;
+            updateRunning = true;
+            executedRebuildCount.incrementAndGet();
+            return true;
+        }
+        if (!updateScheduled) {
+            updateScheduled = true;
+            scheduler.schedule(scheduledUpdate, delay, TimeUnit.NANOSECONDS);
+        }
+        return false;
+    }
 
-        // TODO decide if intermediate updates should be dropped - is that a problem?
-        try {
-            ringUpdateRequests.getFirst();
-        } catch (NoSuchElementException nse) {
-            throw new IllegalStateException("Threading problem - it should be impossible to have an updater run when " +
-                    "no updates are queued.", nse);
+    /**
+     * Must hold updateLock.
+     */
+    private long getUpdateDueNanos() {
+        long due = lastRequestNanos + debounceNanos;
+        if (maxStalenessNanos > 0 && due - (firstPendingRequestNanos + maxStalenessNanos) > 0) {
+            due = firstPendingRequestNanos + maxStalenessNanos;
         }
+        return due;
+    }
 
+    private void continueRingUpdatingIfNecessary() {
+        boolean start;
+        synchronized (updateLock) {
+            updateRunning = false;
+            start = startOrScheduleUpdate();
+        }
+        if (start) {
+            runRingUpdate();
+        }
+    }
+
+    private void runRingUpdate() {
         try {
             final ListenableFuture<? extends VNodeConsistentHashRing> future = ringCreator.call();
             future.addListener(new Runnable() {
@@ -103,8 +309,7 @@ public class VNodeConsistentHashRingMgr {
                 public void run() {
                     try {
                         VNodeConsistentHashRing newRing = future.get();
-                        RingDifferenceImpl ringDifferenceAfterUpdate = RingDifferenceImpl.create(getRing(),
-                                Machine.asMachineInfo(newRing.getMachines()));
+                        RingDifferenceImpl ringDifferenceAfterUpdate = RingDifferenceImpl.create(getRing(), newRing);
 
                         if (ringDifferenceAfterUpdate.isHavingDifference()) {
                             updateRing(newRing, ringDifferenceAfterUpdate);
@@ -126,20 +331,17 @@ public class VNodeConsistentHashRingMgr {
     private void updateRing(VNodeConsistentHashRing newRing, RingDifferenceImpl ringDifferenceAfterUpdate) {
         VNodeConsistentHashRing old;
         synchronized (this) {
-            old = ring;
-            ring = newRing;
+            PinnedRing previous = current;
+            old = previous != null ? previous.getRing() : null;
+            current = new PinnedRing(previous != null ? previous.getEpoch() + 1 : 1, newRing);
         }
         notifyRingChangeListeners(old, newRing, ringDifferenceAfterUpdate);
     }
 
     private void notifyRingChangeListeners(@Nullable VNodeConsistentHashRing old, VNodeConsistentHashRing newRing,
                                            RingDifference diff) {
-        for (VNodeConsistentHashRingChangeListener l : ringChangeListeners) {
-            try {
-                l.changed(old, newRing, diff);
-            } catch (Exception e) {
-                LOG.warn("Exception in ring change listener: {}, ignoring", l, e);
-            }
+        for (RingChangeListenerDispatcher d : ringChangeListeners) {
+            d.submit(old, newRing, diff);
         }
     }
 
@@ -57,6 +57,10 @@ public class VNodeConsistentHashRingWithReplicasByMachineOrderBuilder {
 
     private int replicaCount = DEFAULT_REPLICA_COUNT;
 
+    private boolean freezeRing = false;
+
+    private int lookupIndexBits = 0;
+
     /**
      *
      * @param id collisions not allowed
@@ -85,6 +89,28 @@ public class VNodeConsistentHashRingWithReplicasByMachineOrderBuilder {
         return this;
     }
 
+    /**
+     * Defaults to false. If true the built ring is converted to a read-only {@link FrozenConsistentHashRing}, which
+     * is the better choice for routing as lookups don't box or walk a tree.
+     */
+    public VNodeConsistentHashRingWithReplicasByMachineOrderBuilder setFreezeRing(boolean freezeRing) {
+        this.freezeRing = freezeRing;
+        return this;
+    }
+
+    /**
+     * Defaults to 0, no lookup index. Values greater 0 build a lookup index into the frozen ring and imply
+     * {@link #setFreezeRing(boolean)}. Negative values choose the bits by ring size, see
+     * {@link FrozenConsistentHashRing#suggestLookupIndexBits(int)}.
+     */
+    public VNodeConsistentHashRingWithReplicasByMachineOrderBuilder setLookupIndexBits(int lookupIndexBits) {
+        this.lookupIndexBits = lookupIndexBits;
+        if (lookupIndexBits != 0) {
+            this.freezeRing = true;
+        }
+        return this;
+    }
+
     public VNodeConsistentHashRing build() {
         return build(null);
     }
@@ -140,9 +166,9 @@ public class VNodeConsistentHashRingWithReplicasByMachineOrderBuilder {
                                 throw new AssertionFailure("This shouldn't happen");
                             }
                             result.setLeader(m);
-                            // new lists because per-vnode modifications later required
-                            result.setReadReplicas(new ArrayList<Machine>(readReplicas));
-                            result.setWriteReplicas(new ArrayList<Machine>(writeReplicas));
+                            // shared by the machine's vnodes, replaced instead of modified later
+                            result.setReadReplicas(readReplicas);
+                            result.setWriteReplicas(writeReplicas);
                             return result;
                         }
                     },
@@ -175,7 +201,7 @@ public class VNodeConsistentHashRingWithReplicasByMachineOrderBuilder {
                     switch (state) {
                         case BOOTSTRAPPING:
                             // we need to get writes for this new node, too - as long as we still serve the reads
-                            previous.getWriteReplicas().addAll(currNode.getWriteReplicas());
+                            previous.setWriteReplicas(concat(previous.getWriteReplicas(), currNode.getWriteReplicas()));
                             // read from current owner - currNode/us - synchronize replica list (bootstrapping don't have all their data yet)
                             previous.setReadReplicas(currNode.getReadReplicas());
                             break;
@@ -184,7 +210,7 @@ public class VNodeConsistentHashRingWithReplicasByMachineOrderBuilder {
                             break;
                         case LEAVING:
                             // we will take over from this node, we want writes (too) and let the leaver continue to serve reads
-                            previous.getWriteReplicas().addAll(currNode.getWriteReplicas());
+                            previous.setWriteReplicas(concat(previous.getWriteReplicas(), currNode.getWriteReplicas()));
                             finished = true; // going to continue there. The leaving node will set its write list to following leaving nodes
                             break;
                         case OUT_OF_RING:
@@ -206,11 +232,17 @@ public class VNodeConsistentHashRingWithReplicasByMachineOrderBuilder {
 
         // finish replica lists, drop duplicates,
         // remove out-of-ring nodes
-        finishNodesByAddingToMachineAndRemovingDuplicatesFromReplicaListsMaintainingOrderAndRemoveOldNodes(ring);
+        finishNodesByAddingToMachineAndRemovingDuplicatesFromReplicaListsMaintainingOrderAndRemoveOldNodes(ring,
+                new MachineListPool(allMachines));
         for (Machine m : allMachines) {
             m.finishSetup();
         }
 
+        if (freezeRing) {
+            ring = ConsistentHashRings.freeze(ring, lookupIndexBits >= 0 ? lookupIndexBits :
+                    FrozenConsistentHashRing.suggestLookupIndexBits(ring.getNodeCount()));
+        }
+
         return VNodeConsistentHashRing.create(allMachines, ring);
     }
 
@@ -245,7 +277,7 @@ public class VNodeConsistentHashRingWithReplicasByMachineOrderBuilder {
     }
 
     private void finishNodesByAddingToMachineAndRemovingDuplicatesFromReplicaListsMaintainingOrderAndRemoveOldNodes(
-            ConsistentHashRingHoldingResourceEntries<?, VNodeImpl, String, String> ring) {
+            ConsistentHashRingHoldingResourceEntries<?, VNodeImpl, String, String> ring, MachineListPool pool) {
 
         Collection<VNodeImpl> toRemove = new ArrayList<>();
 
@@ -258,13 +290,20 @@ public class VNodeConsistentHashRingWithReplicasByMachineOrderBuilder {
                 ConsistentHashRings.removeDuplicatesMaintainingOrder(currNode.getReadReplicas());
                 ConsistentHashRings.removeDuplicatesMaintainingOrder(currNode.getWriteReplicas());
             }
-            currNode.finishSetup();
+            currNode.finishSetup(pool);
         }
         for (VNodeImpl n : toRemove) {
             ring.removeNodeByHash(n.getHash());
         }
     }
 
+    private static List<Machine> concat(List<Machine> first, List<Machine> second) {
+        List<Machine> result = new ArrayList<>(first.size() + second.size());
+        result.addAll(first);
+        result.addAll(second);
+        return result;
+    }
+
     @Nullable
     private VNodeImpl findOneIntegratedLedVNodeOrNull(
             ConsistentHashRingHoldingResourceEntries<?, VNodeImpl, String, String> ring) {
@@ -2,8 +2,8 @@ package de.deverado.framework.concurrent.consistenthashing;/*
  * Copyright Georg Koester 2012-15. All rights reserved.
  */
 
-import com.google.common.collect.ImmutableList;
 
+import javax.annotation.Nullable;
 import javax.annotation.ParametersAreNonnullByDefault;
 
 import java.util.List;
@@ -16,6 +16,7 @@ public class VNodeImpl implements VNode {
     private Machine leader;
     private List<Machine> readReplicas;
     private List<Machine> writeReplicas;
+    private OnDemandReplicas onDemandReplicas;
 
     void init(Long hash) {
         this.hash = hash;
@@ -25,9 +26,19 @@ public class VNodeImpl implements VNode {
         this.leader = leader;
     }
 
-    void finishSetup() {
-        readReplicas = ImmutableList.copyOf(readReplicas);
-        writeReplicas = ImmutableList.copyOf(writeReplicas);
+    /**
+     * Replica lists are not set but determined on access.
+     */
+    void setOnDemandReplicas(OnDemandReplicas onDemandReplicas) {
+        this.onDemandReplicas = onDemandReplicas;
+    }
+
+    /**
+     * Makes the replica lists immutable, sharing equal lists with other vnodes via the pool.
+     */
+    void finishSetup(MachineListPool pool) {
+        readReplicas = pool.intern(readReplicas);
+        writeReplicas = pool.intern(writeReplicas);
     }
 
     @Override
@@ -61,6 +72,9 @@ public class VNodeImpl implements VNode {
      * @return a list containing also the leader if that is a read replica for this vnode
      */
     public List<Machine> getReadReplicas() {
+        if (onDemandReplicas != null) {
+            return onDemandReplicas.getReadReplicas(this);
+        }
         return readReplicas;
     }
 
@@ -69,8 +83,20 @@ public class VNodeImpl implements VNode {
     }
 
     public AssignmentState getAssignmentStateForMachine(String machineId, int replicaCount) {
-        boolean readReplica = isReadReplica(machineId, replicaCount);
-        boolean writeReplica = isWriteReplica(machineId, replicaCount);
+        return toAssignmentState(isReadReplica(machineId, replicaCount), isWriteReplica(machineId, replicaCount));
+    }
+
+    /**
+     * Like {@link #getAssignmentStateForMachine(String, int)}, but keyed by the machine's ordinal, see
+     * {@link VNodeConsistentHashRing#getMachineOrdinal(String)}. For rings built with interned replica lists this
+     * doesn't walk the replica lists.
+     */
+    public AssignmentState getAssignmentStateForMachine(int machineOrdinal, int replicaCount) {
+        return toAssignmentState(isReadReplica(machineOrdinal, replicaCount),
+                isWriteReplica(machineOrdinal, replicaCount));
+    }
+
+    private static AssignmentState toAssignmentState(boolean readReplica, boolean writeReplica) {
         if (readReplica && writeReplica) {
             return AssignmentState.READ_WRITE_REPLICA;
         }
@@ -96,13 +122,20 @@ public class VNodeImpl implements VNode {
      * checks with the replicaCount limit that was specified upon ring creation.
      */
     public boolean isReadReplica(String machineId, int replicaCount) {
+        List<Machine> readReplicas = getReadReplicas();
+        if (readReplicas instanceof MachineOrdinalList) {
+            MachineOrdinalList list = (MachineOrdinalList) readReplicas;
+            int idx = list.indexOfMachineId(machineId);
+            return idx >= 0 && list.isWithinReadReplicaCount(idx, replicaCount);
+        }
+
         if (replicaCount <= 0) {
             replicaCount = Integer.MAX_VALUE;
         }
 
         int foundIntegratedOrLeaving = 0;
         outer:
-        for (Machine m : getReadReplicas()) {
+        for (Machine m : readReplicas) {
             if (Objects.equals(m.getMachineId(), machineId)) {
                 return true;
             }
@@ -135,6 +168,9 @@ public class VNodeImpl implements VNode {
      * @return a list containing also the leader if that is a write replica for this vnode
      */
     public List<Machine> getWriteReplicas() {
+        if (onDemandReplicas != null) {
+            return onDemandReplicas.getWriteReplicas(this);
+        }
         return writeReplicas;
     }
 
@@ -151,13 +187,21 @@ public class VNodeImpl implements VNode {
     }
 
     public boolean isWriteReplica(String machineId, int replicaCount) {
+        List<Machine> writeReplicas = getWriteReplicas();
+        if (writeReplicas instanceof MachineOrdinalList) {
+            MachineOrdinalList list = (MachineOrdinalList) writeReplicas;
+            int idx = list.indexOfMachineId(machineId);
+            return idx >= 0 && list.isWithinWriteReplicaCount(idx,
+                    list.indexOfOrdinal(leader.getIdxInAllMachineList()), replicaCount);
+        }
+
         if (replicaCount <= 0) {
             replicaCount = Integer.MAX_VALUE;
         }
 
         int foundIntegrated = 0;
         boolean seenLeader = false;
-        for (Machine m : getWriteReplicas()) {
+        for (Machine m : writeReplicas) {
             if (Objects.equals(m.getMachineId(), machineId)) {
                 return true;
             }
@@ -183,6 +227,52 @@ public class VNodeImpl implements VNode {
         return false;
     }
 
+    /**
+     * Like {@link #isReadReplica(String, int)}, but keyed by the machine's ordinal.
+     */
+    public boolean isReadReplica(int machineOrdinal, int replicaCount) {
+        List<Machine> readReplicas = getReadReplicas();
+        if (readReplicas instanceof MachineOrdinalList) {
+            MachineOrdinalList list = (MachineOrdinalList) readReplicas;
+            int idx = list.indexOfOrdinal(machineOrdinal);
+            return idx >= 0 && list.isWithinReadReplicaCount(idx, replicaCount);
+        }
+        Machine m = findByOrdinal(readReplicas, machineOrdinal);
+        return m != null && isReadReplica(m.getMachineId(), replicaCount);
+    }
+
+    /**
+     * Like {@link #isWriteReplica(String, int)}, but keyed by the machine's ordinal.
+     */
+    public boolean isWriteReplica(int machineOrdinal, int replicaCount) {
+        List<Machine> writeReplicas = getWriteReplicas();
+        if (writeReplicas instanceof MachineOrdinalList) {
+            MachineOrdinalList list = (MachineOrdinalList) writeReplicas;
+            int idx = list.indexOfOrdinal(machineOrdinal);
+            return idx >= 0 && list.isWithinWriteReplicaCount(idx,
+                    list.indexOfOrdinal(leader.getIdxInAllMachineList()), replicaCount);
+        }
+        Machine m = findByOrdinal(writeReplicas, machineOrdinal);
+        return m != null && isWriteReplica(m.getMachineId(), replicaCount);
+    }
+
+    /**
+     * @return true if the machine is a read or a write replica, without replica count limit.
+     */
+    public boolean isReplica(int machineOrdinal) {
+        return isReadReplica(machineOrdinal, -1) || isWriteReplica(machineOrdinal, -1);
+    }
+
+    @Nullable
+    private static Machine findByOrdinal(List<Machine> machines, int machineOrdinal) {
+        for (Machine m : machines) {
+            if (m.getIdxInAllMachineList() == machineOrdinal) {
+                return m;
+            }
+        }
+        return null;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
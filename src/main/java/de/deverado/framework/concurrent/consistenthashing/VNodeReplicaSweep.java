@@ -0,0 +1,266 @@
+package de.deverado.framework.concurrent.consistenthashing;/*
+ * Copyright Georg Koester 2012-15. All rights reserved.
+ */
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+/**
+ * Determines the replicas of the vnodes with the rules of {@link VNodeConsistentHashRingBuilder} in a sweep over the
+ * nodes in token order instead of walking the ring backwards from every node.
+ * <p>
+ * Walking backwards from a node the replicas are the machines in the order of their latest occurrence before the node.
+ * So while sweeping two windows of distinct machines ordered by latest occurrence are kept: The read window holds the
+ * last replicaCount INTEGRATED or LEAVING machines, the write window all non-OUT_OF_RING machines up to and including
+ * the replicaCount-th INTEGRATED one. One more than needed, as the leader of the node is skipped. The windows are only
+ * as big as the replica lists, so a sweep is linear in node count times replicaCount, without ring lookups.
+ * </p>
+ * <p>
+ * Only the forward search for the new owners of LEAVING-led nodes still walks, by index.
+ * </p>
+ * Thread-safe, sweeps over different ranges can run in parallel.
+ */
+@ParametersAreNonnullByDefault
+class VNodeReplicaSweep {
+
+    private final List<VNodeImpl> nodes;
+
+    private final int machineCount;
+
+    private final int replicaCount;
+
+    /**
+     * @param nodes the nodes of all machines in token order, random access.
+     * @param machineCount count of machines in the ring, for tracking machines by
+     *                     {@link Machine#getIdxInAllMachineList()}.
+     */
+    VNodeReplicaSweep(List<VNodeImpl> nodes, int machineCount, int replicaCount) {
+        this.nodes = nodes;
+        this.machineCount = machineCount;
+        this.replicaCount = replicaCount;
+    }
+
+    /**
+     * Sets the replicas of the INTEGRATED or LEAVING-led nodes at the indices [from, to), other nodes aren't modified.
+     */
+    void determineReplicas(int from, int to) {
+        if (from >= to) {
+            return;
+        }
+
+        Machine[] readWindow = new Machine[replicaCount];
+        int readWindowSize = 0;
+        List<Machine> writeWindow = new ArrayList<>();
+
+        for (int position = from - getWarmUpLength(from); position < to; position++) {
+            VNodeImpl n = nodes.get(wrap(position));
+            Machine leader = n.getLeader();
+            MachineInRingState state = leader.getState();
+
+            if (position >= from) {
+                switch (state) {
+                    case INTEGRATED:
+                    case LEAVING:
+                        n.setReadReplicas(getReadReplicas(leader, readWindow, readWindowSize));
+                        List<Machine> writeReplicas = getDefaultWriteReplicas(leader, writeWindow);
+                        if (MachineInRingState.LEAVING.equals(state)) {
+                            List<Machine> additionalWriters = getPossibleNewOwnersForLeavingNode(
+                                    wrap(position), writeReplicas);
+                            additionalWriters.addAll(writeReplicas); // future owners first
+                            writeReplicas = additionalWriters;
+                        }
+                        n.setWriteReplicas(writeReplicas);
+                        break;
+                    case OUT_OF_RING:
+                    case BOOTSTRAPPING:
+                        break; // not owning, only relevant as replicas of other nodes
+                    default:
+                        throw new IllegalStateException("Unknown state " + state + " in " + getClass());
+                }
+            }
+
+            switch (state) {
+                case INTEGRATED:
+                case LEAVING:
+                    readWindowSize = moveToFront(readWindow, readWindowSize, leader);
+                    moveToFrontOfWriteWindow(writeWindow, leader);
+                    break;
+                case BOOTSTRAPPING:
+                    moveToFrontOfWriteWindow(writeWindow, leader);
+                    break;
+                case OUT_OF_RING:
+                    break; // ignore
+                default:
+                    throw new IllegalStateException("Unknown state " + state + " in " + getClass());
+            }
+        }
+    }
+
+    /**
+     * @return how many nodes before from must be swept to fill the windows like a sweep from the start would, at most
+     * the node count. Sweeping more than a full ring doesn't change anything: Older nodes all occur again, only the
+     * node itself doesn't - and its leader isn't its own replica.
+     */
+    private int getWarmUpLength(int from) {
+        int nodeCount = nodes.size();
+        boolean[] seen = new boolean[machineCount];
+        int readCounted = 0;
+        int integrated = 0;
+        for (int length = 1; length <= nodeCount; length++) {
+            Machine m = nodes.get(wrap(from - length)).getLeader();
+            if (seen[m.getIdxInAllMachineList()]) {
+                continue;
+            }
+            seen[m.getIdxInAllMachineList()] = true;
+            if (MachineInRingState.INTEGRATED.equals(m.getState())) {
+                integrated++;
+                readCounted++;
+            } else if (MachineInRingState.LEAVING.equals(m.getState())) {
+                readCounted++;
+            }
+            if (readCounted >= replicaCount && integrated >= replicaCount) {
+                return length;
+            }
+        }
+        return nodeCount;
+    }
+
+    /**
+     * @return the index of the node at the position, positions before 0 or after the last node wrap around.
+     */
+    private int wrap(int position) {
+        int index = position % nodes.size();
+        return index < 0 ? index + nodes.size() : index;
+    }
+
+    private List<Machine> getReadReplicas(Machine leader, Machine[] readWindow, int readWindowSize) {
+        List<Machine> result = new ArrayList<>(replicaCount);
+        result.add(leader);
+        for (int i = 0; i < readWindowSize && result.size() < replicaCount; i++) {
+            if (readWindow[i] != leader) {
+                result.add(readWindow[i]);
+            }
+        }
+        return result;
+    }
+
+    private List<Machine> getDefaultWriteReplicas(Machine leader, List<Machine> writeWindow) {
+        List<Machine> result = new ArrayList<>(replicaCount);
+        result.add(leader);
+        int realReplicasAdded = 1;
+        for (int i = 0; i < writeWindow.size() && realReplicasAdded < replicaCount; i++) {
+            Machine m = writeWindow.get(i);
+            if (m == leader) {
+                continue;
+            }
+            result.add(m);
+            if (MachineInRingState.INTEGRATED.equals(m.getState())) {
+                realReplicasAdded++;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the new size.
+     */
+    private int moveToFront(Machine[] window, int size, Machine m) {
+        int index = 0;
+        while (index < size && window[index] != m) {
+            index++;
+        }
+        if (index == size && size < window.length) {
+            size++;
+        } else if (index == size) {
+            index = size - 1; // dropping the oldest
+        }
+        System.arraycopy(window, 0, window, 1, index);
+        window[0] = m;
+        return size;
+    }
+
+    private void moveToFrontOfWriteWindow(List<Machine> writeWindow, Machine m) {
+        int index = writeWindow.indexOf(m);
+        if (index >= 0) {
+            writeWindow.remove(index);
+        }
+        writeWindow.add(0, m);
+
+        int integrated = 0;
+        for (int i = 0; i < writeWindow.size(); i++) {
+            if (MachineInRingState.INTEGRATED.equals(writeWindow.get(i).getState()) && ++integrated == replicaCount) {
+                writeWindow.subList(i + 1, writeWindow.size()).clear();
+                return;
+            }
+        }
+    }
+
+    /**
+     * See the ring walking version in {@link VNodeConsistentHashRingBuilder#findWriteReplicas}.
+     */
+    private List<Machine> getPossibleNewOwnersForLeavingNode(int index, List<Machine> existingWriteReplicas) {
+        int nodeCount = nodes.size();
+        LinkedHashSet<Machine> existingWriteReplicasSet = new LinkedHashSet<>(existingWriteReplicas);
+        List<Machine> additionalWriters = new ArrayList<>();
+        for (int step = 1; step < nodeCount; step++) {
+            Machine leader = nodes.get(wrap(index + step)).getLeader();
+            switch (leader.getState()) {
+                case BOOTSTRAPPING:
+                case LEAVING:
+                    if (existingWriteReplicasSet.add(leader)) {
+                        additionalWriters.add(leader);
+                    }
+                    break;
+                case INTEGRATED:
+                    if (existingWriteReplicasSet.add(leader)) {
+                        additionalWriters.add(leader);
+                    } else {
+                        Machine additionalReplica = getAnotherIntegratedWriteReplicaBeforeLast(index,
+                                existingWriteReplicasSet);
+                        if (additionalReplica != null) {
+                            additionalWriters.add(additionalReplica);
+                        }
+                    }
+                    return additionalWriters; // new owner found
+                case OUT_OF_RING:
+                    break; // ignore
+                default:
+                    throw new IllegalStateException("Unknown state " + leader.getState() + " in " + getClass());
+            }
+        }
+        return additionalWriters;
+    }
+
+    @Nullable
+    private Machine getAnotherIntegratedWriteReplicaBeforeLast(int index,
+                                                               LinkedHashSet<Machine> existingWriteReplicas) {
+        Machine lastIntegrated = null;
+        for (Machine m : existingWriteReplicas) {
+            if (MachineInRingState.INTEGRATED.equals(m.getState())) {
+                lastIntegrated = m;
+            }
+        }
+        if (lastIntegrated == null) {
+            return null;
+        }
+
+        int nodeCount = nodes.size();
+        for (int step = 1; step < nodeCount; step++) {
+            int lastIntegratedLedIndex = wrap(index - step);
+            if (nodes.get(lastIntegratedLedIndex).getLeader() == lastIntegrated) {
+                // found it, now look for new integrated machine before it
+                for (int stepBefore = 1; stepBefore < nodeCount; stepBefore++) {
+                    Machine m = nodes.get(wrap(lastIntegratedLedIndex - stepBefore)).getLeader();
+                    if (MachineInRingState.INTEGRATED.equals(m.getState()) && !existingWriteReplicas.contains(m)) {
+                        return m;
+                    }
+                }
+                return null;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,70 @@
+package de.deverado.framework.concurrent.consistenthashing;/*
+ * Copyright Georg Koester 2012-15. All rights reserved.
+ */
+
+import org.apache.commons.lang3.tuple.Pair;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.util.SortedMap;
+
+/**
+ * What {@link VNodeConsistentHashRingBuilder} needs from a built ring to build the next one incrementally, see
+ * {@link VNodeConsistentHashRingBuilder#createIncremental(VNodeConsistentHashRing)}: The builder input and the tokens
+ * of the vnodes of all machines - the ring itself only contains the owning ones. About 20 bytes per vnode: 8 for the
+ * token in the builder input, 8 in the sorted tokens and 4 for the leader ordinal.
+ */
+@ParametersAreNonnullByDefault
+final class VNodeRingBuildState {
+
+    private final SortedMap<String, Pair<MachineInRingState, long[]>> machines;
+
+    private final long[] tokens;
+
+    private final int[] leaderOrdinals;
+
+    private final boolean tokenCollisions;
+
+    private final int replicaCount;
+
+    private final int lookupIndexBits;
+
+    /**
+     * @param machines       the builder input, not modified any more.
+     * @param tokens         the tokens of the vnodes of all machines, sorted.
+     * @param leaderOrdinals the ordinals of the leaders of the tokens.
+     * @param tokenCollisions if tokens had to be dropped because other machines had them, too.
+     */
+    VNodeRingBuildState(SortedMap<String, Pair<MachineInRingState, long[]>> machines, long[] tokens,
+                        int[] leaderOrdinals, boolean tokenCollisions, int replicaCount, int lookupIndexBits) {
+        this.machines = machines;
+        this.tokens = tokens;
+        this.leaderOrdinals = leaderOrdinals;
+        this.tokenCollisions = tokenCollisions;
+        this.replicaCount = replicaCount;
+        this.lookupIndexBits = lookupIndexBits;
+    }
+
+    SortedMap<String, Pair<MachineInRingState, long[]>> getMachines() {
+        return machines;
+    }
+
+    long[] getTokens() {
+        return tokens;
+    }
+
+    int[] getLeaderOrdinals() {
+        return leaderOrdinals;
+    }
+
+    boolean isHavingTokenCollisions() {
+        return tokenCollisions;
+    }
+
+    int getReplicaCount() {
+        return replicaCount;
+    }
+
+    int getLookupIndexBits() {
+        return lookupIndexBits;
+    }
+}
@@ -0,0 +1,186 @@
+package de.deverado.framework.concurrent.consistenthashing;/*
+ * Copyright Georg Koester 2012-15. All rights reserved.
+ */
+
+import com.google.common.collect.Lists;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes a built {@link VNodeConsistentHashRing} to a compact binary file that {@link MappedVNodeRing} serves lookups
+ * from without deserializing it, so processes starting up don't have to build the ring themselves and processes on
+ * the same host share one page cache copy of it.
+ * <p>
+ * Format version {@value #VERSION}, all numbers big-endian, sections in this order:
+ * </p>
+ * <ul>
+ *     <li>Header of 8 ints: magic {@value #MAGIC} (<code>VNRS</code>), version, machine count, node count, replica
+ *     list count, length of the replica list data, lookup index bits (0 for none), byte length of the machine
+ *     section.</li>
+ *     <li><code>long[nodeCount]</code> tokens of the ring's nodes, sorted.</li>
+ *     <li><code>int[nodeCount]</code> leader ordinals, <code>int[nodeCount]</code> read replica list indexes,
+ *     <code>int[nodeCount]</code> write replica list indexes.</li>
+ *     <li>Interned replica lists: <code>int[listCount + 1]</code> start offsets into the list data, then the list
+ *     data: <code>int[]</code> machine ordinals.</li>
+ *     <li>If there are lookup index bits: <code>int[(1 &lt;&lt; bits) + 1]</code> index of the first token per
+ *     bucket as in {@link FrozenConsistentHashRing}.</li>
+ *     <li>Machine section: id and state name per machine in ordinal order, each as
+ *     {@link DataOutputStream#writeUTF(String)}.</li>
+ * </ul>
+ * <p>
+ * The hash function isn't part of the snapshot: Lookups take hashes, {@link MappedVNodeRing#toRing()} uses the
+ * default hashing of {@link VNodeConsistentHashRingBuilder}.
+ * </p>
+ */
+@ParametersAreNonnullByDefault
+public final class VNodeRingSnapshot {
+
+    public static final int MAGIC = 0x564E5253;
+
+    public static final int VERSION = 1;
+
+    static final int HEADER_LENGTH = 32;
+
+    private VNodeRingSnapshot() {
+    }
+
+    /**
+     * Writes the ring with a lookup index of {@link FrozenConsistentHashRing#suggestLookupIndexBits(int)} bits.
+     */
+    public static void write(VNodeConsistentHashRing ring, File file) throws IOException {
+        write(ring, file, -1);
+    }
+
+    /**
+     * Writes to a temporary file next to the given one and moves it into place, so readers never map a partially
+     * written snapshot.
+     *
+     * @param lookupIndexBits 0 for no lookup index, -1 for {@link FrozenConsistentHashRing#suggestLookupIndexBits(int)}
+     *                        bits, else up to {@link FrozenConsistentHashRing#MAX_LOOKUP_INDEX_BITS}.
+     */
+    public static void write(VNodeConsistentHashRing ring, File file, int lookupIndexBits) throws IOException {
+        if (lookupIndexBits < -1 || lookupIndexBits > FrozenConsistentHashRing.MAX_LOOKUP_INDEX_BITS) {
+            throw new IllegalArgumentException("lookupIndexBits must be between -1 and "
+                    + FrozenConsistentHashRing.MAX_LOOKUP_INDEX_BITS + ", got: " + lookupIndexBits);
+        }
+
+        List<VNodeImpl> nodes = Lists.newArrayList(ring.getNodeRing().getNodes());
+        long[] tokens = new long[nodes.size()];
+        for (int i = 0; i < tokens.length; i++) {
+            tokens[i] = nodes.get(i).getHash();
+            if (i > 0 && tokens[i - 1] >= tokens[i]) {
+                throw new IllegalStateException("Ring nodes not in token order at " + i);
+            }
+        }
+        int bits = lookupIndexBits >= 0 ? lookupIndexBits :
+                FrozenConsistentHashRing.suggestLookupIndexBits(tokens.length);
+
+        Map<List<Machine>, Integer> listIndexes = new HashMap<>();
+        List<List<Machine>> lists = new ArrayList<>();
+        int[] readListIndexes = new int[tokens.length];
+        int[] writeListIndexes = new int[tokens.length];
+        for (int i = 0; i < tokens.length; i++) {
+            readListIndexes[i] = internList(listIndexes, lists, nodes.get(i).getReadReplicas());
+            writeListIndexes[i] = internList(listIndexes, lists, nodes.get(i).getWriteReplicas());
+        }
+        int listDataLength = 0;
+        for (List<Machine> l : lists) {
+            listDataLength += l.size();
+        }
+
+        List<Machine> machines = ring.getMachines();
+        byte[] machineSection = writeMachineSection(machines);
+
+        File tmp = new File(file.getAbsoluteFile().getParentFile(), file.getName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp),
+                64 * 1024))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(machines.size());
+            out.writeInt(tokens.length);
+            out.writeInt(lists.size());
+            out.writeInt(listDataLength);
+            out.writeInt(bits);
+            out.writeInt(machineSection.length);
+
+            for (long t : tokens) {
+                out.writeLong(t);
+            }
+            for (VNodeImpl n : nodes) {
+                out.writeInt(n.getLeader().getIdxInAllMachineList());
+            }
+            writeInts(out, readListIndexes);
+            writeInts(out, writeListIndexes);
+
+            int start = 0;
+            for (List<Machine> l : lists) {
+                out.writeInt(start);
+                start += l.size();
+            }
+            out.writeInt(start);
+            for (List<Machine> l : lists) {
+                for (Machine m : l) {
+                    out.writeInt(m.getIdxInAllMachineList());
+                }
+            }
+
+            if (bits > 0) {
+                writeInts(out, FrozenConsistentHashRing.buildLookupIndex(tokens, bits));
+            }
+            out.write(machineSection);
+        }
+
+        try {
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Null lists are written as empty ones.
+     */
+    private static int internList(Map<List<Machine>, Integer> listIndexes, List<List<Machine>> lists,
+                                  List<Machine> replicas) {
+        List<Machine> key = replicas != null ? replicas : Collections.<Machine>emptyList();
+        Integer result = listIndexes.get(key);
+        if (result == null) {
+            result = lists.size();
+            lists.add(key);
+            listIndexes.put(key, result);
+        }
+        return result;
+    }
+
+    private static byte[] writeMachineSection(List<Machine> machines) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            for (Machine m : machines) {
+                out.writeUTF(m.getMachineId());
+                out.writeUTF(m.getState().name());
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void writeInts(DataOutputStream out, int[] values) throws IOException {
+        for (int v : values) {
+            out.writeInt(v);
+        }
+    }
+}
@@ -87,6 +87,53 @@ public class ShardingTest {
                 25);
     }
 
+    @Test
+    public void shouldShardJumpConsistentHashEvenly() {
+        // no bias for counts that aren't powers of 2
+        testSharding(10000, 10, 8, new Sharding.ShardByJumpConsistentHashStrategy(10), 15);
+        testSharding(50000, 100, 10, new Sharding.ShardByJumpConsistentHashStrategy(100), 30);
+    }
+
+    @Test
+    public void jumpConsistentHashShouldUseSingleBucket() {
+        assertEquals(0, Hashing.jumpConsistentHash(123, 1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void jumpConsistentHashShouldRejectNoBuckets() {
+        Hashing.jumpConsistentHash(123, 0);
+    }
+
+    @Test
+    public void jumpConsistentHashShouldMoveOnlyToNewBucket() {
+        Random rand = new Random(42);
+        int keys = 100000;
+        int moved = 0;
+        for (int i = 0; i < keys; i++) {
+            long key = rand.nextLong();
+            int before = Hashing.jumpConsistentHash(key, 20);
+            int after = Hashing.jumpConsistentHash(key, 21);
+            if (before != after) {
+                assertEquals(20, after);
+                moved++;
+            }
+        }
+        // expected keys / 21 = 4762
+        assertTrue("moved " + moved, moved > 4300 && moved < 5200);
+    }
+
+    @Test
+    public void jumpConsistentHashShouldSupportHugeShardCounts() {
+        Sharding.ShardingStrategy strategy = new Sharding.ShardByJumpConsistentHashStrategy(Integer.MAX_VALUE);
+        for (int i = 0; i < 1000; i++) {
+            int shard = strategy.shard("key" + i);
+            assertTrue(shard >= 0);
+        }
+        int shard = strategy.shard(new byte[]{1, 2, 3});
+        assertTrue(shard >= 0);
+        assertEquals(strategy.shard(17), strategy.shard(17));
+    }
+
     public static void testSharding(int count, int shards,
             int maxStddevMeanPct, ShardingStrategy shardingStrategy,
             int maxDiffMeanPct) {
@@ -0,0 +1,116 @@
+package de.deverado.framework.concurrent.consistenthashing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+public class BoundedLoadVNodeRouterTest {
+
+    private Random random;
+    private VNodeConsistentHashRing ring;
+
+    @Before
+    public void setUp() throws Exception {
+        random = new Random(42);
+        VNodeConsistentHashRingBuilder builder = new VNodeConsistentHashRingBuilder();
+        for (int m = 0; m < 10; m++) {
+            builder.addMachine("m" + m, MachineInRingState.INTEGRATED,
+                    ConsistentHashRings.createRandomVnodes(random, "m" + m, 16));
+        }
+        ring = builder.build();
+    }
+
+    @Test
+    public void shouldSpreadHotKeyWithinCapacity() {
+        BoundedLoadVNodeRouter router = BoundedLoadVNodeRouter.create(ring, 1.25);
+        List<VNodeImpl> acquired = new ArrayList<>();
+        for (int i = 0; i < 10000; i++) {
+            acquired.add(router.acquire(12345L));
+        }
+        assertEquals(10000, router.getTotalLoad());
+        long capacity = router.getCapacity(10000);
+        assertEquals(1250, capacity);
+        for (Machine m : ring.getMachines()) {
+            assertTrue(m + " load " + router.getLoad(m), router.getLoad(m) <= capacity);
+        }
+        // owner is used first:
+        assertSame(ring.getNodeForHash(12345L), acquired.get(0));
+
+        for (VNodeImpl node : acquired) {
+            router.release(node);
+        }
+        assertEquals(0, router.getTotalLoad());
+        for (Machine m : ring.getMachines()) {
+            assertEquals(0, router.getLoad(m));
+        }
+    }
+
+    @Test
+    public void shouldRouteToOwnerWhileUnderCapacity() {
+        BoundedLoadVNodeRouter router = BoundedLoadVNodeRouter.create(ring, 2);
+        for (int i = 0; i < 10; i++) {
+            long hash = random.nextLong();
+            VNodeImpl node = router.acquire(hash);
+            assertSame(ring.getNodeForHash(hash), node);
+            router.release(node);
+        }
+    }
+
+    @Test
+    public void shouldBoundUniformLoad() {
+        BoundedLoadVNodeRouter router = BoundedLoadVNodeRouter.create(ring, 1.1);
+        for (int i = 0; i < 50000; i++) {
+            router.acquire(random.nextLong());
+        }
+        for (Machine m : ring.getMachines()) {
+            assertTrue(router.getLoad(m) <= router.getCapacity(50000));
+        }
+    }
+
+    @Test
+    public void shouldOnlyCountLeadersForCapacityWithBootstrappingMachines() {
+        VNodeConsistentHashRingBuilder builder = new VNodeConsistentHashRingBuilder().setReplicaCount(3);
+        for (int m = 0; m < 15; m++) {
+            builder.addMachine("m" + m, m < 10 ? MachineInRingState.INTEGRATED : MachineInRingState.BOOTSTRAPPING,
+                    ConsistentHashRings.createRandomVnodes(random, "m" + m, 16));
+        }
+        VNodeConsistentHashRing deployRing = builder.build();
+        BoundedLoadVNodeRouter router = BoundedLoadVNodeRouter.create(deployRing, 1.25);
+        for (int i = 0; i < 100000; i++) {
+            router.acquire(random.nextLong());
+        }
+        long capacity = router.getCapacity(100000);
+        assertEquals(12500, capacity);
+        for (Machine m : deployRing.getMachines()) {
+            assertTrue(m + " load " + router.getLoad(m), router.getLoad(m) <= capacity);
+        }
+    }
+
+    @Test
+    public void shouldHandleEmptyAndSingleMachineRings() {
+        VNodeConsistentHashRing empty = new VNodeConsistentHashRingBuilder()
+                .addMachine("1", MachineInRingState.BOOTSTRAPPING, 1).build();
+        assertNull(BoundedLoadVNodeRouter.create(empty, 1.25).acquire(1));
+
+        VNodeConsistentHashRing single = new VNodeConsistentHashRingBuilder()
+                .addMachine("1", MachineInRingState.INTEGRATED, 1).build();
+        BoundedLoadVNodeRouter router = BoundedLoadVNodeRouter.create(single, 1.25);
+        for (int i = 0; i < 100; i++) {
+            assertSame(single.getNodeForHash(1L), router.acquire(random.nextLong()));
+        }
+        assertEquals(100, router.getLoad(single.getMachines().get(0)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectCapacityFactorNotAboveOne() {
+        BoundedLoadVNodeRouter.create(ring, 1.0);
+    }
+}
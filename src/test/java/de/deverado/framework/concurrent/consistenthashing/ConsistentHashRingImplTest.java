@@ -3,6 +3,7 @@ package de.deverado.framework.concurrent.consistenthashing;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import com.google.common.hash.Hasher;
 import com.google.common.primitives.Ints;
 import de.deverado.framework.concurrent.consistenthashing.ConsistentHashRingHoldingResourceEntries;
@@ -93,6 +94,155 @@ public class ConsistentHashRingImplTest {
         }
     }
 
+    @Test
+    public void ownershipChangeShouldContainExactlyTheMovingEntries() {
+        ConsistentHashRingImpl<String, String, String, String> ring =
+                new ConsistentHashRingImpl<>(ConsistentHashRings.DEFAULT_64_BIT_HASH_FUNC,
+                        ConsistentHashRings.DEFAULT_HASHER, ConsistentHashRings.DEFAULT_HASHER);
+        Random r = new Random(3);
+        for (int i = 0; i < 500; i++) {
+            ring.putEntry("e" + i, "entry" + i);
+        }
+
+        long first = r.nextLong();
+        RingOwnershipChange<String, String> initial = ring.getOwnershipChangeForAdd(first, "first");
+        assertTrue(initial.getRange().isFullRing());
+        assertNull(initial.getOldOwner());
+        assertEquals(500, Iterables.size(initial.getEntries()));
+        ring.addNodeByHash(first, "first");
+
+        for (int i = 0; i < 20; i++) {
+            long hash = r.nextLong();
+            String node = "node" + i;
+            RingOwnershipChange<String, String> change = ring.getOwnershipChangeForAdd(hash, node);
+            assertEquals(ring.getNodeForEntry(hash), change.getOldOwner());
+            assertEquals(node, change.getNewOwner());
+            Map<String, String> ownersBefore = ownersOfEntries(ring);
+            ring.addNodeByHash(hash, node);
+            assertEquals(movedEntries(ownersBefore, ownersOfEntries(ring)),
+                    Sets.newHashSet(change.getEntries()));
+        }
+        for (Map.Entry<Long, String> toRemove : Lists.newArrayList(ring.getNodeEntries())) {
+            RingOwnershipChange<String, String> change = ring.getOwnershipChangeForRemove(toRemove.getKey());
+            assertEquals(toRemove.getValue(), change.getOldOwner());
+            Map<String, String> ownersBefore = ownersOfEntries(ring);
+            ring.removeNodeByHash(toRemove.getKey());
+            assertEquals(ring.isWithoutNodes() ? null : ring.getNodeForEntry(toRemove.getKey()),
+                    change.getNewOwner());
+            if (ring.isHavingNodes()) {
+                assertEquals(movedEntries(ownersBefore, ownersOfEntries(ring)),
+                        Sets.newHashSet(change.getEntries()));
+            } else {
+                assertTrue(change.getRange().isFullRing());
+            }
+            assertNull(ring.getOwnershipChangeForRemove(toRemove.getKey()));
+        }
+    }
+
+    @Test
+    public void ownershipChangeShouldBeSameForAllRings() {
+        ConsistentHashRingImpl<String, String, String, String> ring =
+                new ConsistentHashRingImpl<>(ConsistentHashRings.DEFAULT_64_BIT_HASH_FUNC,
+                        ConsistentHashRings.DEFAULT_HASHER, ConsistentHashRings.DEFAULT_HASHER);
+        CopyOnWriteConsistentHashRing<String, String, String, String> cow =
+                new CopyOnWriteConsistentHashRing<>(ConsistentHashRings.DEFAULT_64_BIT_HASH_FUNC,
+                        ConsistentHashRings.DEFAULT_HASHER, ConsistentHashRings.DEFAULT_HASHER);
+        for (long token : new long[]{Long.MIN_VALUE, -5, 10, Long.MAX_VALUE}) {
+            ring.addNodeByHash(token, "n" + token);
+            cow.addNodeByHash(token, "n" + token);
+        }
+        for (int i = 0; i < 100; i++) {
+            ring.putEntry("e" + i, "entry" + i);
+            cow.putEntry("e" + i, "entry" + i);
+        }
+        FrozenConsistentHashRing<String, String, String, String> frozen = ring.freeze();
+        for (long hash : new long[]{Long.MIN_VALUE + 1, -6, 0, 11, Long.MAX_VALUE - 1}) {
+            assertOwnershipChangesEqual(ring.getOwnershipChangeForAdd(hash, "x"),
+                    frozen.getOwnershipChangeForAdd(hash, "x"), false);
+            assertOwnershipChangesEqual(ring.getOwnershipChangeForAdd(hash, "x"),
+                    cow.getOwnershipChangeForAdd(hash, "x"), true);
+        }
+        for (long hash : new long[]{Long.MIN_VALUE, -5, 10, Long.MAX_VALUE}) {
+            assertOwnershipChangesEqual(ring.getOwnershipChangeForRemove(hash),
+                    frozen.getOwnershipChangeForRemove(hash), false);
+            assertOwnershipChangesEqual(ring.getOwnershipChangeForRemove(hash),
+                    cow.getOwnershipChangeForRemove(hash), true);
+        }
+        try {
+            frozen.getOwnershipChangeForAdd(10, "collision");
+            fail();
+        } catch (IllegalArgumentException e) {
+            // ok
+        }
+    }
+
+    private void assertOwnershipChangesEqual(RingOwnershipChange<String, String> expected,
+                                             RingOwnershipChange<String, String> actual, boolean withEntries) {
+        assertEquals(expected.getRange(), actual.getRange());
+        assertEquals(expected.getOldOwner(), actual.getOldOwner());
+        assertEquals(expected.getNewOwner(), actual.getNewOwner());
+        if (withEntries) {
+            assertEquals(Lists.newArrayList(expected.getEntries()), Lists.newArrayList(actual.getEntries()));
+        }
+    }
+
+    private Map<String, String> ownersOfEntries(ConsistentHashRingImpl<String, String, String, String> ring) {
+        Map<String, String> result = new HashMap<>();
+        for (int i = 0; i < 500; i++) {
+            result.put("entry" + i, ring.getNodeForEntry("e" + i));
+        }
+        return result;
+    }
+
+    private Set<String> movedEntries(Map<String, String> before, Map<String, String> after) {
+        Set<String> result = new HashSet<>();
+        for (Map.Entry<String, String> e : before.entrySet()) {
+            if (!Objects.equals(e.getValue(), after.get(e.getKey()))) {
+                result.add(e.getKey());
+            }
+        }
+        return result;
+    }
+
+    @Test
+    public void shouldWorkWithSortedArrayEntryStore() {
+        addAFewEntries(o, 10, 100);
+        ConsistentHashRingImpl<String, String, String, String> arrayBacked =
+                new ConsistentHashRingImpl<>(ConsistentHashRings.DEFAULT_64_BIT_HASH_FUNC,
+                        ConsistentHashRings.DEFAULT_HASHER, ConsistentHashRings.DEFAULT_HASHER,
+                        new SortedArrayRingEntryStore<String, String>(8));
+        for (Map.Entry<String, String> e : nodesAdded.entrySet()) {
+            arrayBacked.addNode(e.getKey(), e.getValue());
+        }
+        for (Map.Entry<String, String> e : entriesAdded.entrySet()) {
+            arrayBacked.putEntry(e.getKey(), e.getValue());
+        }
+        assertEquals(Lists.newArrayList(o.getEntries()), Lists.newArrayList(arrayBacked.getEntries()));
+        for (String n : o.getNodes()) {
+            assertEquals(Lists.newArrayList(o.getEntriesForNode(makeNodeKey(n), true)),
+                    Lists.newArrayList(arrayBacked.getEntriesForNode(makeNodeKey(n), true)));
+        }
+    }
+
+    @Test
+    public void shouldGetNodesForEntriesInCallerOrder() {
+        Random r = new Random(7);
+        for (int i = 0; i < 100; i++) {
+            o.addNodeByHash(r.nextLong(), "node" + i);
+        }
+        for (int batchSize : new int[]{0, 1, 5, 1000}) {
+            long[] hashes = new long[batchSize];
+            for (int i = 0; i < hashes.length; i++) {
+                hashes[i] = i % 10 == 0 ? Long.MAX_VALUE : r.nextLong(); // include duplicates and looping
+            }
+            String[] nodes = new String[batchSize];
+            o.getNodesForEntries(hashes, nodes);
+            for (int i = 0; i < hashes.length; i++) {
+                assertEquals(o.getNodeForEntry(hashes[i]), nodes[i]);
+            }
+        }
+    }
+
     @Test
     public void shouldGetNodeForEntryForLoadedMap() {
         addAFewEntries(o, 10, 100);
@@ -0,0 +1,175 @@
+package de.deverado.framework.concurrent.consistenthashing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class CopyOnWriteConsistentHashRingTest {
+
+    private ConsistentHashRingImpl<String, String, String, String> reference;
+    private CopyOnWriteConsistentHashRing<String, String, String, String> o;
+    private Random random;
+
+    @Before
+    public void setUp() throws Exception {
+        reference = new ConsistentHashRingImpl<>(ConsistentHashRings.DEFAULT_64_BIT_HASH_FUNC,
+                ConsistentHashRings.DEFAULT_HASHER, ConsistentHashRings.DEFAULT_HASHER);
+        o = new CopyOnWriteConsistentHashRing<>(ConsistentHashRings.DEFAULT_64_BIT_HASH_FUNC,
+                ConsistentHashRings.DEFAULT_HASHER, ConsistentHashRings.DEFAULT_HASHER);
+        random = new Random(42);
+    }
+
+    @Test
+    public void shouldBehaveLikeImpl() {
+        assertNull(o.getNodeForEntry("a"));
+        for (int i = 0; i < 30; i++) {
+            reference.addNode("n" + i, "node" + i);
+            o.addNode("n" + i, "node" + i);
+        }
+        assertEquals("node3", reference.removeNode("n3"));
+        assertEquals("node3", o.removeNode("n3"));
+        assertNull(o.removeNode("n3"));
+        for (int i = 0; i < 500; i++) {
+            reference.putEntry("e" + i, "entry" + i);
+            o.putEntry("e" + i, "entry" + i);
+        }
+        assertEquals("entry7", o.removeEntry("e7"));
+        reference.removeEntry("e7");
+        assertEquals("entry8", o.putEntry("e8", "entry8b"));
+        reference.putEntry("e8", "entry8b");
+
+        assertEquals(reference.getNodeCount(), o.getNodeCount());
+        assertEquals(Lists.newArrayList(reference.getNodeEntries()), Lists.newArrayList(o.getNodeEntries()));
+        assertEquals(Lists.newArrayList(reference.getEntries()), Lists.newArrayList(o.getEntries()));
+        for (int i = 0; i < 30; i++) {
+            if (i == 3) {
+                continue;
+            }
+            assertEquals(Lists.newArrayList(reference.getEntriesForNode("n" + i, true)),
+                    Lists.newArrayList(o.getEntriesForNode("n" + i, true)));
+        }
+        for (int i = 0; i < 500; i++) {
+            assertEquals(reference.getEntry("e" + i), o.getEntry("e" + i));
+            assertEquals(reference.getNodeForEntry("e" + i), o.getNodeForEntry("e" + i));
+        }
+        try {
+            o.getEntriesForNode("n3", true);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // ok
+        }
+    }
+
+    @Test
+    public void shouldReturnAllEntriesForSingleNode() {
+        o.addNode("n", "node");
+        o.putEntry("a", "1");
+        o.putEntry("b", "2");
+        assertEquals(Sets.newHashSet("1", "2"), Sets.newHashSet(o.getEntriesForNode("n", true)));
+    }
+
+    @Test
+    public void shouldKeepCollidingEntries() {
+        CopyOnWriteConsistentHashRing<String, String, String, String> colliding =
+                new CopyOnWriteConsistentHashRing<>(null, ConsistentHashRings.DEFAULT_HASHER,
+                        new ConsistentHashRings.RingHasher<String>() {
+                            @Override
+                            public long hash(com.google.common.hash.Hasher h, String key) {
+                                return 1;
+                            }
+                        });
+        colliding.putEntry("a", "1");
+        colliding.putEntry("b", "2");
+        assertEquals("1", colliding.getEntry("a"));
+        assertEquals("2", colliding.getEntry("b"));
+        assertEquals("1", colliding.removeEntry("a"));
+        assertNull(colliding.getEntry("a"));
+        assertEquals("2", colliding.getEntry("b"));
+    }
+
+    @Test
+    public void batchShouldPublishAllOrNothing() {
+        o.edit().addNodeByHash(1, "one").addNodeByHash(2, "two").commit();
+        FrozenConsistentHashRing<String, String, String, String> before = o.getSnapshot();
+        try {
+            o.edit().addNodeByHash(3, "three").addNodeByHash(2, "collision").commit();
+            fail();
+        } catch (IllegalArgumentException e) {
+            // ok
+        }
+        assertSame(before, o.getSnapshot());
+
+        List<String> removed = o.edit().removeNodeByHash(1).addNodeByHash(1, "newOne").removeNodeByHash(5).commit();
+        assertEquals(Lists.newArrayList("one"), removed);
+        assertEquals("newOne", o.getNodeForEntry(0L));
+        assertEquals(2, before.getNodeCount()); // old snapshot unchanged
+        assertEquals("one", before.getNodeForEntry(0L));
+    }
+
+    @Test
+    public void readersShouldAlwaysSeeCompleteSnapshots() throws Exception {
+        final int nodeCount = 1000;
+        CopyOnWriteConsistentHashRing<String, String, String, String>.Batch initial = o.edit();
+        final long[] tokens = new long[nodeCount];
+        for (int i = 0; i < nodeCount; i++) {
+            tokens[i] = random.nextLong();
+            initial.addNodeByHash(tokens[i], "node" + i);
+        }
+        initial.commit();
+
+        final AtomicBoolean stop = new AtomicBoolean();
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final CountDownLatch started = new CountDownLatch(2);
+        List<Thread> readers = new ArrayList<>();
+        for (int r = 0; r < 2; r++) {
+            final long seed = r;
+            Thread reader = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Random readerRandom = new Random(seed);
+                    started.countDown();
+                    try {
+                        while (!stop.get()) {
+                            // the ring always has nodeCount or nodeCount + 1 nodes
+                            assertNotNull(o.getNodeForEntry(readerRandom.nextLong()));
+                            int count = o.getSnapshot().getNodeCount();
+                            assertTrue("count " + count, count == nodeCount || count == nodeCount + 1);
+                        }
+                    } catch (Throwable t) {
+                        failure.set(t);
+                    }
+                }
+            });
+            reader.start();
+            readers.add(reader);
+        }
+        started.await();
+        for (int i = 0; i < 200; i++) {
+            long extra = random.nextLong();
+            o.addNodeByHash(extra, "extra");
+            assertEquals("extra", o.removeNodeByHash(extra));
+        }
+        stop.set(true);
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+    }
+}
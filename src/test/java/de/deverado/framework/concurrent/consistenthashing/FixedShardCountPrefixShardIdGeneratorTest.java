@@ -0,0 +1,36 @@
+package de.deverado.framework.concurrent.consistenthashing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.collect.Lists;
+import de.deverado.framework.concurrent.Sharding;
+import org.junit.Test;
+
+import java.util.List;
+
+public class FixedShardCountPrefixShardIdGeneratorTest {
+
+    @Test
+    public void shouldGenerateIds() {
+        assertEquals(Lists.newArrayList("shard-0", "shard-1", "shard-2"),
+                FixedShardCountPrefixShardIdGenerator.create("shard", 3).asList());
+        assertEquals(Lists.newArrayList("shard-0"), FixedShardCountPrefixShardIdGenerator.create("shard-", 1).asList());
+    }
+
+    @Test
+    public void shouldMapKeysToGeneratedIds() {
+        FixedShardCountPrefixShardIdGenerator generator = FixedShardCountPrefixShardIdGenerator.create("s", 7);
+        List<String> ids = generator.asList();
+        for (int i = 0; i < 100; i++) {
+            String shardId = generator.getShardIdForKey("key" + i);
+            assertTrue(shardId, ids.contains(shardId));
+            assertEquals(shardId, generator.getShardIdForKey("key" + i));
+        }
+
+        FixedShardCountPrefixShardIdGenerator byModulo = FixedShardCountPrefixShardIdGenerator.create("s",
+                new Sharding.ShardByArbitraryStrategy(16));
+        assertEquals(16, byModulo.getShardCount());
+        assertEquals("s-" + new Sharding.ShardByArbitraryStrategy(16).shard("key"), byModulo.getShardIdForKey("key"));
+    }
+}
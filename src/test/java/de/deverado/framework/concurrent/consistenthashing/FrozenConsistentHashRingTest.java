@@ -0,0 +1,266 @@
+package de.deverado.framework.concurrent.consistenthashing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.common.collect.Lists;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Random;
+
+public class FrozenConsistentHashRingTest {
+
+    private ConsistentHashRingImpl<String, String, String, String> source;
+    private Random random;
+
+    @Before
+    public void setUp() throws Exception {
+        source = new ConsistentHashRingImpl<>(ConsistentHashRings.DEFAULT_64_BIT_HASH_FUNC,
+                ConsistentHashRings.DEFAULT_HASHER, ConsistentHashRings.DEFAULT_HASHER);
+        random = new Random(42);
+    }
+
+    @Test
+    public void shouldBehaveLikeSourceForEmptyRing() {
+        FrozenConsistentHashRing<String, String, String, String> frozen = source.freeze();
+        assertTrue(frozen.isWithoutNodes());
+        assertNull(frozen.getNodeForEntry(123L));
+        assertNull(frozen.getNodeAfterNode(123L));
+        assertNull(frozen.getNodeBeforeNode(123L));
+    }
+
+    @Test
+    public void shouldBehaveLikeSourceForSingleNode() {
+        source.addNodeByHash(5L, "five");
+        compareWithSource(source.freeze(), new long[]{Long.MIN_VALUE, 4, 5, 6, Long.MAX_VALUE});
+    }
+
+    @Test
+    public void shouldBehaveLikeSourceForEdgeTokens() {
+        source.addNodeByHash(Long.MIN_VALUE, "min");
+        source.addNodeByHash(0L, "zero");
+        source.addNodeByHash(Long.MAX_VALUE, "max");
+        compareWithSource(source.freeze(), new long[]{Long.MIN_VALUE, Long.MIN_VALUE + 1, -1, 0, 1,
+                Long.MAX_VALUE - 1, Long.MAX_VALUE});
+    }
+
+    @Test
+    public void shouldBehaveLikeSourceForRandomRing() {
+        for (int i = 0; i < 1000; i++) {
+            source.addNodeByHash(random.nextLong(), "node" + i);
+        }
+        FrozenConsistentHashRing<String, String, String, String> frozen = source.freeze();
+        assertEquals(source.getNodeCount(), frozen.getNodeCount());
+        assertEquals(Lists.newArrayList(source.getNodes()), Lists.newArrayList(frozen.getNodes()));
+        assertEquals(Lists.newArrayList(source.getNodeEntries()), Lists.newArrayList(frozen.getNodeEntries()));
+
+        long[] hashes = new long[10000];
+        for (int i = 0; i < hashes.length; i++) {
+            hashes[i] = random.nextLong();
+        }
+        compareWithSource(frozen, hashes);
+        for (int i = 0; i < frozen.getTokenCount(); i++) {
+            long token = frozen.getToken(i);
+            compareWithSource(frozen, new long[]{token - 1, token, token + 1});
+        }
+    }
+
+    @Test
+    public void lookupIndexShouldBehaveLikeSource() {
+        for (int i = 0; i < 1000; i++) {
+            source.addNodeByHash(random.nextLong(), "node" + i);
+        }
+        long[] hashes = new long[10000];
+        for (int i = 0; i < hashes.length; i++) {
+            hashes[i] = random.nextLong();
+        }
+        for (int bits : new int[]{1, 4, FrozenConsistentHashRing.suggestLookupIndexBits(1000), 16}) {
+            FrozenConsistentHashRing<String, String, String, String> frozen = source.freeze(bits);
+            assertEquals(bits, frozen.getLookupIndexBits());
+            compareWithSource(frozen, hashes);
+            for (int i = 0; i < frozen.getTokenCount(); i++) {
+                long token = frozen.getToken(i);
+                compareWithSource(frozen, new long[]{token - 1, token, token + 1});
+            }
+        }
+    }
+
+    @Test
+    public void lookupIndexShouldHandleEdgesAndClusters() {
+        FrozenConsistentHashRing<String, String, String, String> empty = source.freeze(8);
+        assertNull(empty.getNodeForEntry(123L));
+
+        source.addNodeByHash(Long.MIN_VALUE, "min");
+        source.addNodeByHash(Long.MAX_VALUE, "max");
+        for (int i = 0; i < 50; i++) {
+            source.addNodeByHash(1000L + i * 3, "cluster" + i); // all in one bucket, forces binary search
+        }
+        long[] hashes = {Long.MIN_VALUE, Long.MIN_VALUE + 1, -1, 0, 999, 1000, 1001, 1147, 1148, 1149,
+                Long.MAX_VALUE - 1, Long.MAX_VALUE};
+        for (int bits = 1; bits <= 12; bits++) {
+            compareWithSource(source.freeze(bits), hashes);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void lookupIndexShouldRejectTooManyBits() {
+        source.freeze(FrozenConsistentHashRing.MAX_LOOKUP_INDEX_BITS + 1);
+    }
+
+    @Test
+    public void shouldSuggestAboutOneTokenPerBucket() {
+        assertEquals(1, FrozenConsistentHashRing.suggestLookupIndexBits(0));
+        assertEquals(1, FrozenConsistentHashRing.suggestLookupIndexBits(2));
+        assertEquals(10, FrozenConsistentHashRing.suggestLookupIndexBits(1024));
+        assertEquals(11, FrozenConsistentHashRing.suggestLookupIndexBits(1025));
+        assertEquals(FrozenConsistentHashRing.MAX_LOOKUP_INDEX_BITS,
+                FrozenConsistentHashRing.suggestLookupIndexBits(Integer.MAX_VALUE));
+    }
+
+    @Test
+    public void shouldHashAndCheckNodeForEntryLikeSource() {
+        for (int i = 0; i < 20; i++) {
+            source.addNode("n" + i, "node" + i);
+        }
+        FrozenConsistentHashRing<String, String, String, String> frozen = source.freeze();
+        for (int i = 0; i < 20; i++) {
+            assertTrue(frozen.isHavingNode("n" + i));
+            assertEquals("node" + i, frozen.getNode("n" + i));
+            assertEquals(source.getNodeAfterNode("n" + i), frozen.getNodeAfterNode("n" + i));
+        }
+        for (int i = 0; i < 200; i++) {
+            String entryKey = "e" + i;
+            assertEquals(source.getNodeForEntry(entryKey), frozen.getNodeForEntry(entryKey));
+            for (int n = 0; n < 20; n++) {
+                assertEquals(source.isNodeForEntry("n" + n, entryKey, true),
+                        frozen.isNodeForEntry("n" + n, entryKey, true));
+            }
+        }
+    }
+
+    @Test
+    public void shouldBeReadOnly() {
+        source.addNodeByHash(5L, "five");
+        FrozenConsistentHashRing<String, String, String, String> frozen = source.freeze();
+        try {
+            frozen.addNodeByHash(6L, "six");
+            fail();
+        } catch (UnsupportedOperationException e) {
+            // ok
+        }
+        try {
+            frozen.removeNodeByHash(5L);
+            fail();
+        } catch (UnsupportedOperationException e) {
+            // ok
+        }
+        try {
+            frozen.putEntry("a", "b");
+            fail();
+        } catch (UnsupportedOperationException e) {
+            // ok
+        }
+        assertSame(frozen, ConsistentHashRings.freeze(frozen));
+    }
+
+    @Test
+    public void buildersShouldEmitFrozenRing() {
+        VNodeConsistentHashRing ring = new VNodeConsistentHashRingBuilder()
+                .addMachine("1", MachineInRingState.INTEGRATED, 1, 100)
+                .addMachine("2", MachineInRingState.INTEGRATED, 50, 150)
+                .addMachine("3", MachineInRingState.LEAVING, 75)
+                .setReplicaCount(2).build();
+        VNodeConsistentHashRing frozen = new VNodeConsistentHashRingBuilder()
+                .addMachine("1", MachineInRingState.INTEGRATED, 1, 100)
+                .addMachine("2", MachineInRingState.INTEGRATED, 50, 150)
+                .addMachine("3", MachineInRingState.LEAVING, 75)
+                .setReplicaCount(2).setFreezeRing(true).build();
+        VNodeConsistentHashRing frozenByMachineOrder = new VNodeConsistentHashRingWithReplicasByMachineOrderBuilder()
+                .addMachine("1", MachineInRingState.INTEGRATED, 1, 100)
+                .addMachine("2", MachineInRingState.INTEGRATED, 50, 150)
+                .addMachine("3", MachineInRingState.LEAVING, 75)
+                .setReplicaCount(2).setFreezeRing(true).build();
+        VNodeConsistentHashRing indexed = new VNodeConsistentHashRingBuilder()
+                .addMachine("1", MachineInRingState.INTEGRATED, 1, 100)
+                .addMachine("2", MachineInRingState.INTEGRATED, 50, 150)
+                .addMachine("3", MachineInRingState.LEAVING, 75)
+                .setReplicaCount(2).setLookupIndexBits(-1).build();
+
+        for (long hash = -10; hash < 200; hash++) {
+            assertEquals(ring.getNodeForHash(hash), frozen.getNodeForHash(hash));
+            assertEquals(ring.getReadReplicasForHash(hash), frozen.getReadReplicasForHash(hash));
+            assertEquals(ring.getWriteReplicasForHash(hash), frozen.getWriteReplicasForHash(hash));
+            assertFalse(frozenByMachineOrder.getReadReplicasForHash(hash).isEmpty());
+            assertEquals(ring.getNodeForHash(hash), indexed.getNodeForHash(hash));
+        }
+    }
+
+    @Test
+    public void routingShouldNotAllocate() {
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        if (!(threadBean instanceof com.sun.management.ThreadMXBean)) {
+            return; // can't measure on this JVM
+        }
+        com.sun.management.ThreadMXBean allocBean = (com.sun.management.ThreadMXBean) threadBean;
+        if (!allocBean.isThreadAllocatedMemorySupported() || !allocBean.isThreadAllocatedMemoryEnabled()) {
+            return;
+        }
+
+        VNodeConsistentHashRingBuilder builder = new VNodeConsistentHashRingBuilder().setLookupIndexBits(-1);
+        for (int m = 0; m < 20; m++) {
+            builder.addMachine("m" + m, MachineInRingState.INTEGRATED,
+                    ConsistentHashRings.createRandomVnodes(random, "m" + m, 64));
+        }
+        VNodeConsistentHashRing ring = builder.build();
+
+        long[] hashes = new long[4096];
+        for (int i = 0; i < hashes.length; i++) {
+            hashes[i] = random.nextLong(); // mostly outside of the Long cache
+        }
+        int lookups = 1000000;
+        long sum = routeAll(ring, hashes, lookups); // warm up
+
+        long threadId = Thread.currentThread().getId();
+        long allocated = Long.MAX_VALUE;
+        for (int round = 0; round < 3 && allocated >= lookups; round++) { // JIT might still be compiling
+            long before = allocBean.getThreadAllocatedBytes(threadId);
+            sum += routeAll(ring, hashes, lookups);
+            allocated = Math.min(allocated, allocBean.getThreadAllocatedBytes(threadId) - before);
+        }
+
+        assertTrue("sum: " + sum, sum != 0);
+        // measuring itself can allocate a little, but not a byte per lookup:
+        assertTrue("Allocated " + allocated + " bytes for " + lookups + " lookups", allocated < lookups);
+    }
+
+    private long routeAll(VNodeConsistentHashRing ring, long[] hashes, int lookups) {
+        long sum = 0;
+        for (int i = 0; i < lookups; i++) {
+            VNodeImpl node = ring.getNodeForHash(hashes[i & (hashes.length - 1)]);
+            sum += node.getReadReplicas().size() + node.getWriteReplicas().size();
+        }
+        return sum;
+    }
+
+    private void compareWithSource(FrozenConsistentHashRing<String, String, String, String> frozen, long[] hashes) {
+        for (long hash : hashes) {
+            assertEquals("for " + hash, source.getNodeForEntry(hash), frozen.getNodeForEntry(hash));
+            assertEquals("after " + hash, source.getNodeAfterNode(hash), frozen.getNodeAfterNode(hash));
+            assertEquals("before " + hash, source.getNodeBeforeNode(hash), frozen.getNodeBeforeNode(hash));
+            assertEquals(source.isHavingNode(hash), frozen.isHavingNode(hash));
+            assertEquals(source.getNodeByHash(hash), frozen.getNodeByHash(hash));
+        }
+        String[] nodes = new String[hashes.length];
+        frozen.getNodesForEntries(hashes, nodes);
+        for (int i = 0; i < hashes.length; i++) {
+            assertEquals(source.getNodeForEntry(hashes[i]), nodes[i]);
+        }
+    }
+}
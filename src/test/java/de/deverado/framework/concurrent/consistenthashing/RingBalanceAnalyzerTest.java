@@ -0,0 +1,119 @@
+package de.deverado.framework.concurrent.consistenthashing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+public class RingBalanceAnalyzerTest {
+
+    private static final double DELTA = 1e-9;
+
+    @Test
+    public void shouldComputeFractionsOfHashSpace() throws Exception {
+        VNodeConsistentHashRing ring = new VNodeConsistentHashRingBuilder().setReplicaCount(2)
+                .addMachine("a", MachineInRingState.INTEGRATED, 0L)
+                .addMachine("b", MachineInRingState.INTEGRATED, Long.MIN_VALUE / 2)
+                .addMachine("c", MachineInRingState.INTEGRATED, Long.MIN_VALUE)
+                .build();
+
+        RingBalance balance = RingBalanceAnalyzer.analyze(ring);
+
+        int a = ring.getMachineOrdinal("a");
+        int b = ring.getMachineOrdinal("b");
+        int c = ring.getMachineOrdinal("c");
+        assertEquals(0.25, balance.getOwnedFraction(a), DELTA);
+        assertEquals(0.25, balance.getOwnedFraction(b), DELTA);
+        assertEquals(0.5, balance.getOwnedFraction(c), DELTA); // wraps around from a
+
+        // second replica of a node is the leader of the one before it
+        assertEquals(0.5, balance.getReplicaFraction(a, 1), DELTA);
+        assertEquals(0.25, balance.getReplicaFraction(b, 1), DELTA);
+        assertEquals(0.25, balance.getReplicaFraction(c, 1), DELTA);
+        assertEquals(0.75, balance.getReplicatedFraction(a), DELTA);
+        assertEquals(0, balance.getReplicaFraction(a, 2), DELTA);
+
+        RingBalance.Statistics owned = balance.getOwnedStatistics();
+        assertEquals(3, owned.getMachineCount());
+        assertEquals(1.0 / 3, owned.getMean(), DELTA);
+        assertEquals(0.5, owned.getMax(), DELTA);
+        assertEquals("c", owned.getMaxMachine().getMachineId());
+        assertEquals(1.5, owned.getImbalance(), DELTA);
+        assertEquals(Math.sqrt((1.0 / 36 + 1.0 / 144 + 1.0 / 144) / 3), owned.getStandardDeviation(), DELTA);
+    }
+
+    @Test
+    public void shouldGiveWholeSpaceToSingleNode() throws Exception {
+        VNodeConsistentHashRing ring = new VNodeConsistentHashRingBuilder()
+                .addMachine("a", MachineInRingState.INTEGRATED, 42L)
+                .addMachine("b", MachineInRingState.BOOTSTRAPPING, 7L)
+                .build();
+
+        RingBalance balance = RingBalanceAnalyzer.analyze(ring);
+
+        assertEquals(1.0, balance.getOwnedFraction(ring.getMachineOrdinal("a")), DELTA);
+        assertEquals(0, balance.getOwnedFraction(ring.getMachineOrdinal("b")), DELTA);
+        assertEquals(1, balance.getOwnedStatistics().getMachineCount());
+        assertEquals(1.0, balance.getOwnedStatistics().getImbalance(), DELTA);
+    }
+
+    @Test
+    public void shouldAnalyzeEmptyRing() throws Exception {
+        RingBalance balance = RingBalanceAnalyzer.analyze(new VNodeConsistentHashRingBuilder()
+                .addMachine("a", MachineInRingState.BOOTSTRAPPING, 7L).build());
+        assertEquals(0, balance.getOwnedFraction(0), DELTA);
+        assertEquals(0, balance.getOwnedStatistics().getMachineCount());
+        assertNull(balance.getOwnedStatistics().getMaxMachine());
+        assertEquals(0, balance.getOwnedStatistics().getImbalance(), DELTA);
+    }
+
+    @Test
+    public void shouldSumUpToWholeSpaceAndAnalyzeWhatIfs() throws Exception {
+        Random rand = new Random(42);
+        VNodeConsistentHashRingBuilder builder = new VNodeConsistentHashRingBuilder().setReplicaCount(3)
+                .setKeepBuildState(true);
+        for (int i = 0; i < 20; i++) {
+            builder.addMachine("m" + i, MachineInRingState.INTEGRATED, randomVNodes(rand, 32));
+        }
+        VNodeConsistentHashRing ring = builder.build();
+
+        RingBalance balance = RingBalanceAnalyzer.analyze(ring);
+        double ownedSum = 0;
+        double replicatedSum = 0;
+        for (int i = 0; i < ring.getMachines().size(); i++) {
+            ownedSum += balance.getOwnedFraction(i);
+            replicatedSum += balance.getReplicatedFraction(i);
+        }
+        assertEquals(1.0, ownedSum, DELTA);
+        assertEquals(3.0, replicatedSum, DELTA);
+        assertTrue(balance.getOwnedStatistics().getImbalance() > 1.0);
+
+        long[] added = randomVNodes(rand, 32);
+        RingBalance withAdded = RingBalanceAnalyzer.analyzeWithMachineAdded(ring, "new",
+                MachineInRingState.INTEGRATED, added);
+        RingBalance expected = RingBalanceAnalyzer.analyze(builder.addMachine("new", MachineInRingState.INTEGRATED,
+                added).build());
+        assertEquals(21, withAdded.getOwnedStatistics().getMachineCount());
+        assertEquals(expected.getOwnedStatistics().getStandardDeviation(),
+                withAdded.getOwnedStatistics().getStandardDeviation(), DELTA);
+        assertEquals(expected.getReplicatedStatistics().getMax(), withAdded.getReplicatedStatistics().getMax(),
+                DELTA);
+
+        RingBalance withRemoved = RingBalanceAnalyzer.analyzeWithMachineRemoved(ring, "m3");
+        assertEquals(19, withRemoved.getOwnedStatistics().getMachineCount());
+        assertEquals(1.0 / 19, withRemoved.getOwnedStatistics().getMean(), DELTA);
+        // the analyzed ring is unchanged
+        assertEquals(balance.getOwnedFraction(3), RingBalanceAnalyzer.analyze(ring).getOwnedFraction(3), DELTA);
+    }
+
+    private static long[] randomVNodes(Random rand, int count) {
+        long[] result = new long[count];
+        for (int i = 0; i < count; i++) {
+            result[i] = rand.nextLong();
+        }
+        return result;
+    }
+}
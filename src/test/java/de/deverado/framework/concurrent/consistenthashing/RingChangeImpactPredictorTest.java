@@ -0,0 +1,117 @@
+package de.deverado.framework.concurrent.consistenthashing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+public class RingChangeImpactPredictorTest {
+
+    private VNodeConsistentHashRing ring;
+
+    private FixedShardCountPrefixShardIdGenerator shardIds;
+
+    private RingChangeImpactPredictor cut;
+
+    @Before
+    public void setUp() throws Exception {
+        Random rand = new Random(11);
+        VNodeConsistentHashRingBuilder builder = new VNodeConsistentHashRingBuilder().setReplicaCount(3)
+                .setKeepBuildState(true);
+        for (int i = 0; i < 10; i++) {
+            builder.addMachine("m" + i, MachineInRingState.INTEGRATED, randomTokens(rand, 16));
+        }
+        ring = builder.build();
+        shardIds = FixedShardCountPrefixShardIdGenerator.create("shard", 512);
+        cut = RingChangeImpactPredictor.create(ring).setShardIds(shardIds);
+    }
+
+    @Test
+    public void shouldPredictAddingBootstrappingMachine() throws Exception {
+        RingChangeImpact impact = cut.predict(cut.newPlan()
+                .addMachine("new", MachineInRingState.BOOTSTRAPPING, randomTokens(new Random(12), 16)));
+
+        // a bootstrapping machine gets writes for about a replica count share of a machine's data
+        double gained = impact.getGainedFraction("new");
+        assertTrue("" + gained, gained > 0.1 && gained < 0.6);
+        assertEquals(0, impact.getLostFraction("new"), 0);
+        assertEquals(gained, impact.getTotalGainedFraction(), 1e-9);
+        assertEquals(expectedChangedShards(impact.getCandidateRing()), impact.getChangedShardIds());
+        assertTrue(impact.getChangedShardIds().size() > 0);
+        assertEquals("ring unchanged", 10, ring.getMachines().size());
+    }
+
+    @Test
+    public void shouldPredictMachineLeaving() throws Exception {
+        RingChangeImpact impact = cut.predict(cut.newPlanWithState("m3", MachineInRingState.LEAVING));
+
+        assertEquals(expectedChangedShards(impact.getCandidateRing()), impact.getChangedShardIds());
+        assertTrue(impact.getTotalGainedFraction() > 0);
+        assertTrue(impact.getAffectedMachineIds().size() > 1);
+    }
+
+    @Test
+    public void shouldPredictMachineRemoval() throws Exception {
+        RingChangeImpact impact = cut.predict(cut.newPlan().removeMachine("m5"));
+
+        RingBalance balance = RingBalanceAnalyzer.analyze(ring);
+        double replicated = balance.getReplicatedFraction(ring.getMachineOrdinal("m5"));
+        assertEquals(replicated, impact.getLostFraction("m5"), 1e-9);
+        assertEquals("lost replicas are taken over by others", replicated, impact.getTotalGainedFraction(), 1e-9);
+        assertEquals(expectedChangedShards(impact.getCandidateRing()), impact.getChangedShardIds());
+    }
+
+    @Test
+    public void shouldPredictNothingForUnchangedPlan() throws Exception {
+        RingChangeImpact impact = cut.predict(cut.newPlan());
+
+        assertEquals(0, impact.getAffectedMachineIds().size());
+        assertEquals(0, impact.getChangedShardIds().size());
+        assertEquals(0, impact.getTotalGainedFraction(), 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectUnknownMachineForStateChange() {
+        cut.newPlanWithState("unknown", MachineInRingState.LEAVING);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectRingWithoutBuildState() {
+        RingChangeImpactPredictor.create(new VNodeConsistentHashRingBuilder()
+                .addMachine("a", MachineInRingState.INTEGRATED, 1L).build());
+    }
+
+    private List<String> expectedChangedShards(VNodeConsistentHashRing candidate) {
+        List<String> result = new ArrayList<>();
+        for (String shardId : shardIds) {
+            VNodeImpl before = ring.getNode(shardId);
+            VNodeImpl after = candidate.getNode(shardId);
+            if (!ids(before.getReadReplicas()).equals(ids(after.getReadReplicas()))
+                    || !ids(before.getWriteReplicas()).equals(ids(after.getWriteReplicas()))) {
+                result.add(shardId);
+            }
+        }
+        return result;
+    }
+
+    private static List<String> ids(List<Machine> machines) {
+        List<String> result = new ArrayList<>();
+        for (Machine m : machines) {
+            result.add(m.getMachineId());
+        }
+        return result;
+    }
+
+    private static long[] randomTokens(Random rand, int count) {
+        long[] result = new long[count];
+        for (int i = 0; i < count; i++) {
+            result[i] = rand.nextLong();
+        }
+        return result;
+    }
+}
@@ -0,0 +1,92 @@
+package de.deverado.framework.concurrent.consistenthashing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import com.google.common.collect.HashMultiset;
+import com.google.common.collect.Lists;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.Random;
+
+public class SortedArrayRingEntryStoreTest {
+
+    private TreeMapRingEntryStore<String, String> reference;
+    private SortedArrayRingEntryStore<String, String> o;
+    private Random random;
+
+    @Before
+    public void setUp() throws Exception {
+        reference = new TreeMapRingEntryStore<>();
+        o = new SortedArrayRingEntryStore<>(4); // small chunks to exercise splitting
+        random = new Random(42);
+    }
+
+    @Test
+    public void shouldBehaveLikeTreeMapStore() {
+        long[] hashes = new long[300];
+        for (int i = 0; i < hashes.length; i++) {
+            // few distinct values for many collisions, edges included
+            hashes[i] = i % 3 == 0 ? random.nextLong() : (random.nextInt(20) - 10) * (Long.MAX_VALUE / 10);
+        }
+        for (int round = 0; round < 5000; round++) {
+            int i = random.nextInt(hashes.length);
+            String key = "k" + i;
+            if (random.nextInt(3) == 0) {
+                assertEquals(reference.remove(hashes[i], key), o.remove(hashes[i], key));
+            } else {
+                String entry = "e" + round;
+                assertEquals(reference.put(hashes[i], key, entry), o.put(hashes[i], key, entry));
+            }
+            assertEquals(reference.size(), o.size());
+        }
+        for (int i = 0; i < hashes.length; i++) {
+            assertEquals(reference.get(hashes[i], "k" + i), o.get(hashes[i], "k" + i));
+        }
+        assertNull(o.get(hashes[0], "unknown"));
+
+        // order of colliding entries is not defined, so compare as multisets
+        assertEquals(HashMultiset.create(reference.getEntries()), HashMultiset.create(o.getEntries()));
+        long[] bounds = {Long.MIN_VALUE, -Long.MAX_VALUE / 10, 0, Long.MAX_VALUE / 10 * 3, Long.MAX_VALUE};
+        for (long from : bounds) {
+            for (long to : bounds) {
+                assertEquals("(" + from + ", " + to + "]",
+                        HashMultiset.create(reference.getEntriesInRange(from, to)),
+                        HashMultiset.create(o.getEntriesInRange(from, to)));
+            }
+        }
+    }
+
+    @Test
+    public void shouldIterateInHashOrder() {
+        for (int i = 0; i < 100; i++) {
+            long hash = random.nextLong();
+            reference.put(hash, "k" + i, "e" + i);
+            o.put(hash, "k" + i, "e" + i);
+        }
+        assertEquals(Lists.newArrayList(reference.getEntries()), Lists.newArrayList(o.getEntries()));
+        assertEquals(Lists.newArrayList(reference.getEntriesInRange(0, -1)),
+                Lists.newArrayList(o.getEntriesInRange(0, -1)));
+        assertEquals(Lists.newArrayList(reference.getEntriesInRange(Long.MAX_VALUE, Long.MAX_VALUE)),
+                Lists.newArrayList(o.getEntriesInRange(Long.MAX_VALUE, Long.MAX_VALUE)));
+    }
+
+    @Test
+    public void shouldFailIterationAfterModification() {
+        o.put(1, "a", "1");
+        o.put(2, "b", "2");
+        Iterator<String> iterator = o.getEntries().iterator();
+        iterator.next();
+        o.put(3, "c", "3");
+        try {
+            iterator.next();
+            fail();
+        } catch (ConcurrentModificationException e) {
+            // ok
+        }
+    }
+}
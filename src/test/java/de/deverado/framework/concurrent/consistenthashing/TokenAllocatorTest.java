@@ -0,0 +1,128 @@
+package de.deverado.framework.concurrent.consistenthashing;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+public class TokenAllocatorTest {
+
+    private static final double DELTA = 1e-9;
+
+    @Test
+    public void shouldBeDeterministicForSeed() throws Exception {
+        long[] first = createAllocator(10).allocate("new", 1.0, 32, 7L);
+        long[] second = createAllocator(10).allocate("new", 1.0, 32, 7L);
+        assertArrayEquals(first, second);
+        assertEquals(32, first.length);
+    }
+
+    @Test
+    public void shouldModelReplicasLikeBuilder() throws Exception {
+        Random rand = new Random(42);
+        for (int replicaCount = 1; replicaCount <= 4; replicaCount++) {
+            TokenAllocator allocator = TokenAllocator.create(replicaCount).setMaxCandidates(50);
+            VNodeConsistentHashRingBuilder builder = new VNodeConsistentHashRingBuilder()
+                    .setReplicaCount(replicaCount);
+            for (int i = 0; i < 12; i++) {
+                String id = "m" + i;
+                builder.addMachine(id, MachineInRingState.INTEGRATED,
+                        allocator.allocate(id, 1 + rand.nextInt(3), 1 + rand.nextInt(16), rand.nextLong()));
+            }
+            VNodeConsistentHashRing ring = builder.build();
+
+            RingBalance balance = RingBalanceAnalyzer.analyze(ring);
+            for (Machine m : ring.getMachines()) {
+                assertEquals(balance.getReplicatedFraction(m.getIdxInAllMachineList()),
+                        allocator.getReplicatedOwnership(m.getMachineId()), 1e-6);
+            }
+        }
+    }
+
+    @Test
+    public void shouldBalanceBetterThanRandomTokens() throws Exception {
+        Random rand = new Random(43);
+        TokenAllocator allocator = TokenAllocator.create(3);
+        VNodeConsistentHashRingBuilder allocated = new VNodeConsistentHashRingBuilder().setReplicaCount(3);
+        VNodeConsistentHashRingBuilder random = new VNodeConsistentHashRingBuilder().setReplicaCount(3);
+        for (int i = 0; i < 30; i++) {
+            String id = "m" + i;
+            allocated.addMachine(id, MachineInRingState.INTEGRATED, allocator.allocate(id, 1.0, 32, i));
+            random.addMachine(id, MachineInRingState.INTEGRATED,
+                    ConsistentHashRings.createRandomVnodes(rand, id, 32));
+        }
+
+        double allocatedDeviation = RingBalanceAnalyzer.analyze(allocated.build()).getReplicatedStatistics()
+                .getStandardDeviation();
+        double randomDeviation = RingBalanceAnalyzer.analyze(random.build()).getReplicatedStatistics()
+                .getStandardDeviation();
+        assertTrue("allocated: " + allocatedDeviation + " random: " + randomDeviation,
+                allocatedDeviation < randomDeviation / 2);
+        assertTrue(allocator.getRelativeStandardDeviation() < 0.05);
+    }
+
+    @Test
+    public void shouldGiveHeavierMachinesMoreOwnership() throws Exception {
+        TokenAllocator allocator = createAllocator(20);
+        allocator.allocate("big", 2.0, 64, 1L);
+        allocator.allocate("small", 1.0, 64, 2L);
+
+        double ratio = allocator.getReplicatedOwnership("big") / allocator.getReplicatedOwnership("small");
+        assertTrue("ratio: " + ratio, ratio > 1.6 && ratio < 2.4);
+    }
+
+    @Test
+    public void shouldStartFromExistingRing() throws Exception {
+        Random rand = new Random(44);
+        VNodeConsistentHashRingBuilder builder = new VNodeConsistentHashRingBuilder().setReplicaCount(2);
+        for (int i = 0; i < 8; i++) {
+            builder.addMachine("m" + i, MachineInRingState.INTEGRATED,
+                    ConsistentHashRings.createRandomVnodes(rand, "m" + i, 16));
+        }
+        builder.addMachine("leaving", MachineInRingState.LEAVING,
+                ConsistentHashRings.createRandomVnodes(rand, "leaving", 16));
+        VNodeConsistentHashRing ring = builder.build();
+
+        TokenAllocator allocator = TokenAllocator.create(ring, 2);
+        assertEquals(0, allocator.getReplicatedOwnership("leaving"), DELTA);
+
+        long[] tokens = allocator.allocate("new", 1.0, 16, 3L);
+        VNodeConsistentHashRing next = builder.removeMachine("leaving")
+                .addMachine("new", MachineInRingState.INTEGRATED, tokens).build();
+        RingBalance balance = RingBalanceAnalyzer.analyze(next);
+        assertEquals(balance.getReplicatedFraction(next.getMachineOrdinal("new")),
+                allocator.getReplicatedOwnership("new"), 1e-6);
+    }
+
+    @Test
+    public void shouldSplitEvenlyForSingleMachine() throws Exception {
+        long[] tokens = TokenAllocator.create(3).allocate("only", 1.0, 4, 5L);
+        for (int i = 1; i < tokens.length; i++) {
+            assertEquals(0.25, RingBalanceAnalyzer.hashSpaceFraction(tokens[i - 1], tokens[i]), 1e-6);
+        }
+    }
+
+    @Test
+    public void shouldRejectKnownMachines() throws Exception {
+        TokenAllocator allocator = createAllocator(2);
+        try {
+            allocator.allocate("m0", 1.0, 4, 1L);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    private static TokenAllocator createAllocator(int machineCount) {
+        Random rand = new Random(machineCount);
+        TokenAllocator result = TokenAllocator.create(3);
+        for (int i = 0; i < machineCount; i++) {
+            result.addMachine("m" + i, 1.0, ConsistentHashRings.createRandomVnodes(rand, "m" + i, 16));
+        }
+        return result;
+    }
+}
@@ -0,0 +1,74 @@
+package de.deverado.framework.concurrent.consistenthashing;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeNotNull;
+
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Random;
+
+/**
+ * Scaling benchmark of {@link VNodeConsistentHashRingBuilder#build()}, checks that build time per vnode stays about
+ * the same with growing rings. Wall-clock timing is unreliable on loaded machines, so it only runs when
+ * -DvnodeRingScalingMaxMachines is set: Machine counts double from 125 with 256 vnodes each, the last step is the
+ * given count itself. 10000 for the full benchmark, which needs a few GB of heap. Correctness of the replicas is
+ * checked by {@link VNodeReplicaSweepTest}.
+ */
+public class VNodeConsistentHashRingBuildScalingTest {
+
+    private static final Logger LOG = LoggerFactory.getLogger(VNodeConsistentHashRingBuildScalingTest.class);
+
+    private static final int VNODES_PER_MACHINE = 256;
+
+    private static final int MIN_MACHINES = 125;
+
+    @Test
+    public void shouldBuildInNearLinearTime() throws Exception {
+        Integer maxMachines = Integer.getInteger("vnodeRingScalingMaxMachines");
+        assumeNotNull(maxMachines);
+
+        // warm up
+        measureNanosPerVNode(MIN_MACHINES);
+        measureNanosPerVNode(MIN_MACHINES);
+
+        double smallestNanosPerVNode = 0;
+        double nanosPerVNode;
+        int machineCount = Math.min(MIN_MACHINES, maxMachines);
+        while (true) {
+            nanosPerVNode = Math.min(measureNanosPerVNode(machineCount), measureNanosPerVNode(machineCount));
+            if (smallestNanosPerVNode == 0) {
+                smallestNanosPerVNode = nanosPerVNode;
+            }
+            LOG.info("Built ring of {} machines with {} vnodes each: {} ns per vnode", machineCount,
+                    VNODES_PER_MACHINE, (long) nanosPerVNode);
+            if (machineCount >= maxMachines) {
+                break;
+            }
+            machineCount = Math.min(2 * machineCount, maxMachines);
+        }
+
+        // walking the ring for every vnode grows per-vnode cost with ring size, a sweep only by cache effects and
+        // the log factor of sorting
+        assertTrue("per vnode: " + nanosPerVNode + " ns, smallest ring: " + smallestNanosPerVNode + " ns",
+                nanosPerVNode < 4 * smallestNanosPerVNode);
+    }
+
+    private double measureNanosPerVNode(int machineCount) {
+        Random rand = new Random(machineCount);
+        VNodeConsistentHashRingBuilder builder = new VNodeConsistentHashRingBuilder().setReplicaCount(3);
+        for (int i = 0; i < machineCount; i++) {
+            long[] vnodes = new long[VNODES_PER_MACHINE];
+            for (int j = 0; j < vnodes.length; j++) {
+                vnodes[j] = rand.nextLong();
+            }
+            builder.addMachine("m" + i, i % 20 == 0 ? MachineInRingState.BOOTSTRAPPING :
+                    i % 20 == 1 ? MachineInRingState.LEAVING : MachineInRingState.INTEGRATED, vnodes);
+        }
+
+        long start = System.nanoTime();
+        builder.build();
+        return (System.nanoTime() - start) / (double) (machineCount * VNODES_PER_MACHINE);
+    }
+}
@@ -0,0 +1,218 @@
+package de.deverado.framework.concurrent.consistenthashing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+
+public class VNodeConsistentHashRingByRendezvousBuilderTest {
+
+    private static final int KEYS = 100000;
+
+    private static List<String> ids(List<Machine> machines) {
+        List<String> result = new ArrayList<>(machines.size());
+        for (Machine m : machines) {
+            result.add(m.getMachineId());
+        }
+        return result;
+    }
+
+    private static int[] countLeaders(VNodeConsistentHashRing ring, long seed) {
+        int[] counts = new int[ring.getMachines().size()];
+        Random rand = new Random(seed);
+        for (int i = 0; i < KEYS; i++) {
+            counts[ring.getNodeForHash(rand.nextLong()).getLeader().getIdxInAllMachineList()]++;
+        }
+        return counts;
+    }
+
+    @Test
+    public void shouldDistributeEvenly() {
+        VNodeConsistentHashRingByRendezvousBuilder builder = new VNodeConsistentHashRingByRendezvousBuilder();
+        for (int i = 0; i < 5; i++) {
+            builder.addMachine("m" + i, MachineInRingState.INTEGRATED);
+        }
+        VNodeConsistentHashRing ring = builder.setReplicaCount(3).build();
+
+        for (int count : countLeaders(ring, 42)) {
+            assertTrue("" + count, count > KEYS / 5 * 0.9 && count < KEYS / 5 * 1.1);
+        }
+        Random rand = new Random(43);
+        for (int i = 0; i < 1000; i++) {
+            VNodeImpl node = ring.getNodeForHash(rand.nextLong());
+            assertEquals(3, node.getReadReplicas().size());
+            assertEquals(3, new HashSet<>(node.getReadReplicas()).size());
+            assertSame(node.getLeader(), node.getReadReplicas().get(0));
+            assertEquals(node.getReadReplicas(), node.getWriteReplicas());
+        }
+
+        // equal neighbor segments are merged, with two machines about every second one
+        VNodeConsistentHashRing twoMachines = new VNodeConsistentHashRingByRendezvousBuilder()
+                .setReplicaCount(1)
+                .addMachine("a", MachineInRingState.INTEGRATED)
+                .addMachine("b", MachineInRingState.INTEGRATED)
+                .build();
+        int vnodes = twoMachines.getMachines().get(0).getVNodes().size()
+                + twoMachines.getMachines().get(1).getVNodes().size();
+        assertTrue("" + vnodes, vnodes < VNodeConsistentHashRingByRendezvousBuilder.DEFAULT_SEGMENT_COUNT * 0.6);
+    }
+
+    @Test
+    public void shouldDistributeByWeight() {
+        VNodeConsistentHashRing ring = new VNodeConsistentHashRingByRendezvousBuilder()
+                .addMachine("a", MachineInRingState.INTEGRATED, 1)
+                .addMachine("b", MachineInRingState.INTEGRATED, 1)
+                .addMachine("c", MachineInRingState.INTEGRATED, 2)
+                .build();
+
+        int[] counts = countLeaders(ring, 42);
+        assertTrue("" + counts[0], counts[0] > KEYS / 4 * 0.9 && counts[0] < KEYS / 4 * 1.1);
+        assertTrue("" + counts[1], counts[1] > KEYS / 4 * 0.9 && counts[1] < KEYS / 4 * 1.1);
+        assertTrue("" + counts[2], counts[2] > KEYS / 2 * 0.9 && counts[2] < KEYS / 2 * 1.1);
+    }
+
+    @Test
+    public void shouldMoveOnlyToAddedMachine() {
+        VNodeConsistentHashRingByRendezvousBuilder builder = new VNodeConsistentHashRingByRendezvousBuilder()
+                .setReplicaCount(2);
+        for (int i = 0; i < 6; i++) {
+            builder.addMachine("m" + i, MachineInRingState.INTEGRATED);
+        }
+        VNodeConsistentHashRing before = builder.build();
+        VNodeConsistentHashRing after = builder.addMachine("m6", MachineInRingState.INTEGRATED).build();
+
+        Random rand = new Random(42);
+        int moved = 0;
+        for (int i = 0; i < KEYS; i++) {
+            long hash = rand.nextLong();
+            String leaderBefore = before.getNodeForHash(hash).getLeaderId();
+            String leaderAfter = after.getNodeForHash(hash).getLeaderId();
+            if (!leaderBefore.equals(leaderAfter)) {
+                assertEquals("m6", leaderAfter);
+                moved++;
+                // the old leader becomes the first follower
+                assertEquals(leaderBefore, after.getReadReplicasForHash(hash).get(1).getMachineId());
+            }
+        }
+        assertTrue("" + moved, moved > KEYS / 7 * 0.85 && moved < KEYS / 7 * 1.15);
+    }
+
+    @Test
+    public void shouldHonourMachineStates() {
+        VNodeConsistentHashRing integrated = new VNodeConsistentHashRingByRendezvousBuilder()
+                .setReplicaCount(2)
+                .addMachine("a", MachineInRingState.INTEGRATED)
+                .addMachine("b", MachineInRingState.INTEGRATED)
+                .addMachine("c", MachineInRingState.INTEGRATED)
+                .addMachine("d", MachineInRingState.INTEGRATED)
+                .build();
+        VNodeConsistentHashRing withoutD = new VNodeConsistentHashRingByRendezvousBuilder()
+                .setReplicaCount(2)
+                .addMachine("a", MachineInRingState.INTEGRATED)
+                .addMachine("b", MachineInRingState.INTEGRATED)
+                .addMachine("c", MachineInRingState.INTEGRATED)
+                .addMachine("d", MachineInRingState.OUT_OF_RING)
+                .build();
+        VNodeConsistentHashRing bootstrappingD = new VNodeConsistentHashRingByRendezvousBuilder()
+                .setReplicaCount(2)
+                .addMachine("a", MachineInRingState.INTEGRATED)
+                .addMachine("b", MachineInRingState.INTEGRATED)
+                .addMachine("c", MachineInRingState.INTEGRATED)
+                .addMachine("d", MachineInRingState.BOOTSTRAPPING)
+                .build();
+        VNodeConsistentHashRing leavingD = new VNodeConsistentHashRingByRendezvousBuilder()
+                .setReplicaCount(2)
+                .addMachine("a", MachineInRingState.INTEGRATED)
+                .addMachine("b", MachineInRingState.INTEGRATED)
+                .addMachine("c", MachineInRingState.INTEGRATED)
+                .addMachine("d", MachineInRingState.LEAVING)
+                .build();
+
+        Random rand = new Random(42);
+        for (int i = 0; i < 10000; i++) {
+            long hash = rand.nextLong();
+            List<String> integratedReads = ids(integrated.getReadReplicasForHash(hash));
+            List<String> withoutDReads = ids(withoutD.getReadReplicasForHash(hash));
+            assertFalse(withoutDReads.contains("d"));
+            assertEquals(2, withoutDReads.size());
+
+            // bootstrapping: reads from the current owners, writes also to the future owner
+            assertEquals(withoutDReads, ids(bootstrappingD.getReadReplicasForHash(hash)));
+            List<String> bootstrappingWrites = ids(bootstrappingD.getWriteReplicasForHash(hash));
+            assertEquals(integratedReads.contains("d"), bootstrappingWrites.contains("d"));
+            bootstrappingWrites.remove("d");
+            assertEquals(withoutDReads, bootstrappingWrites);
+
+            // leaving: reads from the current owners, writes also to the future owners
+            assertEquals(integratedReads, ids(leavingD.getReadReplicasForHash(hash)));
+            List<String> leavingWrites = ids(leavingD.getWriteReplicasForHash(hash));
+            assertEquals(integratedReads.contains("d"), leavingWrites.contains("d"));
+            leavingWrites.remove("d");
+            assertEquals(withoutDReads, leavingWrites);
+        }
+        assertTrue(withoutD.getMachines().get(3).getVNodes().isEmpty());
+    }
+
+    @Test
+    public void shouldHandleEdgeCases() {
+        VNodeConsistentHashRing single = new VNodeConsistentHashRingByRendezvousBuilder()
+                .addMachine("a", MachineInRingState.INTEGRATED)
+                .build();
+        assertEquals(1, single.getMachines().get(0).getVNodes().size());
+        assertEquals("a", single.getNodeForHash(Long.MIN_VALUE).getLeaderId());
+        assertEquals("a", single.getNodeForHash(Long.MAX_VALUE).getLeaderId());
+
+        VNodeConsistentHashRing oneSegment = new VNodeConsistentHashRingByRendezvousBuilder()
+                .setSegmentCount(1)
+                .setFreezeRing(false)
+                .addMachine("a", MachineInRingState.INTEGRATED)
+                .addMachine("b", MachineInRingState.INTEGRATED)
+                .build();
+        assertEquals(Long.MAX_VALUE, (long) oneSegment.getNodeForHash(0L).getHash());
+
+        VNodeConsistentHashRing empty = new VNodeConsistentHashRingByRendezvousBuilder()
+                .addMachine("a", MachineInRingState.OUT_OF_RING)
+                .build();
+        assertEquals(1, empty.getMachines().size());
+        assertNull(empty.getNodeForHash(0L));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectSegmentCountNotPowerOf2() {
+        new VNodeConsistentHashRingByRendezvousBuilder().setSegmentCount(1000);
+    }
+
+    @Test
+    public void shouldServeAsRingCreatorForMgr() throws Exception {
+        VNodeConsistentHashRingMgr mgr = new VNodeConsistentHashRingMgr();
+        ListeningExecutorService executor = MoreExecutors.newDirectExecutorService();
+        mgr.init(new Callable<ListenableFuture<? extends VNodeConsistentHashRing>>() {
+            @Override
+            public ListenableFuture<? extends VNodeConsistentHashRing> call() throws Exception {
+                return Futures.immediateFuture(new VNodeConsistentHashRingByRendezvousBuilder()
+                        .addMachine("a", MachineInRingState.INTEGRATED)
+                        .addMachine("b", MachineInRingState.INTEGRATED)
+                        .build());
+            }
+        }, executor);
+        mgr.startRing();
+
+        assertNotNull(mgr.getRing());
+        assertEquals(2, mgr.getRing().getMachines().size());
+        assertEquals(2, mgr.getRing().getReadReplicasForHash(0L).size());
+    }
+}
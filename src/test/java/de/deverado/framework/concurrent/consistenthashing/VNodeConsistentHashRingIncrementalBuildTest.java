@@ -0,0 +1,150 @@
+package de.deverado.framework.concurrent.consistenthashing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import org.apache.commons.lang3.tuple.Pair;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+public class VNodeConsistentHashRingIncrementalBuildTest {
+
+    private static final MachineInRingState[] STATES = {MachineInRingState.INTEGRATED,
+            MachineInRingState.INTEGRATED, MachineInRingState.INTEGRATED, MachineInRingState.LEAVING,
+            MachineInRingState.BOOTSTRAPPING, MachineInRingState.OUT_OF_RING};
+
+    @Test
+    public void shouldBuildSameRingAsFullBuild() throws Exception {
+        Random rand = new Random(42);
+        for (int round = 0; round < 30; round++) {
+            int replicaCount = 1 + rand.nextInt(4);
+            Map<String, Pair<MachineInRingState, long[]>> machines = new TreeMap<>();
+            for (int i = 0; i < 1 + rand.nextInt(20); i++) {
+                machines.put("m" + i, Pair.of(STATES[rand.nextInt(STATES.length)], randomVNodes(rand, 16)));
+            }
+            VNodeConsistentHashRing ring = createFullBuilder(machines, replicaCount).build();
+
+            // chaining incremental builds
+            for (int change = 0; change < 5; change++) {
+                VNodeConsistentHashRingBuilder incremental = VNodeConsistentHashRingBuilder.createIncremental(ring);
+                for (int c = 0; c < 1 + rand.nextInt(3); c++) {
+                    List<String> ids = new ArrayList<>(machines.keySet());
+                    String id = ids.get(rand.nextInt(ids.size()));
+                    switch (rand.nextInt(4)) {
+                        case 0:
+                            machines.put(id, Pair.of(STATES[rand.nextInt(STATES.length)], machines.get(id).getRight()));
+                            break;
+                        case 1:
+                            if (ids.size() > 1) {
+                                machines.remove(id);
+                                incremental.removeMachine(id);
+                            }
+                            break;
+                        case 2:
+                            id = "n" + round + "-" + change + "-" + c;
+                            machines.put(id, Pair.of(STATES[rand.nextInt(STATES.length)], randomVNodes(rand, 16)));
+                            break;
+                        default:
+                            machines.put(id, Pair.of(machines.get(id).getLeft(), randomVNodes(rand, 16)));
+                            break;
+                    }
+                    if (machines.containsKey(id)) {
+                        incremental.addMachine(id, machines.get(id).getLeft(), machines.get(id).getRight());
+                    }
+                }
+
+                ring = incremental.build();
+                assertSameRing(createFullBuilder(machines, replicaCount).build(), ring);
+            }
+        }
+    }
+
+    @Test
+    public void shouldRebuildStateChangeOfOneMachine() throws Exception {
+        Random rand = new Random(43);
+        Map<String, Pair<MachineInRingState, long[]>> machines = new TreeMap<>();
+        for (int i = 0; i < 200; i++) {
+            machines.put("m" + i, Pair.of(i == 7 ? MachineInRingState.BOOTSTRAPPING : MachineInRingState.INTEGRATED,
+                    randomVNodes(rand, 64)));
+        }
+        VNodeConsistentHashRing ring = createFullBuilder(machines, 3).setLookupIndexBits(-1).build();
+
+        machines.put("m7", Pair.of(MachineInRingState.INTEGRATED, machines.get("m7").getRight()));
+        VNodeConsistentHashRing next = VNodeConsistentHashRingBuilder.createIncremental(ring)
+                .addMachine("m7", MachineInRingState.INTEGRATED, machines.get("m7").getRight())
+                .build();
+
+        assertSameRing(createFullBuilder(machines, 3).setLookupIndexBits(-1).build(), next);
+        assertEquals(((FrozenConsistentHashRing<?, ?, ?, ?>) ring.getNodeRing()).getLookupIndexBits(),
+                ((FrozenConsistentHashRing<?, ?, ?, ?>) next.getNodeRing()).getLookupIndexBits());
+        long m7Token = machines.get("m7").getRight()[0];
+        assertNotEquals("m7", ring.getNodeForHash(m7Token).getLeaderId());
+        assertEquals("m7", next.getNodeForHash(m7Token).getLeaderId());
+    }
+
+    @Test
+    public void shouldRejectRingsWithoutBuildState() throws Exception {
+        VNodeConsistentHashRing ring = new VNodeConsistentHashRingBuilder()
+                .addMachine("a", MachineInRingState.INTEGRATED, 1L, 2L).build();
+        try {
+            VNodeConsistentHashRingBuilder.createIncremental(ring);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+
+        VNodeConsistentHashRing frozen = new VNodeConsistentHashRingBuilder().setFreezeRing(true)
+                .addMachine("a", MachineInRingState.INTEGRATED, 1L, 2L).build();
+        assertNull("build state is opt-in", frozen.getBuildState());
+        assertNotNull(new VNodeConsistentHashRingBuilder().setKeepBuildState(true)
+                .addMachine("a", MachineInRingState.INTEGRATED, 1L, 2L).build().getBuildState());
+    }
+
+    private static long[] randomVNodes(Random rand, int count) {
+        long[] result = new long[count];
+        for (int i = 0; i < count; i++) {
+            result[i] = rand.nextLong();
+        }
+        return result;
+    }
+
+    private static VNodeConsistentHashRingBuilder createFullBuilder(
+            Map<String, Pair<MachineInRingState, long[]>> machines, int replicaCount) {
+        VNodeConsistentHashRingBuilder result = new VNodeConsistentHashRingBuilder().setReplicaCount(replicaCount)
+                .setKeepBuildState(true);
+        for (Map.Entry<String, Pair<MachineInRingState, long[]>> e : machines.entrySet()) {
+            result.addMachine(e.getKey(), e.getValue().getLeft(), e.getValue().getRight());
+        }
+        return result;
+    }
+
+    static void assertSameRing(VNodeConsistentHashRing expected, VNodeConsistentHashRing actual) {
+        assertEquals(expected.getMachines().size(), actual.getMachines().size());
+        for (int i = 0; i < expected.getMachines().size(); i++) {
+            Machine expectedMachine = expected.getMachines().get(i);
+            Machine actualMachine = actual.getMachines().get(i);
+            assertEquals(expectedMachine.getMachineId(), actualMachine.getMachineId());
+            assertEquals(expectedMachine.getState(), actualMachine.getState());
+            assertEquals(expectedMachine.getVNodes(), actualMachine.getVNodes());
+            for (int j = 0; j < expectedMachine.getVNodes().size(); j++) {
+                VNodeImpl expectedNode = expectedMachine.getVNodes().get(j);
+                VNodeImpl actualNode = actualMachine.getVNodes().get(j);
+                assertEquals(expectedNode.getLeader(), actualNode.getLeader());
+                assertEquals(expectedNode.getReadReplicas(), actualNode.getReadReplicas());
+                assertEquals(expectedNode.getWriteReplicas(), actualNode.getWriteReplicas());
+                for (Machine m : actualNode.getWriteReplicas()) {
+                    assertSame(actual.getMachine(m.getIdxInAllMachineList()), m);
+                }
+            }
+        }
+    }
+}
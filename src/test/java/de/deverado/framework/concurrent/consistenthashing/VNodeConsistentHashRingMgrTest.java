@@ -3,24 +3,33 @@ package de.deverado.framework.concurrent.consistenthashing;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListeningExecutorService;
 import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
 import javax.annotation.Nullable;
 
+import java.util.Arrays;
 import java.util.Deque;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 
@@ -173,4 +182,220 @@ public class VNodeConsistentHashRingMgrTest {
         Thread.sleep(20);
         assertEquals("Listener should not have been called again - no changes", 2, listenerCallCount.get());
     }
+
+    @Test
+    public void shouldCoalesceRequestsArrivingDuringBuild() throws Exception {
+        // future listeners run on the completing thread, so everything happens in this thread
+        final SettableFuture<VNodeConsistentHashRing> firstBuild = SettableFuture.create();
+        final AtomicInteger creatorCalls = new AtomicInteger();
+        cut.init(new Callable<ListenableFuture<? extends VNodeConsistentHashRing>>() {
+            @Override
+            public ListenableFuture<? extends VNodeConsistentHashRing> call() throws Exception {
+                return creatorCalls.incrementAndGet() == 1 ? firstBuild : Futures.immediateFuture(createRing());
+            }
+        }, MoreExecutors.newDirectExecutorService());
+
+        cut.startRing();
+        for (int i = 0; i < 50; i++) {
+            cut.ringChangedPossibly();
+        }
+        assertEquals(1, creatorCalls.get());
+
+        firstBuild.set(createRing());
+
+        assertEquals(2, creatorCalls.get());
+        assertEquals(51, cut.getRequestedRebuildCount());
+        assertEquals(2, cut.getExecutedRebuildCount());
+        assertNotNull(cut.getRing());
+    }
+
+    @Test
+    public void shouldDebounceBurst() throws Exception {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        try {
+            cut.init(createImmediateCreator(), executor);
+            cut.setDebounce(50, 0, scheduler);
+
+            for (int i = 0; i < 10; i++) {
+                cut.ringChangedPossibly();
+            }
+            assertEquals(0, cut.getExecutedRebuildCount());
+            Thread.sleep(150);
+
+            assertEquals(10, cut.getRequestedRebuildCount());
+            assertEquals(1, cut.getExecutedRebuildCount());
+            assertNotNull(cut.getRing());
+        } finally {
+            scheduler.shutdownNow();
+        }
+    }
+
+    @Test
+    public void shouldBuildWithinMaxStalenessDespiteContinuousRequests() throws Exception {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        try {
+            cut.init(createImmediateCreator(), executor);
+            cut.setDebounce(100, 150, scheduler);
+
+            long end = System.currentTimeMillis() + 500;
+            while (System.currentTimeMillis() < end) {
+                cut.ringChangedPossibly();
+                Thread.sleep(10);
+            }
+            long executed = cut.getExecutedRebuildCount();
+            assertTrue("executed: " + executed, executed >= 2);
+            assertTrue("executed: " + executed, executed < cut.getRequestedRebuildCount());
+        } finally {
+            scheduler.shutdownNow();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectNegativeDebounce() {
+        cut.setDebounce(-1, 0, Executors.newSingleThreadScheduledExecutor());
+    }
+
+    private static Callable<ListenableFuture<? extends VNodeConsistentHashRing>> createImmediateCreator() {
+        return new Callable<ListenableFuture<? extends VNodeConsistentHashRing>>() {
+            @Override
+            public ListenableFuture<? extends VNodeConsistentHashRing> call() throws Exception {
+                return Futures.immediateFuture(createRing());
+            }
+        };
+    }
+
+    private static VNodeConsistentHashRing createRing() {
+        return new VNodeConsistentHashRingBuilder()
+                .addMachine("1", MachineInRingState.INTEGRATED, 1L)
+                .addMachine("2", MachineInRingState.INTEGRATED, 51L)
+                .build();
+    }
+
+    @Test
+    public void shouldDispatchToListenersInParallelAndConflateForLaggingOnes() throws Exception {
+        final AtomicInteger version = new AtomicInteger();
+        // rings are built and published on this thread, only the listeners run on the pool
+        cut.init(new Callable<ListenableFuture<? extends VNodeConsistentHashRing>>() {
+            @Override
+            public ListenableFuture<? extends VNodeConsistentHashRing> call() throws Exception {
+                return Futures.immediateFuture(new VNodeConsistentHashRingBuilder()
+                        .addMachine("m" + version.incrementAndGet(), MachineInRingState.INTEGRATED, 1L).build());
+            }
+        }, MoreExecutors.newDirectExecutorService());
+        cut.setListenerDispatch(executor, 10);
+
+        final CountDownLatch slowEntered = new CountDownLatch(1);
+        final CountDownLatch releaseSlow = new CountDownLatch(1);
+        final List<String> slowSeen = new CopyOnWriteArrayList<>();
+        final AtomicReference<Object> problemRef = new AtomicReference<>();
+        VNodeConsistentHashRingChangeListener slow = new VNodeConsistentHashRingChangeListener() {
+            @Override
+            public void changed(@Nullable VNodeConsistentHashRing old, VNodeConsistentHashRing newRing,
+                                RingDifference difference) {
+                try {
+                    if (old == null) {
+                        slowEntered.countDown();
+                        assertTrue(releaseSlow.await(5, TimeUnit.SECONDS));
+                        TimeUnit.MILLISECONDS.sleep(20); // exceeds the deadline regardless of the release timing
+                    }
+                    String oldId = old == null ? null : old.getMachines().get(0).getMachineId();
+                    slowSeen.add(oldId + "->" + newRing.getMachines().get(0).getMachineId());
+                    assertEquals(old == null ? 1 : 2, difference.getChanged().size());
+                } catch (Throwable e) {
+                    problemRef.set(e);
+                }
+            }
+        };
+        final AtomicInteger fastCalls = new AtomicInteger();
+        VNodeConsistentHashRingChangeListener fast = new VNodeConsistentHashRingChangeListener() {
+            @Override
+            public void changed(@Nullable VNodeConsistentHashRing old, VNodeConsistentHashRing newRing,
+                                RingDifference difference) {
+                fastCalls.incrementAndGet();
+            }
+        };
+        cut.addRingListener(slow);
+        cut.addRingListener(fast);
+
+        cut.startRing();
+        assertTrue(slowEntered.await(5, TimeUnit.SECONDS));
+        // m2 and m3 arrive while the slow listener is still busy with m1, the fast one keeps up with each
+        awaitDelivered(fast, 1);
+        cut.ringChangedPossibly();
+        awaitDelivered(fast, 2);
+        cut.ringChangedPossibly();
+        awaitDelivered(fast, 3);
+        assertEquals("fast listener not held up by slow one", 3, fastCalls.get());
+        assertEquals(0, slowSeen.size());
+
+        releaseSlow.countDown();
+        awaitDelivered(slow, 2);
+
+        assertNull("" + problemRef.get(), problemRef.get());
+        assertEquals(Arrays.asList("null->m1", "m1->m3"), slowSeen);
+
+        RingChangeListenerStatistics slowStats = cut.getListenerStatistics(slow);
+        assertNotNull(slowStats);
+        assertEquals(2, slowStats.getDeliveredCount());
+        assertEquals(1, slowStats.getConflatedCount());
+        assertEquals(1, slowStats.getSlowCount());
+        assertTrue(slowStats.getMaxLatency(TimeUnit.MILLISECONDS) >= 10);
+
+        RingChangeListenerStatistics fastStats = cut.getListenerStatistics(fast);
+        assertNotNull(fastStats);
+        assertEquals(3, fastStats.getDeliveredCount());
+        assertEquals(0, fastStats.getConflatedCount());
+
+        cut.removeRingListener(fast);
+        assertNull(cut.getListenerStatistics(fast));
+        cut.ringChangedPossibly();
+        awaitDelivered(slow, 3);
+        assertEquals(3, fastCalls.get());
+        assertEquals(3, slowSeen.size());
+    }
+
+    /**
+     * Waits until the listener returned from the given count of calls, its statistics are updated after each call.
+     */
+    private void awaitDelivered(VNodeConsistentHashRingChangeListener listener, long count) throws Exception {
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (cut.getListenerStatistics(listener).getDeliveredCount() < count) {
+            assertTrue("listener not called " + count + " times in time", System.nanoTime() < end);
+            Thread.yield();
+        }
+    }
+
+    @Test
+    public void shouldPublishRingsWithIncreasingEpochs() throws Exception {
+        final AtomicInteger version = new AtomicInteger();
+        cut.init(new Callable<ListenableFuture<? extends VNodeConsistentHashRing>>() {
+            @Override
+            public ListenableFuture<? extends VNodeConsistentHashRing> call() throws Exception {
+                return Futures.immediateFuture(new VNodeConsistentHashRingBuilder()
+                        .addMachine("m" + version.incrementAndGet(), MachineInRingState.INTEGRATED, 1L).build());
+            }
+        }, MoreExecutors.newDirectExecutorService());
+
+        assertNull(cut.pin());
+        assertEquals(0, cut.getEpoch());
+
+        cut.startRing();
+        PinnedRing pinned = cut.pin();
+        assertNotNull(pinned);
+        assertEquals(1, pinned.getEpoch());
+        assertSame(cut.getRing(), pinned.getRing());
+        assertEquals("m1", cut.getReadReplicasForHash(1, 5L).get(0).getMachineId());
+
+        cut.ringChangedPossibly();
+        assertEquals(2, cut.getEpoch());
+        assertEquals("pinned ring unchanged", "m1", pinned.getReadReplicasForHash(5L).get(0).getMachineId());
+        assertEquals("m2", cut.getWriteReplicasForHash(2, 5L).get(0).getMachineId());
+        try {
+            cut.getReadReplicasForHash(pinned.getEpoch(), 5L);
+            fail();
+        } catch (StaleRingEpochException e) {
+            assertEquals(1, e.getExpectedEpoch());
+            assertEquals(2, e.getCurrentEpoch());
+        }
+    }
 }
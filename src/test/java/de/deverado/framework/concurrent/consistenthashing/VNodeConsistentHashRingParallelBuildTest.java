@@ -0,0 +1,69 @@
+package de.deverado.framework.concurrent.consistenthashing;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Runs the {@link VNodeConsistentHashRingTest} scenarios with parallel replica determination.
+ */
+public class VNodeConsistentHashRingParallelBuildTest extends VNodeConsistentHashRingTest {
+
+    private ForkJoinPool pool;
+
+    @Before
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        pool = new ForkJoinPool(4);
+        builder.setForkJoinPool(pool);
+    }
+
+    @After
+    @Override
+    public void tearDown() throws Exception {
+        super.tearDown();
+        pool.shutdownNow();
+    }
+
+    @Test
+    public void shouldBuildSameRingAsSequentialBuild() throws Exception {
+        Random rand = new Random(42);
+        MachineInRingState[] states = {MachineInRingState.INTEGRATED, MachineInRingState.INTEGRATED,
+                MachineInRingState.LEAVING, MachineInRingState.INTEGRATED, MachineInRingState.BOOTSTRAPPING,
+                MachineInRingState.OUT_OF_RING};
+        VNodeConsistentHashRingBuilder sequentialBuilder = new VNodeConsistentHashRingBuilder().setReplicaCount(3);
+        builder.setReplicaCount(3);
+        for (int i = 0; i < 60; i++) {
+            long[] vnodes = new long[256];
+            for (int j = 0; j < vnodes.length; j++) {
+                vnodes[j] = rand.nextLong();
+            }
+            builder.addMachine("m" + i, states[i % states.length], vnodes);
+            sequentialBuilder.addMachine("m" + i, states[i % states.length], vnodes);
+        }
+        VNodeConsistentHashRing parallel = builder.build();
+        VNodeConsistentHashRing sequential = sequentialBuilder.build();
+
+        assertEquals(sequential.getMachines().size(), parallel.getMachines().size());
+        for (int i = 0; i < sequential.getMachines().size(); i++) {
+            Machine sequentialMachine = sequential.getMachines().get(i);
+            Machine parallelMachine = parallel.getMachines().get(i);
+            assertEquals(sequentialMachine.getMachineId(), parallelMachine.getMachineId());
+            assertEquals(sequentialMachine.getVNodes().size(), parallelMachine.getVNodes().size());
+            for (int j = 0; j < sequentialMachine.getVNodes().size(); j++) {
+                VNodeImpl sequentialNode = sequentialMachine.getVNodes().get(j);
+                VNodeImpl parallelNode = parallelMachine.getVNodes().get(j);
+                assertEquals(sequentialNode.getHash(), parallelNode.getHash());
+                assertEquals(sequentialNode.getLeader(), parallelNode.getLeader());
+                assertEquals(sequentialNode.getReadReplicas(), parallelNode.getReadReplicas());
+                assertEquals(sequentialNode.getWriteReplicas(), parallelNode.getWriteReplicas());
+            }
+        }
+    }
+}
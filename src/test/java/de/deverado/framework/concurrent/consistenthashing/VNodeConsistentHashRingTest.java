@@ -7,20 +7,24 @@ import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Lists;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 import java.util.Set;
 
 public class VNodeConsistentHashRingTest {
 
-    private VNodeConsistentHashRingBuilder builder;
+    protected VNodeConsistentHashRingBuilder builder;
 
     @Before
     public void setUp() throws Exception {
@@ -605,6 +609,28 @@ public class VNodeConsistentHashRingTest {
         assertEquals(integratedList, ring.getWriteReplicasForHash(11l));
     }
 
+    @Test
+    public void shouldRouteBatchesAndGroupByLeader() throws Exception {
+        VNodeConsistentHashRing ring = builder.addMachine("1", MachineInRingState.INTEGRATED, 10, 30)
+                .addMachine("2", MachineInRingState.INTEGRATED, 20).build();
+        long[] hashes = {25, 5, 15, 31, 10, 20};
+        VNodeImpl[] nodes = new VNodeImpl[hashes.length];
+        ring.getNodesForHashes(hashes, nodes);
+        for (int i = 0; i < hashes.length; i++) {
+            assertSame(ring.getNodeForHash(hashes[i]), nodes[i]);
+        }
+
+        ListMultimap<Machine, Integer> byLeader = ring.getHashPositionsByLeader(hashes);
+        assertEquals(Lists.newArrayList(ring.getMachines().get(0), ring.getMachines().get(1)),
+                Lists.newArrayList(byLeader.keySet()));
+        assertEquals(Lists.newArrayList(0, 1, 3, 4), byLeader.get(ring.getMachines().get(0)));
+        assertEquals(Lists.newArrayList(2, 5), byLeader.get(ring.getMachines().get(1)));
+
+        VNodeConsistentHashRing empty = new VNodeConsistentHashRingBuilder()
+                .addMachine("1", MachineInRingState.BOOTSTRAPPING, 1).build();
+        assertTrue(empty.getHashPositionsByLeader(hashes).isEmpty());
+    }
+
     private Map<Long, VNodeImpl> makeNodesByHash(List<VNodeImpl> vNodes) {
         HashMap<Long, VNodeImpl> result = new HashMap<>();
         for (VNodeImpl n : vNodes) {
@@ -612,4 +638,249 @@ public class VNodeConsistentHashRingTest {
         }
         return result;
     }
-}
\ No newline at end of file
+
+    @Test
+    public void shouldDetermineReplicasOnDemandLikeEagerly() throws Exception {
+        Random rand = new Random(42);
+        MachineInRingState[] states = {MachineInRingState.INTEGRATED, MachineInRingState.INTEGRATED,
+                MachineInRingState.INTEGRATED, MachineInRingState.BOOTSTRAPPING, MachineInRingState.LEAVING,
+                MachineInRingState.OUT_OF_RING};
+        VNodeConsistentHashRingBuilder onDemandBuilder = new VNodeConsistentHashRingBuilder()
+                .setReplicaCount(3).setOnDemandReplicaCacheSize(16);
+        builder.setReplicaCount(3).setFreezeRing(true);
+        for (int i = 0; i < 30; i++) {
+            long[] vnodes = new long[16];
+            for (int j = 0; j < vnodes.length; j++) {
+                vnodes[j] = rand.nextLong();
+            }
+            builder.addMachine("m" + i, states[i % states.length], vnodes);
+            onDemandBuilder.addMachine("m" + i, states[i % states.length], vnodes);
+        }
+        VNodeConsistentHashRing eager = builder.build();
+        VNodeConsistentHashRing onDemand = onDemandBuilder.build();
+
+        for (int i = 0; i < 1000; i++) {
+            long hash = rand.nextLong();
+            VNodeImpl eagerNode = eager.getNodeForHash(hash);
+            VNodeImpl onDemandNode = onDemand.getNodeForHash(hash);
+            assertEquals(eagerNode.getHash(), onDemandNode.getHash());
+            assertEquals(eagerNode.getLeaderId(), onDemandNode.getLeaderId());
+            assertEquals(eagerNode.getReadReplicas(), onDemandNode.getReadReplicas());
+            assertEquals(eagerNode.getWriteReplicas(), onDemandNode.getWriteReplicas());
+            // cached
+            assertSame(onDemandNode.getWriteReplicas(), onDemandNode.getWriteReplicas());
+        }
+
+        // only led vnodes
+        Machine integrated = onDemand.getMachines().get(0);
+        assertEquals(MachineInRingState.INTEGRATED, integrated.getState());
+        assertEquals(16, integrated.getVNodes().size());
+        for (VNodeImpl n : integrated.getVNodes()) {
+            assertSame(integrated, n.getLeader());
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void shouldRejectKeepingBuildStateWithOnDemandReplicas() throws Exception {
+        builder.setKeepBuildState(true).setOnDemandReplicaCacheSize(16)
+                .addMachine("m1", MachineInRingState.INTEGRATED, 1L).build();
+    }
+
+    @Test
+    public void shouldCheckAssignmentByOrdinalLikeByListWalk() throws Exception {
+        Random rand = new Random(42);
+        MachineInRingState[] states = {MachineInRingState.INTEGRATED, MachineInRingState.LEAVING,
+                MachineInRingState.INTEGRATED, MachineInRingState.BOOTSTRAPPING, MachineInRingState.INTEGRATED};
+        VNodeConsistentHashRingWithReplicasByMachineOrderBuilder machineOrderBuilder =
+                new VNodeConsistentHashRingWithReplicasByMachineOrderBuilder().setReplicaCount(3);
+        builder.setReplicaCount(3);
+        for (int i = 0; i < 12; i++) {
+            long[] vnodes = new long[8];
+            for (int j = 0; j < vnodes.length; j++) {
+                vnodes[j] = rand.nextLong();
+            }
+            builder.addMachine("m" + i, states[i % states.length], vnodes);
+            machineOrderBuilder.addMachine("m" + i, states[i % states.length], vnodes);
+        }
+
+        for (VNodeConsistentHashRing ring : Lists.newArrayList(builder.build(), machineOrderBuilder.build())) {
+            for (Machine leader : ring.getMachines()) {
+                for (VNodeImpl node : leader.getVNodes()) {
+                    assertTrue(node.getReadReplicas() instanceof MachineOrdinalList);
+
+                    // walks the lists
+                    VNodeImpl plain = new VNodeImpl();
+                    plain.init(node.getHash());
+                    plain.setLeader(node.getLeader());
+                    plain.setReadReplicas(new ArrayList<>(node.getReadReplicas()));
+                    plain.setWriteReplicas(new ArrayList<>(node.getWriteReplicas()));
+
+                    for (Machine m : ring.getMachines()) {
+                        int ordinal = ring.getMachineOrdinal(m.getMachineId());
+                        assertSame(m, ring.getMachines().get(ordinal));
+                        for (int replicaCount = -1; replicaCount <= 5; replicaCount++) {
+                            AssignmentState expected = plain.getAssignmentStateForMachine(m.getMachineId(),
+                                    replicaCount);
+                            assertEquals(expected, node.getAssignmentStateForMachine(m.getMachineId(), replicaCount));
+                            assertEquals(expected, node.getAssignmentStateForMachine(ordinal, replicaCount));
+                            assertEquals(expected, plain.getAssignmentStateForMachine(ordinal, replicaCount));
+                        }
+                    }
+                }
+            }
+            assertEquals(-1, ring.getMachineOrdinal("unknown"));
+        }
+    }
+
+    @Test
+    public void shouldRegisterMachinesByOrdinal() throws Exception {
+        VNodeConsistentHashRing ring = builder.setReplicaCount(2)
+                .addMachine("a", MachineInRingState.INTEGRATED, 1, 100)
+                .addMachine("b", MachineInRingState.INTEGRATED, 10)
+                .addMachine("c", MachineInRingState.BOOTSTRAPPING, 20)
+                .addMachine("d", MachineInRingState.LEAVING, 30)
+                .build();
+
+        MachineRegistry registry = ring.getMachineRegistry();
+        assertEquals(4, registry.size());
+        for (int i = 0; i < registry.size(); i++) {
+            Machine m = registry.getMachine(i);
+            assertSame(m, ring.getMachine(i));
+            assertSame(m, registry.getMachine(m.getMachineId()));
+            assertEquals(i, registry.getOrdinal(m.getMachineId()));
+            assertEquals(i, m.getIdxInAllMachineList());
+        }
+        assertNull(registry.getMachine("x"));
+        assertEquals(-1, registry.getOrdinal("x"));
+
+        for (long hash : new long[]{0, 5, 15, 25, 50, 200}) {
+            VNodeImpl node = ring.getNodeForHash(hash);
+            for (Machine m : ring.getMachines()) {
+                assertEquals(node.isReadReplica(m.getMachineId()) || node.isWriteReplica(m.getMachineId()),
+                        node.isReplica(m.getIdxInAllMachineList()));
+            }
+        }
+
+        VNodeConsistentHashRing changedRing = new VNodeConsistentHashRingBuilder().setReplicaCount(2)
+                .addMachine("a", MachineInRingState.INTEGRATED, 1, 100)
+                .addMachine("c", MachineInRingState.INTEGRATED, 20)
+                .addMachine("d", MachineInRingState.LEAVING, 30)
+                .addMachine("e", MachineInRingState.BOOTSTRAPPING, 40)
+                .build();
+        RingDifference byRegistry = RingDifferenceImpl.create(ring, changedRing);
+        assertEquals(RingDifferenceImpl.create(ring, changedRing.getMachineInfos()).getChanged(),
+                byRegistry.getChanged());
+        assertEquals(3, byRegistry.getChanged().size()); // b removed, c changed, e new
+        assertEquals(4, RingDifferenceImpl.create(null, changedRing).getChanged().size());
+    }
+
+    @Test
+    public void shouldComputeRangeChangesMatchingPerHashReplicas() throws Exception {
+        MachineInRingState[] states = MachineInRingState.values();
+        Random rand = new Random(7);
+        for (int round = 0; round < 30; round++) {
+            VNodeConsistentHashRingBuilder oldBuilder = new VNodeConsistentHashRingBuilder().setReplicaCount(3);
+            VNodeConsistentHashRingBuilder newBuilder = new VNodeConsistentHashRingBuilder().setReplicaCount(3);
+            for (int i = 0; i < 8; i++) {
+                long[] vnodes = new long[1 + rand.nextInt(4)];
+                for (int j = 0; j < vnodes.length; j++) {
+                    vnodes[j] = rand.nextInt(3) == 0 ? rand.nextLong() : rand.nextInt(1000);
+                }
+                int presence = rand.nextInt(4); // 0: old only, 1: new only, else both
+                if (presence != 1) {
+                    oldBuilder.addMachine("m" + i, states[rand.nextInt(states.length)], vnodes);
+                }
+                if (presence != 0) {
+                    newBuilder.addMachine("m" + i, rand.nextBoolean() ? MachineInRingState.INTEGRATED
+                            : states[rand.nextInt(states.length)], vnodes);
+                }
+            }
+            VNodeConsistentHashRing oldRing = oldBuilder.build();
+            VNodeConsistentHashRing newRing = newBuilder.setFreezeRing(rand.nextBoolean()).build();
+            Map<String, MachineRangeChange> changes = RingDifferenceImpl.create(round == 0 ? null : oldRing,
+                    newRing).getRangeChanges();
+            assertNotNull(changes);
+            if (round == 0) {
+                oldRing = new VNodeConsistentHashRingBuilder().build();
+            }
+
+            List<Long> hashes = new ArrayList<>();
+            for (int i = 0; i < 300; i++) {
+                hashes.add(rand.nextBoolean() ? rand.nextLong() : rand.nextInt(1100) - 50);
+            }
+            hashes.add(Long.MIN_VALUE);
+            hashes.add(Long.MAX_VALUE);
+            for (Long hash : hashes) {
+                List<Machine> oldRead = replicasOrEmpty(oldRing, hash, true);
+                List<Machine> newRead = replicasOrEmpty(newRing, hash, true);
+                List<Machine> oldWrite = replicasOrEmpty(oldRing, hash, false);
+                List<Machine> newWrite = replicasOrEmpty(newRing, hash, false);
+                for (int i = 0; i < 8; i++) {
+                    String id = "m" + i;
+                    MachineRangeChange c = changes.get(id);
+                    String msg = "round " + round + ", hash " + hash + ", " + c;
+                    assertEquals(msg, hasId(newRead, id) && !hasId(oldRead, id),
+                            c != null && anyContains(c.getGainedReadRanges(), hash));
+                    assertEquals(msg, hasId(oldRead, id) && !hasId(newRead, id),
+                            c != null && anyContains(c.getLostReadRanges(), hash));
+                    assertEquals(msg, hasId(newWrite, id) && !hasId(oldWrite, id),
+                            c != null && anyContains(c.getGainedWriteRanges(), hash));
+                    assertEquals(msg, hasId(oldWrite, id) && !hasId(newWrite, id),
+                            c != null && anyContains(c.getLostWriteRanges(), hash));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void shouldMergeAdjacentChangedRanges() throws Exception {
+        VNodeConsistentHashRing oldRing = new VNodeConsistentHashRingBuilder().setReplicaCount(1)
+                .addMachine("a", MachineInRingState.INTEGRATED, 10, 30)
+                .build();
+        VNodeConsistentHashRing newRing = new VNodeConsistentHashRingBuilder().setReplicaCount(1)
+                .addMachine("a", MachineInRingState.INTEGRATED, 10, 30)
+                .addMachine("b", MachineInRingState.INTEGRATED, 20, 25)
+                .build();
+        Map<String, MachineRangeChange> changes = RingDifferenceImpl.create(oldRing, newRing).getRangeChanges();
+
+        assertNotNull(changes);
+        assertEquals(2, changes.size());
+        assertEquals(Collections.singletonList(HashRange.create(10, 25)),
+                changes.get("b").getGainedReadRanges());
+        assertEquals(Collections.singletonList(HashRange.create(10, 25)), changes.get("a").getLostReadRanges());
+        assertEquals(Collections.emptyList(), changes.get("a").getGainedReadRanges());
+
+        Map<String, MachineRangeChange> fromNothing = RingDifferenceImpl.create(null, newRing).getRangeChanges();
+        assertNotNull(fromNothing);
+        assertEquals(Collections.singletonList(HashRange.create(25, 10)),
+                fromNothing.get("a").getGainedWriteRanges());
+
+        assertNull(RingDifferenceImpl.create(oldRing, newRing.getMachineInfos()).getRangeChanges());
+    }
+
+    private static List<Machine> replicasOrEmpty(VNodeConsistentHashRing ring, long hash, boolean read) {
+        VNodeImpl node = ring.getNodeForHash(hash);
+        if (node == null) {
+            return Collections.emptyList();
+        }
+        return read ? node.getReadReplicas() : node.getWriteReplicas();
+    }
+
+    private static boolean hasId(List<Machine> machines, String id) {
+        for (Machine m : machines) {
+            if (m.getMachineId().equals(id)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean anyContains(List<HashRange> ranges, long hash) {
+        for (HashRange r : ranges) {
+            if (r.contains(hash)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -4,6 +4,7 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 
 import org.junit.After;
 import org.junit.Before;
@@ -11,7 +12,9 @@ import org.junit.Test;
 
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Random;
 import java.util.Set;
 
 public class VNodeConsistentHashRingWithMachineOrderBuilderTest {
@@ -460,4 +463,36 @@ public class VNodeConsistentHashRingWithMachineOrderBuilderTest {
         assertEquals(both, new HashSet<Machine>(ring.getWriteReplicasForHash(2l)));
         assertEquals(integratedList, ring.getWriteReplicasForHash(11l));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void shouldShareReplicaListsBetweenVNodes() throws Exception {
+        Random rand = new Random(42);
+        for (int i = 0; i < 20; i++) {
+            long[] vnodes = new long[64];
+            for (int j = 0; j < vnodes.length; j++) {
+                vnodes[j] = rand.nextLong();
+            }
+            builder.addMachine("m" + i, i == 3 ? MachineInRingState.BOOTSTRAPPING : MachineInRingState.INTEGRATED,
+                    vnodes);
+        }
+        VNodeConsistentHashRing ring = builder.setReplicaCount(3).build();
+
+        Set<List<Machine>> distinctLists = Collections.newSetFromMap(new IdentityHashMap<List<Machine>, Boolean>());
+        int vnodeCount = 0;
+        for (Machine m : ring.getMachines()) {
+            for (VNodeImpl n : m.getVNodes()) {
+                vnodeCount++;
+                distinctLists.add(n.getReadReplicas());
+                distinctLists.add(n.getWriteReplicas());
+
+                MachineOrdinalList reads = (MachineOrdinalList) n.getReadReplicas();
+                for (int i = 0; i < reads.size(); i++) {
+                    assertSame(ring.getMachines().get(reads.getOrdinal(i)), reads.get(i));
+                }
+            }
+        }
+        assertEquals(20 * 64, vnodeCount);
+        // machine order: the same lists for all vnodes of a machine, except around the bootstrapping machine's vnodes
+        assertTrue("" + distinctLists.size(), distinctLists.size() < 50);
+    }
+}
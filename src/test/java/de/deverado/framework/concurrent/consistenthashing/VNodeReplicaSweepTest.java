@@ -0,0 +1,124 @@
+package de.deverado.framework.concurrent.consistenthashing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import com.google.common.base.Function;
+import com.google.common.collect.ImmutableList;
+import org.apache.commons.lang3.tuple.Pair;
+import org.junit.Test;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+public class VNodeReplicaSweepTest {
+
+    private static final MachineInRingState[] STATES = {MachineInRingState.INTEGRATED,
+            MachineInRingState.INTEGRATED, MachineInRingState.LEAVING, MachineInRingState.INTEGRATED,
+            MachineInRingState.BOOTSTRAPPING, MachineInRingState.OUT_OF_RING};
+
+    @Test
+    public void shouldDetermineSameReplicasAsRingWalk() throws Exception {
+        Random rand = new Random(42);
+        for (int round = 0; round < 200; round++) {
+            int machineCount = 1 + rand.nextInt(12);
+            int vnodeCount = 1 + rand.nextInt(8);
+            int replicaCount = 1 + rand.nextInt(5);
+            MachineInRingState[] states = new MachineInRingState[machineCount];
+            for (int i = 0; i < machineCount; i++) {
+                states[i] = STATES[rand.nextInt(STATES.length)];
+            }
+            checkSameReplicasAsRingWalk(rand, states, vnodeCount, replicaCount);
+        }
+    }
+
+    @Test
+    public void shouldDetermineSameReplicasAsRingWalkForLongRunsOfNonIntegrated() throws Exception {
+        Random rand = new Random(43);
+        MachineInRingState[] states = new MachineInRingState[40];
+        for (int i = 0; i < states.length; i++) {
+            states[i] = i % 10 == 0 ? MachineInRingState.INTEGRATED : STATES[2 + rand.nextInt(STATES.length - 2)];
+        }
+        checkSameReplicasAsRingWalk(rand, states, 16, 3);
+    }
+
+    @Test
+    public void shouldDetermineSameReplicasInChunks() throws Exception {
+        MachineInRingState[] states = {MachineInRingState.INTEGRATED, MachineInRingState.LEAVING,
+                MachineInRingState.INTEGRATED, MachineInRingState.BOOTSTRAPPING, MachineInRingState.INTEGRATED};
+        List<VNodeImpl> nodes = createNodes(new Random(44), states, 32).getRight();
+        new VNodeReplicaSweep(nodes, states.length, 3).determineReplicas(0, nodes.size());
+
+        List<VNodeImpl> chunkedNodes = createNodes(new Random(44), states, 32).getRight();
+        VNodeReplicaSweep chunkedSweep = new VNodeReplicaSweep(chunkedNodes, states.length, 3);
+        for (int from = 0; from < chunkedNodes.size(); from += 7) {
+            chunkedSweep.determineReplicas(from, Math.min(from + 7, chunkedNodes.size()));
+        }
+
+        assertEquals(nodes.size(), chunkedNodes.size());
+        for (int i = 0; i < nodes.size(); i++) {
+            assertEquals(nodes.get(i).getReadReplicas(), chunkedNodes.get(i).getReadReplicas());
+            assertEquals(nodes.get(i).getWriteReplicas(), chunkedNodes.get(i).getWriteReplicas());
+        }
+    }
+
+    private void checkSameReplicasAsRingWalk(Random rand, MachineInRingState[] states, int vnodeCount,
+                                             int replicaCount) {
+        Pair<ConsistentHashRingHoldingResourceEntries<?, VNodeImpl, String, String>, List<VNodeImpl>> ringAndNodes =
+                createNodes(rand, states, vnodeCount);
+        ConsistentHashRingHoldingResourceEntries<?, VNodeImpl, String, String> ring = ringAndNodes.getLeft();
+        List<VNodeImpl> nodes = ringAndNodes.getRight();
+
+        new VNodeReplicaSweep(nodes, states.length, replicaCount).determineReplicas(0, nodes.size());
+
+        for (VNodeImpl n : nodes) {
+            MachineInRingState state = n.getLeader().getState();
+            if (MachineInRingState.INTEGRATED.equals(state) || MachineInRingState.LEAVING.equals(state)) {
+                assertEquals(VNodeConsistentHashRingBuilder.findReadReplicas(ring, n, replicaCount),
+                        n.getReadReplicas());
+                assertEquals(VNodeConsistentHashRingBuilder.findWriteReplicas(ring, n, replicaCount),
+                        n.getWriteReplicas());
+            } else {
+                assertNull(n.getReadReplicas());
+            }
+        }
+    }
+
+    private Pair<ConsistentHashRingHoldingResourceEntries<?, VNodeImpl, String, String>, List<VNodeImpl>> createNodes(
+            Random rand, MachineInRingState[] states, int vnodeCount) {
+        List<Machine> allMachines = new ArrayList<>();
+        for (int i = 0; i < states.length; i++) {
+            Machine m = new Machine();
+            m.setMachineId("m" + i);
+            m.setState(states[i]);
+            allMachines.add(m);
+        }
+        allMachines = ImmutableList.copyOf(allMachines);
+        ConsistentHashRingHoldingResourceEntries<?, VNodeImpl, String, String> ring =
+                ConsistentHashRings.newMurmur3Ring64Bit();
+        for (int i = 0; i < allMachines.size(); i++) {
+            final Machine m = allMachines.get(i);
+            m.init(allMachines, i);
+            long[] vnodes = new long[vnodeCount];
+            for (int j = 0; j < vnodes.length; j++) {
+                vnodes[j] = rand.nextLong();
+            }
+            ConsistentHashRings.addVNodeMachineToRing(ring, m.getMachineId(),
+                    new Function<Pair<String, Long>, VNodeImpl>() {
+                        @Nullable
+                        @Override
+                        public VNodeImpl apply(Pair<String, Long> input) {
+                            VNodeImpl result = new VNodeImpl();
+                            result.init(input.getRight());
+                            result.setLeader(m);
+                            return result;
+                        }
+                    }, vnodes);
+        }
+        List<VNodeImpl> nodes = ImmutableList.copyOf(ring.getNodes());
+        return Pair.<ConsistentHashRingHoldingResourceEntries<?, VNodeImpl, String, String>, List<VNodeImpl>>of(
+                ring, nodes);
+    }
+}
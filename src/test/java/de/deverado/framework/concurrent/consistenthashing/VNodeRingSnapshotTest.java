@@ -0,0 +1,154 @@
+package de.deverado.framework.concurrent.consistenthashing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+public class VNodeRingSnapshotTest {
+
+    private static final MachineInRingState[] STATES = {MachineInRingState.INTEGRATED,
+            MachineInRingState.INTEGRATED, MachineInRingState.LEAVING, MachineInRingState.BOOTSTRAPPING,
+            MachineInRingState.OUT_OF_RING};
+
+    private File file;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("vnode-ring", ".snapshot");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        file.delete();
+    }
+
+    @Test
+    public void shouldServeSameLookupsAsRing() throws Exception {
+        Random rand = new Random(42);
+        for (int round = 0; round < 20; round++) {
+            VNodeConsistentHashRing ring = createBuilder(rand, 1 + rand.nextInt(20), 1 + rand.nextInt(32))
+                    .setFreezeRing(rand.nextBoolean()).build();
+            VNodeRingSnapshot.write(ring, file, round % 3 == 0 ? 0 : -1);
+            MappedVNodeRing mapped = MappedVNodeRing.open(file);
+
+            assertEquals(ring.getMachines().size(), mapped.getMachineCount());
+            for (Machine m : ring.getMachines()) {
+                assertEquals(m.getIdxInAllMachineList(), mapped.getMachineOrdinal(m.getMachineId()));
+                assertEquals(m.getMachineId(), mapped.getMachineId(m.getIdxInAllMachineList()));
+                assertEquals(m.getState(), mapped.getMachineState(m.getIdxInAllMachineList()));
+            }
+            assertEquals(-1, mapped.getMachineOrdinal("unknown"));
+            assertEquals(ring.getNodeRing().getNodeCount(), mapped.getNodeCount());
+
+            for (int i = 0; i < 1000; i++) {
+                long hash = rand.nextLong();
+                VNodeImpl node = ring.getNodeForHash(hash);
+                int idx = mapped.indexOfNodeForHash(hash);
+                if (node == null) {
+                    assertEquals(-1, idx);
+                    continue;
+                }
+                assertEquals((long) node.getHash(), mapped.getToken(idx));
+                assertEquals(node.getLeader().getIdxInAllMachineList(), mapped.getLeaderOrdinal(idx));
+                assertEquals(ids(node.getReadReplicas()), mapped.getReadReplicaIdsForHash(hash));
+                assertEquals(ids(node.getWriteReplicas()), mapped.getWriteReplicaIdsForHash(hash));
+                assertEquals(node.getWriteReplicas().size(), mapped.getWriteReplicaCount(idx));
+                for (int r = 0; r < node.getReadReplicas().size(); r++) {
+                    assertEquals(node.getReadReplicas().get(r).getIdxInAllMachineList(),
+                            mapped.getReadReplicaOrdinal(idx, r));
+                }
+
+                // exact token hits
+                assertEquals(idx, mapped.indexOfNodeForHash(node.getHash()));
+            }
+        }
+    }
+
+    @Test
+    public void shouldDeserializeToSameRing() throws Exception {
+        VNodeConsistentHashRing ring = createBuilder(new Random(43), 30, 64).setFreezeRing(true).build();
+        VNodeRingSnapshot.write(ring, file);
+
+        VNodeConsistentHashRing loaded = MappedVNodeRing.open(file).toRing();
+
+        VNodeConsistentHashRingIncrementalBuildTest.assertSameRing(ring, loaded);
+        assertEquals(ring.getNode("someKey"), loaded.getNode("someKey"));
+    }
+
+    @Test
+    public void shouldHandleEmptyRing() throws Exception {
+        VNodeConsistentHashRing ring = new VNodeConsistentHashRingBuilder()
+                .addMachine("a", MachineInRingState.BOOTSTRAPPING, 1L, 2L).build();
+        VNodeRingSnapshot.write(ring, file);
+
+        MappedVNodeRing mapped = MappedVNodeRing.open(file);
+        assertEquals(0, mapped.getNodeCount());
+        assertEquals(-1, mapped.indexOfNodeForHash(5L));
+        assertEquals(0, mapped.getReadReplicaIdsForHash(5L).size());
+        assertEquals(0, mapped.toRing().getNodeRing().getNodeCount());
+    }
+
+    @Test
+    public void shouldRejectCorruptFiles() throws Exception {
+        VNodeConsistentHashRing ring = createBuilder(new Random(44), 5, 8).build();
+        VNodeRingSnapshot.write(ring, file);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(raf.length() - 1);
+        }
+        assertOpenFails();
+
+        VNodeRingSnapshot.write(ring, file);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.writeInt(0xCAFEBABE);
+        }
+        assertOpenFails();
+
+        VNodeRingSnapshot.write(ring, file);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(4);
+            raf.writeInt(VNodeRingSnapshot.VERSION + 1);
+        }
+        assertOpenFails();
+    }
+
+    private void assertOpenFails() {
+        try {
+            MappedVNodeRing.open(file);
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    private static List<String> ids(List<Machine> machines) {
+        List<String> result = new ArrayList<>();
+        for (Machine m : machines) {
+            result.add(m.getMachineId());
+        }
+        return result;
+    }
+
+    private static VNodeConsistentHashRingBuilder createBuilder(Random rand, int machineCount, int vnodeCount) {
+        VNodeConsistentHashRingBuilder result = new VNodeConsistentHashRingBuilder()
+                .setReplicaCount(1 + rand.nextInt(4));
+        for (int i = 0; i < machineCount; i++) {
+            long[] vnodes = new long[vnodeCount];
+            for (int j = 0; j < vnodes.length; j++) {
+                vnodes[j] = rand.nextLong();
+            }
+            result.addMachine("m" + i, i == 0 ? MachineInRingState.INTEGRATED : STATES[rand.nextInt(STATES.length)],
+                    vnodes);
+        }
+        return result;
+    }
+}